@@ -0,0 +1,460 @@
+// CommandLibrary.java
+// Table-driven command router and trigger index shared by main.java and loaded scripts
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class CommandLibrary {
+    // Command handler interface (implemented by scripts as anonymous classes)
+    public interface CommandHandler {
+        void handle(Object msg, String sessionId, String cmd, String arg);
+    }
+
+    // Parsed command: "/cmd arg..." split at the first whitespace run
+    public static class ParsedCommand {
+        public final String cmd;
+        public final String arg;
+
+        ParsedCommand(String cmd, String arg) {
+            this.cmd = cmd;
+            this.arg = arg;
+        }
+    }
+
+    // Registered command entry
+    public static class CommandEntry {
+        public final String name;
+        public final CommandHandler handler;
+        public final boolean adminOnly;
+
+        CommandEntry(String name, CommandHandler handler, boolean adminOnly) {
+            this.name = name;
+            this.handler = handler;
+            this.adminOnly = adminOnly;
+        }
+    }
+
+    // ==================== Tokenizer ====================
+    // Split content into command token and trimmed argument without regex.
+    // The command token is lower-cased (ASCII only, no copy when already lower case).
+    public static ParsedCommand parse(String content) {
+        if (content == null) {
+            return null;
+        }
+        int len = content.length();
+        int end = 0;
+        while (end < len && !Character.isWhitespace(content.charAt(end))) {
+            end++;
+        }
+        if (end == 0) {
+            return null;
+        }
+        String cmd = toLowerAscii(content, end);
+
+        int argStart = end;
+        while (argStart < len && Character.isWhitespace(content.charAt(argStart))) {
+            argStart++;
+        }
+        int argEnd = len;
+        while (argEnd > argStart && Character.isWhitespace(content.charAt(argEnd - 1))) {
+            argEnd--;
+        }
+        String arg = argStart < argEnd ? content.substring(argStart, argEnd) : "";
+        return new ParsedCommand(cmd, arg);
+    }
+
+    private static String toLowerAscii(String s, int end) {
+        int i = 0;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                break;
+            }
+            i++;
+        }
+        if (i == end) {
+            return end == s.length() ? s : s.substring(0, end);
+        }
+        char[] chars = new char[end];
+        s.getChars(0, end, chars, 0);
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    // ==================== Router ====================
+    public static class CommandRouter {
+        // Copy-on-write table: lookups read the current map without locking
+        private volatile Map<String, CommandEntry> table = new HashMap<>();
+
+        // Register command (name is matched lower-cased, later registrations replace earlier ones)
+        public synchronized void register(String name, CommandHandler handler, boolean adminOnly) {
+            if (name == null || name.isEmpty() || handler == null) {
+                return;
+            }
+            String key = toLowerAscii(name, name.length());
+            Map<String, CommandEntry> next = new HashMap<>(table);
+            next.put(key, new CommandEntry(key, handler, adminOnly));
+            table = next;
+        }
+
+        public void register(String name, CommandHandler handler) {
+            register(name, handler, true);
+        }
+
+        // Unregister command
+        public synchronized void unregister(String name) {
+            if (name == null) {
+                return;
+            }
+            String key = toLowerAscii(name, name.length());
+            if (!table.containsKey(key)) {
+                return;
+            }
+            Map<String, CommandEntry> next = new HashMap<>(table);
+            next.remove(key);
+            table = next;
+        }
+
+        // Look up command entry, null if not registered
+        public CommandEntry lookup(String cmd) {
+            return cmd != null ? table.get(cmd) : null;
+        }
+
+        public boolean contains(String cmd) {
+            return lookup(cmd) != null;
+        }
+
+        public int size() {
+            return table.size();
+        }
+
+        public synchronized void clear() {
+            table = new HashMap<>();
+        }
+    }
+
+    // ==================== Trigger index ====================
+    // Trigger match types declared by scripts at registration
+    public enum MatchType {
+        EXACT("exact"),
+        PREFIX("prefix"),
+        REGEX("regex"),
+        ANY("any");
+
+        private final String name;
+
+        MatchType(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static MatchType fromName(String name) {
+            for (MatchType type : values()) {
+                if (type.name.equals(name)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Trigger declaration, parsed from "exact:text", "prefix:/cmd", "regex:^a.*" or "any"
+    public static class Trigger {
+        public final MatchType type;
+        public final String pattern;
+
+        public Trigger(MatchType type, String pattern) {
+            this.type = type;
+            this.pattern = pattern != null ? pattern : "";
+        }
+
+        public static Trigger parse(String spec) {
+            if (spec == null) {
+                return null;
+            }
+            int colon = spec.indexOf(':');
+            String typeName = colon >= 0 ? spec.substring(0, colon).trim() : spec.trim();
+            MatchType type = MatchType.fromName(typeName.toLowerCase());
+            if (type == null) {
+                return null;
+            }
+            String pattern = colon >= 0 ? spec.substring(colon + 1) : "";
+            if (type != MatchType.ANY && pattern.isEmpty()) {
+                return null;
+            }
+            if (type == MatchType.REGEX) {
+                Pattern.compile(pattern); // Fail at registration, not per message
+            }
+            return new Trigger(type, pattern);
+        }
+
+        @Override
+        public String toString() {
+            return type == MatchType.ANY ? type.getName() : type.getName() + ":" + pattern;
+        }
+    }
+
+    // Index from message content to the targets whose triggers match it:
+    // a hash for exact matches, a character trie for prefixes, and a combined
+    // pattern that rules out all group-free regex triggers with a single scan.
+    public static class TriggerIndex<T> {
+        private static class TrieNode<T> {
+            final Map<Character, TrieNode<T>> children = new HashMap<>();
+            final List<Target<T>> targets = new ArrayList<>();
+        }
+
+        private static class Target<T> {
+            final T value;
+            final int order;
+            final List<Trigger> triggers;
+
+            Target(T value, int order, List<Trigger> triggers) {
+                this.value = value;
+                this.order = order;
+                this.triggers = triggers;
+            }
+        }
+
+        // Immutable compiled form, rebuilt on every add/remove
+        private static class Compiled<T> {
+            final Map<String, List<Target<T>>> exact = new HashMap<>();
+            final TrieNode<T> prefixRoot = new TrieNode<>();
+            final List<Target<T>> any = new ArrayList<>();
+            final List<Object[]> regexes = new ArrayList<>(); // {Pattern, Target, Boolean inCombined}
+            Pattern combinedRegex;
+            // Regexes left out of combinedRegex, always tested one by one
+            int standaloneRegexes;
+            boolean hasPrefixes;
+        }
+
+        private final List<Target<T>> targets = new ArrayList<>();
+        private int nextOrder = 0;
+        private volatile Compiled<T> compiled = new Compiled<>();
+
+        // Add target with its triggers (replaces previous triggers of the same target)
+        public synchronized void add(T value, List<Trigger> triggers) {
+            if (value == null || triggers == null || triggers.isEmpty()) {
+                return;
+            }
+            removeTarget(value);
+            targets.add(new Target<>(value, nextOrder++, new ArrayList<>(triggers)));
+            rebuild();
+        }
+
+        public synchronized boolean remove(T value) {
+            boolean removed = removeTarget(value);
+            if (removed) {
+                rebuild();
+            }
+            return removed;
+        }
+
+        // Remove some targets and add others in one step, so match() never sees both or neither
+        // (used to swap the handlers of a reloaded script)
+        public synchronized void replace(Collection<? extends T> removed, Map<? extends T, List<Trigger>> added) {
+            boolean changed = false;
+            if (removed != null) {
+                for (T value : removed) {
+                    changed |= removeTarget(value);
+                }
+            }
+            if (added != null) {
+                for (Map.Entry<? extends T, List<Trigger>> entry : added.entrySet()) {
+                    if (entry.getKey() == null || entry.getValue() == null || entry.getValue().isEmpty()) {
+                        continue;
+                    }
+                    removeTarget(entry.getKey());
+                    targets.add(new Target<T>(entry.getKey(), nextOrder++, new ArrayList<>(entry.getValue())));
+                    changed = true;
+                }
+            }
+            if (changed) {
+                rebuild();
+            }
+        }
+
+        public synchronized void clear() {
+            targets.clear();
+            rebuild();
+        }
+
+        public synchronized int size() {
+            return targets.size();
+        }
+
+        // Triggers declared by a target, empty if not registered
+        public synchronized List<Trigger> getTriggers(T value) {
+            for (Target<T> target : targets) {
+                if (target.value == value) {
+                    return Collections.unmodifiableList(target.triggers);
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        private boolean removeTarget(T value) {
+            for (int i = 0; i < targets.size(); i++) {
+                if (targets.get(i).value == value) {
+                    targets.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void rebuild() {
+            Compiled<T> c = new Compiled<>();
+            StringBuilder combined = new StringBuilder();
+            for (Target<T> target : targets) {
+                for (Trigger trigger : target.triggers) {
+                    switch (trigger.type) {
+                        case EXACT:
+                            List<Target<T>> list = c.exact.get(trigger.pattern);
+                            if (list == null) {
+                                list = new ArrayList<>();
+                                c.exact.put(trigger.pattern, list);
+                            }
+                            list.add(target);
+                            break;
+                        case PREFIX:
+                            TrieNode<T> node = c.prefixRoot;
+                            for (int i = 0; i < trigger.pattern.length(); i++) {
+                                Character ch = trigger.pattern.charAt(i);
+                                TrieNode<T> child = node.children.get(ch);
+                                if (child == null) {
+                                    child = new TrieNode<>();
+                                    node.children.put(ch, child);
+                                }
+                                node = child;
+                            }
+                            node.targets.add(target);
+                            c.hasPrefixes = true;
+                            break;
+                        case REGEX:
+                            Pattern pattern = Pattern.compile(trigger.pattern);
+                            // Joining patterns renumbers capture groups, so a backreference such as \1
+                            // would point at another trigger's group and silently never match;
+                            // patterns with groups are only tested on their own
+                            boolean combinable = pattern.matcher("").groupCount() == 0;
+                            c.regexes.add(new Object[] {pattern, target, combinable});
+                            if (!combinable) {
+                                c.standaloneRegexes++;
+                                break;
+                            }
+                            if (combined.length() > 0) {
+                                combined.append('|');
+                            }
+                            combined.append("(?:").append(trigger.pattern).append(')');
+                            break;
+                        case ANY:
+                            c.any.add(target);
+                            break;
+                    }
+                }
+            }
+            if (combined.length() > 0) {
+                c.combinedRegex = Pattern.compile(combined.toString());
+            }
+            compiled = c;
+        }
+
+        // Targets whose triggers match content, in registration order, each at most once
+        @SuppressWarnings("unchecked")
+        public List<T> match(String content) {
+            Compiled<T> c = compiled;
+            if (content == null) {
+                content = "";
+            }
+            List<Target<T>> hits = null;
+
+            if (!c.any.isEmpty()) {
+                hits = new ArrayList<>(c.any);
+            }
+            List<Target<T>> exact = c.exact.get(content);
+            if (exact != null) {
+                hits = addAll(hits, exact);
+            }
+            if (c.hasPrefixes) {
+                TrieNode<T> node = c.prefixRoot;
+                for (int i = 0; i < content.length() && node != null; i++) {
+                    node = node.children.get(content.charAt(i));
+                    if (node != null && !node.targets.isEmpty()) {
+                        hits = addAll(hits, node.targets);
+                    }
+                }
+            }
+            boolean combinedHit = c.combinedRegex != null && c.combinedRegex.matcher(content).find();
+            if (combinedHit || c.standaloneRegexes > 0) {
+                for (Object[] entry : c.regexes) {
+                    if ((combinedHit || !(Boolean) entry[2]) && ((Pattern) entry[0]).matcher(content).find()) {
+                        hits = addAll(hits, Collections.singletonList((Target<T>) entry[1]));
+                    }
+                }
+            }
+
+            if (hits == null) {
+                return Collections.emptyList();
+            }
+            if (hits.size() == 1) {
+                return Collections.singletonList(hits.get(0).value);
+            }
+            // Restore registration order and drop duplicates (a target may match several triggers)
+            Collections.sort(hits, (a, b) -> a.order - b.order);
+            List<T> result = new ArrayList<>(hits.size());
+            IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<>();
+            for (Target<T> target : hits) {
+                if (seen.put(target, Boolean.TRUE) == null) {
+                    result.add(target.value);
+                }
+            }
+            return result;
+        }
+
+        private static <T> List<Target<T>> addAll(List<Target<T>> hits, List<Target<T>> more) {
+            if (hits == null) {
+                hits = new ArrayList<>(more.size() + 2);
+            }
+            hits.addAll(more);
+            return hits;
+        }
+    }
+
+    // Parse trigger specs, throws IllegalArgumentException on an invalid spec
+    public static List<Trigger> parseTriggers(String[] specs) {
+        List<Trigger> triggers = new ArrayList<>();
+        if (specs == null) {
+            return triggers;
+        }
+        for (String spec : specs) {
+            Trigger trigger = Trigger.parse(spec);
+            if (trigger == null) {
+                throw new IllegalArgumentException("Invalid trigger: " + spec);
+            }
+            triggers.add(trigger);
+        }
+        return triggers;
+    }
+
+    // Factory methods
+    public static CommandRouter createRouter() {
+        return new CommandRouter();
+    }
+
+    public static TriggerIndex<Object> createTriggerIndex() {
+        return new TriggerIndex<>();
+    }
+}
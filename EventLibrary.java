@@ -2,8 +2,17 @@
 // Event dispatcher library to solve QStory script onMsg conflicts
 
 import java.util.ArrayList;
-import java.util.List;
+import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class EventLibrary {
     // Message handler interface (internal for better compatibility with bsh 1.4)
@@ -11,6 +20,11 @@ public class EventLibrary {
         void handle(Object msg);
     }
     
+    // Message handler that receives the pre-read MessageContext instead of the raw host message
+    public interface MessageContextHandler {
+        void handle(MessageContext ctx);
+    }
+    
     // Forbidden event handler interface
     public interface ForbiddenEventHandler {
         void onForbiddenEvent(String GroupUin, String UserUin, String OPUin, long time);
@@ -51,6 +65,11 @@ public class EventLibrary {
         void onUnLoad();
     }
     
+    // Registration hook, lets the host attribute handlers to the script that registered them
+    public interface RegistrationListener {
+        void onRegistered(Object handler);
+    }
+    
     // Message type enum
     public enum MessageType {
         TEXT(1, "text"),
@@ -77,13 +96,22 @@ public class EventLibrary {
             return name;
         }
         
-        public static MessageType fromCode(int code) {
+        // Indexed by code; values() clones the constants array on every call
+        private static final MessageType[] BY_CODE;
+        static {
+            int max = 0;
             for (MessageType type : values()) {
-                if (type.code == code) {
-                    return type;
-                }
+                max = Math.max(max, type.code);
+            }
+            BY_CODE = new MessageType[max + 1];
+            for (MessageType type : values()) {
+                BY_CODE[type.code] = type;
             }
-            return UNKNOWN;
+        }
+        
+        public static MessageType fromCode(int code) {
+            MessageType type = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            return type != null ? type : UNKNOWN;
         }
         
         public static MessageType fromName(String name) {
@@ -142,49 +170,956 @@ public class EventLibrary {
     public static final int PRIORITY_NORMAL = Priority.NORMAL.getValue();
     public static final int PRIORITY_HIGH = Priority.HIGH.getValue();
     
-    // Handler with priority
-    private static class PriorityHandler {
+    // ==== Message context ====
+    // Immutable view of one host message, read once so handlers do not go through reflective field
+    // access for every property. The session key has the same format as main.java's getSessionId.
+    public static final class MessageContext {
+        private final Object message;
+        private final String content;
+        private final boolean group;
+        private final String groupUin;
+        private final String userUin;
+        private final String replyKey;
+        private final String sessionKey;
+        private final MessageType type;
+        
+        MessageContext(Object message, String rawContent, boolean group, String groupUin, String userUin, MessageType type) {
+            this.message = message;
+            this.content = rawContent != null ? rawContent.trim() : "";
+            this.group = group;
+            this.groupUin = groupUin != null ? groupUin : "";
+            this.userUin = userUin != null ? userUin : "";
+            this.replyKey = group ? "g" + this.groupUin : "p" + this.userUin;
+            this.sessionKey = group ? "g" + this.groupUin + "_" + this.userUin : "p" + this.userUin;
+            this.type = type;
+        }
+        
+        // The host message this context was read from
+        public Object getMessage() {
+            return message;
+        }
+        
+        // Trimmed message content, never null
+        public String getContent() {
+            return content;
+        }
+        
+        public boolean isGroup() {
+            return group;
+        }
+        
+        public String getGroupUin() {
+            return groupUin;
+        }
+        
+        public String getUserUin() {
+            return userUin;
+        }
+        
+        // Reply target in sendMsg(groupUin, userUin, text) form: the group for group messages, else the user
+        public String getReplyGroupUin() {
+            return group ? groupUin : "";
+        }
+        
+        public String getReplyUserUin() {
+            return group ? "" : userUin;
+        }
+        
+        // Conversation the reply goes to: "g" + group or "p" + user
+        public String getReplyKey() {
+            return replyKey;
+        }
+        
+        // Conversation and sender: "g" + group + "_" + user or "p" + user
+        public String getSessionKey() {
+            return sessionKey;
+        }
+        
+        public MessageType getType() {
+            return type;
+        }
+        
+        public String toString() {
+            return sessionKey + " [" + type.getName() + "] " + content;
+        }
+    }
+    
+    // Field accessors of one host message class, looked up once and reused for every message of
+    // that class. Missing fields read as defaults.
+    private static final class MessageAdapter {
+        private static final ConcurrentHashMap<Class<?>, MessageAdapter> ADAPTERS =
+            new ConcurrentHashMap<Class<?>, MessageAdapter>();
+        // The host delivers a single message class, so the last adapter almost always matches
+        private static volatile MessageAdapter last;
+        
+        private final Class<?> type;
+        private final Field content;
+        private final Field isGroup;
+        private final Field groupUin;
+        private final Field userUin;
+        private final Field messageType;
+        
+        private MessageAdapter(Class<?> type) {
+            this.type = type;
+            this.content = field(type, "MessageContent");
+            this.isGroup = field(type, "IsGroup");
+            this.groupUin = field(type, "GroupUin");
+            this.userUin = field(type, "UserUin");
+            this.messageType = field(type, "MessageType");
+        }
+        
+        static MessageAdapter of(Class<?> type) {
+            MessageAdapter adapter = last;
+            if (adapter != null && adapter.type == type) {
+                return adapter;
+            }
+            adapter = ADAPTERS.get(type);
+            if (adapter == null) {
+                MessageAdapter created = new MessageAdapter(type);
+                adapter = ADAPTERS.putIfAbsent(type, created);
+                if (adapter == null) {
+                    adapter = created;
+                }
+            }
+            last = adapter;
+            return adapter;
+        }
+        
+        MessageContext read(Object msg) {
+            return new MessageContext(msg, string(content, msg), Boolean.TRUE.equals(get(isGroup, msg)),
+                string(groupUin, msg), string(userUin, msg), readType(msg));
+        }
+        
+        MessageType readType(Object msg) {
+            Object value = get(messageType, msg);
+            return value instanceof Integer ? MessageType.fromCode((Integer) value) : MessageType.UNKNOWN;
+        }
+        
+        private static Field field(Class<?> type, String name) {
+            try {
+                Field field = type.getField(name);
+                try {
+                    field.setAccessible(true);
+                } catch (RuntimeException e) {
+                    // Keep the checked field
+                }
+                return field;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        
+        private static Object get(Field field, Object msg) {
+            if (field == null) {
+                return null;
+            }
+            try {
+                return field.get(msg);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        
+        private static String string(Field field, Object msg) {
+            Object value = get(field, msg);
+            return value != null ? value.toString() : null;
+        }
+    }
+    
+    // Last context built on each thread, so the host, the dispatcher and legacy handlers that ask
+    // for the same message share one instance
+    private static final ThreadLocal<MessageContext> lastContext = new ThreadLocal<MessageContext>();
+    
+    // ==== Handler metrics ====
+    // Counter split over a few cells picked by thread id, so concurrent dispatch threads rarely
+    // touch the same cache line; reads sum the cells.
+    public static final class StripedCounter {
+        private static final int STRIPES = 4;
+        // Cells are 8 longs apart to keep them on separate cache lines
+        private static final int SPACING = 8;
+        
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+        
+        public void add(long delta) {
+            cells.addAndGet(stripe() * SPACING, delta);
+        }
+        
+        public void increment() {
+            add(1L);
+        }
+        
+        public long sum() {
+            long sum = 0L;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * SPACING);
+            }
+            return sum;
+        }
+        
+        static int stripe() {
+            return (int) Thread.currentThread().getId() & (STRIPES - 1);
+        }
+    }
+    
+    // HDR-style latency histogram: log-linear buckets with 8 sub-buckets per power of two (values
+    // within 12.5%), from 1us up to about 18 minutes. Each stripe has its own bucket row, recording
+    // is two atomic adds and a max check without locking.
+    public static final class LatencyHistogram {
+        private static final int UNIT_SHIFT = 10;
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 30;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+        private static final int STRIPES = 4;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+        private final StripedCounter totalNanos = new StripedCounter();
+        private final AtomicLong maxNanos = new AtomicLong();
+        
+        public void record(long nanos) {
+            if (nanos < 0L) {
+                nanos = 0L;
+            }
+            counts.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucketOf(nanos));
+            totalNanos.add(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+        
+        public long getCount() {
+            long count = 0L;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+        
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+        
+        public long getMeanNanos() {
+            long count = getCount();
+            return count > 0L ? totalNanos.sum() / count : 0L;
+        }
+        
+        // Highest value equivalent to the percentile's bucket (0-100), capped at the recorded max
+        public long getPercentileNanos(double percentile) {
+            long[] merged = new long[BUCKETS];
+            long count = 0L;
+            for (int i = 0; i < counts.length(); i++) {
+                long n = counts.get(i);
+                merged[i % BUCKETS] += n;
+                count += n;
+            }
+            if (count == 0L) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+            long seen = 0L;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += merged[bucket];
+                if (seen >= rank) {
+                    return Math.min(upperBound(bucket), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+        
+        static int bucketOf(long nanos) {
+            long units = nanos >>> UNIT_SHIFT;
+            if (units < SUB_COUNT) {
+                return (int) units;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(units);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (units >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+        
+        static long upperBound(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return ((bucket + 1L) << UNIT_SHIFT) - 1L;
+            }
+            int shift = bucket / SUB_COUNT - 1;
+            long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+            return ((lower + (1L << shift)) << UNIT_SHIFT) - 1L;
+        }
+    }
+    
+    // Invocations, errors and latency of one handler or one event type
+    public static final class HandlerMetrics {
+        private final String eventType;
+        private volatile String name;
+        private final StripedCounter errors = new StripedCounter();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        
+        public HandlerMetrics(String name, String eventType) {
+            this.name = name;
+            this.eventType = eventType;
+        }
+        
+        public void record(long nanos, boolean failed) {
+            latency.record(nanos);
+            if (failed) {
+                errors.increment();
+            }
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public void setName(String name) {
+            this.name = name;
+        }
+        
+        public String getEventType() {
+            return eventType;
+        }
+        
+        public long getInvocations() {
+            return latency.getCount();
+        }
+        
+        public long getErrors() {
+            return errors.sum();
+        }
+        
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+        
+        public String toString() {
+            return name + " [" + eventType + "] n=" + getInvocations() + ", err=" + getErrors()
+                + ", p50=" + millis(latency.getPercentileNanos(50.0))
+                + "ms, p99=" + millis(latency.getPercentileNanos(99.0))
+                + "ms, max=" + millis(latency.getMaxNanos()) + "ms";
+        }
+        
+        private static double millis(long nanos) {
+            return nanos / 1000L / 1000.0;
+        }
+    }
+    
+    // ==== Handler watchdog ====
+    // Reports handler invocations that overrun their time budget
+    public interface BreachListener {
+        void onBreach(HandlerGuard guard, long elapsedNanos, boolean running, boolean quarantined);
+    }
+    
+    // Time budget and quarantine state of one handler, next to its metrics
+    public static final class HandlerGuard {
+        private final HandlerMetrics metrics;
+        // 0 uses the watchdog's default budget
+        private volatile long budgetNanos;
+        private final AtomicInteger strikes = new AtomicInteger();
+        private final AtomicLong breaches = new AtomicLong();
+        private volatile boolean quarantined;
+        
+        public HandlerGuard(HandlerMetrics metrics) {
+            this.metrics = metrics;
+        }
+        
+        public HandlerMetrics getMetrics() {
+            return metrics;
+        }
+        
+        public String getName() {
+            return metrics.getName();
+        }
+        
+        public void setBudgetMillis(long millis) {
+            budgetNanos = Math.max(0L, millis) * 1000000L;
+        }
+        
+        public long getBreaches() {
+            return breaches.get();
+        }
+        
+        public boolean isQuarantined() {
+            return quarantined;
+        }
+        
+        public String toString() {
+            return metrics + ", breaches=" + breaches.get() + (quarantined ? ", quarantined" : "");
+        }
+    }
+    
+    // Watches handler invocations against their budgets. An invocation that finishes over budget is
+    // a breach; a daemon thread also flags invocations still running past their budget, and can
+    // interrupt them when the caller marked the thread interruptible. After quarantineAfter
+    // consecutive breaches a handler is quarantined and dispatch skips it until reinstated.
+    public static final class HandlerWatchdog {
+        // What one dispatching thread is currently running: the innermost invocation, with the
+        // enclosing ones (a handler that dispatches another event) saved in its Frame
+        private static final class InFlight {
+            final Thread thread;
+            Frame top;
+            volatile HandlerGuard guard;
+            volatile long start;
+            volatile boolean interruptible;
+            volatile boolean flagged;
+            // Id of the invocation the watchdog last interrupted, 0 once that interrupt was cleared
+            volatile long interrupted;
+            // Id of the running invocation, 0 when idle, -id while the watchdog is interrupting it;
+            // end() can only hand the slot back once no interrupt is in progress, so none lands
+            // outside the invocation it was meant for
+            final AtomicLong invocation = new AtomicLong();
+            long lastId;
+            
+            InFlight(Thread thread) {
+                this.thread = thread;
+            }
+        }
+        
+        // One begin(): the invocation's id and the enclosing invocation's state to restore at end()
+        private static final class Frame {
+            final InFlight slot;
+            final Frame outer;
+            final long id;
+            final long outerId;
+            final HandlerGuard outerGuard;
+            final long outerStart;
+            final boolean outerInterruptible;
+            final boolean outerFlagged;
+            
+            Frame(InFlight slot, long id, long outerId) {
+                this.slot = slot;
+                this.outer = slot.top;
+                this.id = id;
+                this.outerId = outerId;
+                this.outerGuard = slot.guard;
+                this.outerStart = slot.start;
+                this.outerInterruptible = slot.interruptible;
+                this.outerFlagged = slot.flagged;
+            }
+        }
+        
+        private final CopyOnWriteArrayList<InFlight> threads = new CopyOnWriteArrayList<InFlight>();
+        private final ThreadLocal<InFlight> current = new ThreadLocal<InFlight>() {
+            protected InFlight initialValue() {
+                InFlight slot = new InFlight(Thread.currentThread());
+                threads.add(slot);
+                return slot;
+            }
+        };
+        private final Set<HandlerGuard> quarantinedGuards =
+            Collections.newSetFromMap(new ConcurrentHashMap<HandlerGuard, Boolean>());
+        private volatile long defaultBudgetNanos = 3000L * 1000000L;
+        private volatile int quarantineAfter = 3;
+        private volatile boolean interruptHung = false;
+        private volatile BreachListener listener;
+        private Thread thread;
+        
+        public void configure(long defaultBudgetMillis, int quarantineAfter, boolean interruptHung) {
+            this.defaultBudgetNanos = Math.max(1L, defaultBudgetMillis) * 1000000L;
+            this.quarantineAfter = quarantineAfter;
+            this.interruptHung = interruptHung;
+        }
+        
+        public void setBreachListener(BreachListener listener) {
+            this.listener = listener;
+        }
+        
+        // Start the daemon thread that checks running invocations every intervalMillis
+        public synchronized void start(final long intervalMillis) {
+            if (thread != null) {
+                return;
+            }
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        scan();
+                    }
+                }
+            }, "handler-watchdog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        public synchronized void stop() {
+            if (thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+        
+        // Called right before a handler runs; pass the result to end() from a finally block.
+        // Every begin takes the slot over with a new id, so the watchdog never acts on the id of an
+        // invocation whose end() was skipped
+        public Object begin(HandlerGuard guard, boolean interruptible) {
+            InFlight slot = current.get();
+            long id = ++slot.lastId;
+            long outerId = idle(slot);
+            if (outerId == 0L && slot.interrupted != 0L) {
+                // Left over from an invocation that did not reach end()
+                slot.interrupted = 0L;
+                Thread.interrupted();
+            }
+            Frame frame = new Frame(slot, id, outerId);
+            slot.top = frame;
+            slot.start = System.nanoTime();
+            slot.interruptible = interruptible;
+            slot.flagged = false;
+            slot.guard = guard;
+            slot.invocation.set(id);
+            return frame;
+        }
+        
+        // Called after the handler returned or threw, with its elapsed time
+        public void end(Object token, HandlerGuard guard, long elapsedNanos) {
+            Frame frame = (Frame) token;
+            InFlight slot = frame.slot;
+            idle(slot);
+            boolean flagged = slot.flagged;
+            if (slot.interrupted >= frame.id) {
+                // The interrupt was for this invocation (or an inner one that skipped end());
+                // one meant for an enclosing invocation has a smaller id and stays
+                slot.interrupted = 0L;
+                Thread.interrupted();
+            }
+            // Pop back to the enclosing invocation, also dropping inner frames that skipped end()
+            slot.top = frame.outer;
+            slot.guard = frame.outerGuard;
+            slot.start = frame.outerStart;
+            slot.interruptible = frame.outerInterruptible;
+            slot.flagged = frame.outerFlagged;
+            if (frame.outerId != 0L) {
+                slot.invocation.set(frame.outerId);
+            }
+            if (elapsedNanos > budgetOf(guard)) {
+                if (!flagged) {
+                    breach(guard, elapsedNanos, false);
+                }
+            } else if (guard.strikes.get() != 0) {
+                guard.strikes.set(0);
+            }
+        }
+        
+        // Forget everything this thread's slot holds. For points known to be outside any handler,
+        // e.g. the top of a worker task, so a frame that skipped end() cannot outlive its task
+        public void reset() {
+            InFlight slot = current.get();
+            idle(slot);
+            slot.top = null;
+            slot.guard = null;
+            slot.flagged = false;
+            if (slot.interrupted != 0L) {
+                slot.interrupted = 0L;
+                Thread.interrupted();
+            }
+        }
+        
+        // Mark the slot idle, waiting out an interrupt in progress; returns the id it held
+        private static long idle(InFlight slot) {
+            while (true) {
+                long id = slot.invocation.get();
+                if (id < 0L) {
+                    // The watchdog is interrupting this thread right now
+                    Thread.yield();
+                } else if (slot.invocation.compareAndSet(id, 0L)) {
+                    return id;
+                }
+            }
+        }
+        
+        void scan() {
+            long now = System.nanoTime();
+            for (InFlight slot : threads) {
+                if (!slot.thread.isAlive()) {
+                    threads.remove(slot);
+                    continue;
+                }
+                long id = slot.invocation.get();
+                HandlerGuard guard = slot.guard;
+                if (id <= 0L || guard == null || slot.flagged) {
+                    continue;
+                }
+                long elapsed = now - slot.start;
+                if (elapsed <= budgetOf(guard)) {
+                    continue;
+                }
+                slot.flagged = true;
+                breach(guard, elapsed, true);
+                // Only while the same invocation is still running
+                if (interruptHung && slot.interruptible && slot.invocation.compareAndSet(id, -id)) {
+                    slot.interrupted = id;
+                    slot.thread.interrupt();
+                    slot.invocation.compareAndSet(-id, id);
+                }
+            }
+        }
+        
+        private long budgetOf(HandlerGuard guard) {
+            long budget = guard.budgetNanos;
+            return budget > 0L ? budget : defaultBudgetNanos;
+        }
+        
+        private void breach(HandlerGuard guard, long elapsedNanos, boolean running) {
+            guard.breaches.incrementAndGet();
+            boolean quarantine = false;
+            if (guard.strikes.incrementAndGet() >= quarantineAfter && quarantineAfter > 0) {
+                synchronized (guard) {
+                    if (!guard.quarantined) {
+                        guard.quarantined = true;
+                        quarantinedGuards.add(guard);
+                        quarantine = true;
+                    }
+                }
+            }
+            BreachListener l = listener;
+            if (l != null) {
+                try {
+                    l.onBreach(guard, elapsedNanos, running, quarantine);
+                } catch (Exception e) {
+                    System.err.println("Error in breach listener: " + e.getMessage());
+                }
+            }
+        }
+        
+        public List<HandlerGuard> getQuarantined() {
+            return new ArrayList<HandlerGuard>(quarantinedGuards);
+        }
+        
+        // Reinstate quarantined handlers whose name contains the given text (null for all); returns how many
+        public int reinstate(String name) {
+            int count = 0;
+            for (HandlerGuard guard : quarantinedGuards) {
+                if (name == null || guard.getName().contains(name)) {
+                    synchronized (guard) {
+                        guard.strikes.set(0);
+                        guard.quarantined = false;
+                        quarantinedGuards.remove(guard);
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        // Drop a handler that was unregistered
+        public void forget(HandlerGuard guard) {
+            quarantinedGuards.remove(guard);
+        }
+    }
+    
+    private static final HandlerWatchdog WATCHDOG = new HandlerWatchdog();
+    
+    // A registered handler, its metrics and watchdog state
+    private static final class Registered {
+        // What was registered (the key for unregister) and what dispatch calls; they differ for
+        // handlers from createTypeSpecificHandler, whose filter moves into typeMask
+        final Object handler;
+        final Object target;
+        final HandlerMetrics metrics;
+        final HandlerGuard guard;
+        // Message slots only: the target takes a MessageContext
+        final boolean contextual;
+        // Message slots only: bit per MessageType ordinal the handler subscribes to
+        final long typeMask;
+        
+        Registered(Object handler, String eventType) {
+            this(handler, handler, eventType, ALL_TYPES);
+        }
+        
+        Registered(Object handler, Object target, String eventType, long typeMask) {
+            this.handler = handler;
+            this.target = target;
+            this.contextual = target instanceof MessageContextHandler && !(target instanceof MessageHandler);
+            this.typeMask = typeMask;
+            this.metrics = new HandlerMetrics(target.getClass().getName(), eventType);
+            this.guard = new HandlerGuard(metrics);
+        }
+    }
+    
+    // Handler from createTypeSpecificHandler. Registered directly it is unwrapped into the type index;
+    // called directly it still filters by type.
+    private static final class TypeFilteredHandler implements MessageHandler {
         final MessageHandler handler;
-        final int priority;
+        final long typeMask;
         
-        PriorityHandler(MessageHandler handler, int priority) {
+        TypeFilteredHandler(MessageHandler handler, long typeMask) {
             this.handler = handler;
-            this.priority = priority;
+            this.typeMask = typeMask;
         }
         
-        PriorityHandler(MessageHandler handler, Priority priority) {
-            this(handler, priority.getValue());
+        public void handle(Object msg) {
+            if ((typeMask & (1L << getMessageType(msg).ordinal())) != 0) {
+                handler.handle(msg);
+            }
         }
     }
     
+    private static long typeMask(MessageType[] types) {
+        if (types == null || types.length == 0) {
+            return ALL_TYPES;
+        }
+        long mask = 0L;
+        for (MessageType type : types) {
+            if (type != null) {
+                mask |= 1L << type.ordinal();
+            }
+        }
+        return mask;
+    }
+    
+    // ==== Handler registry ====
+    // Lock-free registry shared by every handler type. All handlers live in one immutable table of
+    // typed arrays (one slot per event type, message handlers in one slot per Priority level) that
+    // writers replace with compare-and-swap. Readers take the table in a single volatile read, so
+    // dispatch never locks or copies and counts are consistent across event types.
+    private static final class HandlerRegistry {
+        private final Registered[][] empty;
+        private final AtomicReference<Registered[][]> table;
+        
+        HandlerRegistry(Registered[][] empty) {
+            this.empty = empty;
+            this.table = new AtomicReference<Registered[][]>(empty);
+        }
+        
+        Registered[][] snapshot() {
+            return table.get();
+        }
+        
+        Registered[] get(int slot) {
+            return table.get()[slot];
+        }
+        
+        // Add handler to a slot; false if it is already registered there
+        boolean add(int slot, Object handler) {
+            return add(slot, new Registered(handler, SLOT_NAMES[slot]), slot, slot + 1, false);
+        }
+        
+        // Add an entry to a slot unless one of the slots in [from, to) already holds its handler
+        boolean add(int slot, Registered entry, int from, int to, boolean identity) {
+            while (true) {
+                Registered[][] current = table.get();
+                for (int i = from; i < to; i++) {
+                    if (indexOf(current[i], entry.handler, identity) >= 0) {
+                        return false;
+                    }
+                }
+                Registered[] array = current[slot];
+                Registered[] grown = Arrays.copyOf(array, array.length + 1);
+                grown[array.length] = entry;
+                Registered[][] next = current.clone();
+                next[slot] = grown;
+                if (slot <= SLOT_MESSAGE_HIGH) {
+                    indexMessages(next);
+                }
+                if (table.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+        
+        // Remove handler from every slot in [from, to); false if it was not registered
+        boolean remove(Object handler, int from, int to) {
+            if (handler == null) {
+                return false;
+            }
+            while (true) {
+                Registered[][] current = table.get();
+                Registered[][] next = null;
+                for (int slot = from; slot < to; slot++) {
+                    Registered[] array = current[slot];
+                    int i = indexOf(array, handler, slot <= SLOT_MESSAGE_HIGH);
+                    if (i < 0) {
+                        continue;
+                    }
+                    Registered[] shrunk = Arrays.copyOf(array, array.length - 1);
+                    System.arraycopy(array, i + 1, shrunk, i, array.length - i - 1);
+                    if (next == null) {
+                        next = current.clone();
+                    }
+                    next[slot] = shrunk;
+                }
+                if (next == null) {
+                    return false;
+                }
+                if (from <= SLOT_MESSAGE_HIGH) {
+                    indexMessages(next);
+                }
+                if (table.compareAndSet(current, next)) {
+                    for (int slot = from; slot < to; slot++) {
+                        int i = indexOf(current[slot], handler, slot <= SLOT_MESSAGE_HIGH);
+                        if (i >= 0) {
+                            WATCHDOG.forget(current[slot][i].guard);
+                        }
+                    }
+                    return true;
+                }
+            }
+        }
+        
+        // Rebuild the per-type message index from the priority buckets: slot
+        // SLOT_MESSAGE_INDEX + type * PRIORITY_COUNT + priority lists the handlers of that bucket
+        // subscribed to that type, in registration order
+        private static void indexMessages(Registered[][] table) {
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                long bit = 1L << type;
+                for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+                    Registered[] bucket = table[SLOT_MESSAGE_LOW + priority];
+                    int n = 0;
+                    for (Registered entry : bucket) {
+                        if ((entry.typeMask & bit) != 0) {
+                            n++;
+                        }
+                    }
+                    Registered[] typed = bucket;
+                    if (n < bucket.length) {
+                        typed = new Registered[n];
+                        n = 0;
+                        for (Registered entry : bucket) {
+                            if ((entry.typeMask & bit) != 0) {
+                                typed[n++] = entry;
+                            }
+                        }
+                    }
+                    table[SLOT_MESSAGE_INDEX + type * PRIORITY_COUNT + priority] = typed;
+                }
+            }
+        }
+        
+        int count(int from, int to) {
+            Registered[][] current = table.get();
+            int count = 0;
+            for (int slot = from; slot < to; slot++) {
+                count += current[slot].length;
+            }
+            return count;
+        }
+        
+        void clear() {
+            Registered[][] current = table.getAndSet(empty);
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                for (Registered entry : current[slot]) {
+                    WATCHDOG.forget(entry.guard);
+                }
+            }
+        }
+        
+        // Metrics of every registered handler, in slot order
+        List<HandlerMetrics> metrics() {
+            List<HandlerMetrics> result = new ArrayList<HandlerMetrics>();
+            Registered[][] current = table.get();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                for (Registered entry : current[slot]) {
+                    result.add(entry.metrics);
+                }
+            }
+            return result;
+        }
+        
+        List<HandlerGuard> guards() {
+            List<HandlerGuard> result = new ArrayList<HandlerGuard>();
+            Registered[][] current = table.get();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                for (Registered entry : current[slot]) {
+                    result.add(entry.guard);
+                }
+            }
+            return result;
+        }
+        
+        void setBudget(Object handler, long millis) {
+            Registered[][] current = table.get();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                for (Registered entry : current[slot]) {
+                    if (entry.handler == handler) {
+                        entry.guard.setBudgetMillis(millis);
+                    }
+                }
+            }
+        }
+        
+        // Rename every registration of a handler, e.g. after the owning script is known
+        void setName(Object handler, String name) {
+            Registered[][] current = table.get();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                for (Registered entry : current[slot]) {
+                    if (entry.handler == handler) {
+                        entry.metrics.setName(name);
+                    }
+                }
+            }
+        }
+        
+        // Message handlers are matched by identity, other handler types by equals
+        private static int indexOf(Registered[] array, Object handler, boolean identity) {
+            for (int i = 0; i < array.length; i++) {
+                if (identity ? array[i].handler == handler : array[i].handler.equals(handler)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+    
+    // Registry slots, message handler slots are indexed by Priority ordinal
+    private static final int SLOT_MESSAGE_LOW = 0;
+    private static final int SLOT_MESSAGE_HIGH = SLOT_MESSAGE_LOW + Priority.HIGH.ordinal();
+    private static final int SLOT_FORBIDDEN = 3;
+    private static final int SLOT_TROOP = 4;
+    private static final int SLOT_FLOATING_WINDOW_CLICK = 5;
+    private static final int SLOT_MESSAGE_SENDING = 6;
+    private static final int SLOT_MENU_CREATION = 7;
+    private static final int SLOT_RAW_MESSAGE = 8;
+    private static final int SLOT_LOAD = 9;
+    private static final int SLOT_UNLOAD = 10;
+    // Slots used for registration; the per-type message index follows them
+    private static final int SLOT_COUNT = SLOT_UNLOAD + 1;
+    private static final int TYPE_COUNT = MessageType.values().length;
+    private static final int PRIORITY_COUNT = Priority.values().length;
+    private static final long ALL_TYPES = (1L << TYPE_COUNT) - 1L;
+    private static final int SLOT_MESSAGE_INDEX = SLOT_COUNT;
+    private static final int SLOT_TABLE_SIZE = SLOT_MESSAGE_INDEX + TYPE_COUNT * PRIORITY_COUNT;
+    
+    private static final String[] SLOT_NAMES = {
+            "message", "message", "message", "forbidden", "troop", "floatingWindowClick",
+            "messageSending", "menuCreation", "rawMessage", "load", "unload"
+    };
+    
+    // Dispatch metrics per event type, the message priority slots share one entry
+    private static final HandlerMetrics[] EVENT_METRICS = new HandlerMetrics[SLOT_COUNT];
+    static {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            EVENT_METRICS[slot] = slot > SLOT_MESSAGE_LOW && slot <= SLOT_MESSAGE_HIGH
+                ? EVENT_METRICS[SLOT_MESSAGE_LOW] : new HandlerMetrics(SLOT_NAMES[slot], "event");
+        }
+    }
+    
+    private static final HandlerRegistry REGISTRY = new HandlerRegistry(new Registered[SLOT_TABLE_SIZE][0]);
+    
     // Event dispatcher
     public static class EventDispatcher {
-        // Message handlers
-        private static List<PriorityHandler> messageHandlers = new ArrayList<>();
-        // Forbidden event handlers
-        private static List<ForbiddenEventHandler> forbiddenEventHandlers = new ArrayList<>();
-        // Troop event handlers
-        private static List<TroopEventHandler> troopEventHandlers = new ArrayList<>();
-        // Floating window click handlers
-        private static List<FloatingWindowClickHandler> floatingWindowClickHandlers = new ArrayList<>();
-        // Message sending handlers
-        private static List<MessageSendingHandler> messageSendingHandlers = new ArrayList<>();
-        // Menu creation handlers
-        private static List<MenuCreationHandler> menuCreationHandlers = new ArrayList<>();
-        // Raw message handlers
-        private static List<RawMessageHandler> rawMessageHandlers = new ArrayList<>();
-        // Load handlers
-        private static List<LoadHandler> loadHandlers = new ArrayList<>();
-        // Unload handlers
-        private static List<UnloadHandler> unloadHandlers = new ArrayList<>();
-        
-        private static boolean initialized = false;
-        
-        // Initialize dispatcher
-        private static void initialize() {
-            if (!initialized) {
-                initialized = true;
-                // Any initialization code here
+        // Per-thread consumed flag for the message currently being dispatched
+        private static final ThreadLocal<boolean[]> consumedFlag = new ThreadLocal<boolean[]>() {
+            protected boolean[] initialValue() {
+                return new boolean[1];
+            }
+        };
+        
+        private static volatile RegistrationListener registrationListener;
+        
+        public static void setRegistrationListener(RegistrationListener listener) {
+            registrationListener = listener;
+        }
+        
+        private static void notifyRegistered(Object handler) {
+            RegistrationListener listener = registrationListener;
+            if (listener != null) {
+                listener.onRegistered(handler);
             }
         }
         
@@ -201,306 +1136,481 @@ public class EventLibrary {
         
         // Register handler with specified priority (enum for better type safety)
         public static void register(MessageHandler handler, Priority priority) {
-            initialize();
-            if (handler != null) {
-                // Check if handler already exists
-                for (PriorityHandler ph : messageHandlers) {
-                    if (ph.handler == handler) {
-                        return; // Handler already registered
-                    }
-                }
-                messageHandlers.add(new PriorityHandler(handler, priority));
-                // Sort handlers by priority (highest first)
-                Collections.sort(messageHandlers, (a, b) -> b.priority - a.priority);
+            registerMessage(handler, priority, null);
+        }
+        
+        // Register handler for the given message types only; other types never reach it
+        public static void register(MessageHandler handler, Priority priority, MessageType... types) {
+            registerMessage(handler, priority, types);
+        }
+        
+        private static void registerMessage(Object handler, Priority priority, MessageType[] types) {
+            if (handler == null) {
+                return;
+            }
+            if (priority == null) {
+                priority = Priority.NORMAL;
+            }
+            Object target = handler;
+            long mask = typeMask(types);
+            if (handler instanceof TypeFilteredHandler) {
+                TypeFilteredHandler filtered = (TypeFilteredHandler) handler;
+                target = filtered.handler;
+                mask &= filtered.typeMask;
+            }
+            // One bucket per priority, a handler is registered at most once across all of them
+            int slot = SLOT_MESSAGE_LOW + priority.ordinal();
+            Registered entry = new Registered(handler, target, SLOT_NAMES[slot], mask);
+            if (REGISTRY.add(slot, entry, SLOT_MESSAGE_LOW, SLOT_MESSAGE_HIGH + 1, true)) {
+                notifyRegistered(handler);
             }
         }
         
         // Unregister message handler
         public static void unregister(MessageHandler handler) {
-            initialize();
-            if (handler != null) {
-                messageHandlers.removeIf(ph -> ph.handler == handler);
-            }
+            REGISTRY.remove(handler, SLOT_MESSAGE_LOW, SLOT_MESSAGE_HIGH + 1);
+        }
+        
+        // Context handlers share the message priority buckets with plain message handlers
+        public static void registerContext(MessageContextHandler handler) {
+            registerContext(handler, Priority.NORMAL);
+        }
+        
+        public static void registerContext(MessageContextHandler handler, Priority priority) {
+            registerMessage(handler, priority, null);
+        }
+        
+        public static void registerContext(MessageContextHandler handler, Priority priority, MessageType... types) {
+            registerMessage(handler, priority, types);
+        }
+        
+        public static void unregisterContext(MessageContextHandler handler) {
+            REGISTRY.remove(handler, SLOT_MESSAGE_LOW, SLOT_MESSAGE_HIGH + 1);
         }
         
-        // Dispatch message to all handlers
-        public static void dispatch(Object msg) {
-            initialize();
+        // Mark the message being dispatched on this thread as consumed
+        public static void consume() {
+            consumedFlag.get()[0] = true;
+        }
+        
+        // Dispatch message to handlers in priority order until one consumes it; returns true if consumed
+        public static boolean dispatch(Object msg) {
             if (msg == null) {
-                return;
+                return false;
             }
             
-            // Create a copy to avoid concurrent modification
-            List<PriorityHandler> handlersCopy = new ArrayList<>(messageHandlers);
-            
-            for (PriorityHandler ph : handlersCopy) {
-                try {
-                    ph.handler.handle(msg);
-                } catch (Exception e) {
-                    // Log error but continue processing other handlers
-                    System.err.println("Error in message handler: " + e.getMessage());
-                    e.printStackTrace();
+            Registered[][] table = REGISTRY.snapshot();
+            MessageContext ctx = contextOf(msg);
+            boolean[] consumed = consumedFlag.get();
+            // Save the outer state so a handler can dispatch another message on the same thread
+            boolean outer = consumed[0];
+            consumed[0] = false;
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            try {
+                // Only the subscribers of this message's type, highest priority first
+                int base = SLOT_MESSAGE_INDEX + ctx.getType().ordinal() * PRIORITY_COUNT;
+                for (int slot = base + PRIORITY_COUNT - 1; slot >= base; slot--) {
+                    for (Registered entry : table[slot]) {
+                        if (entry.guard.isQuarantined()) {
+                            continue;
+                        }
+                        long start = System.nanoTime();
+                        Object token = WATCHDOG.begin(entry.guard, false);
+                        boolean failed = true;
+                        try {
+                            if (entry.contextual) {
+                                ((MessageContextHandler) entry.target).handle(ctx);
+                            } else {
+                                ((MessageHandler) entry.target).handle(msg);
+                            }
+                            failed = false;
+                        } catch (Exception e) {
+                            // Log error but continue processing other handlers
+                            System.err.println("Error in message handler: " + e.getMessage());
+                            e.printStackTrace();
+                        } finally {
+                            long elapsed = System.nanoTime() - start;
+                            entry.metrics.record(elapsed, failed);
+                            WATCHDOG.end(token, entry.guard, elapsed);
+                        }
+                        anyFailed |= failed;
+                        if (consumed[0]) {
+                            return true;
+                        }
+                    }
                 }
+                return false;
+            } finally {
+                consumed[0] = outer;
+                EVENT_METRICS[SLOT_MESSAGE_LOW].record(System.nanoTime() - dispatchStart, anyFailed);
             }
         }
         
         // ==================== Forbidden event handlers ====================
         public static void register(ForbiddenEventHandler handler) {
-            initialize();
-            if (handler != null && !forbiddenEventHandlers.contains(handler)) {
-                forbiddenEventHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_FORBIDDEN, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(ForbiddenEventHandler handler) {
-            initialize();
-            if (handler != null) {
-                forbiddenEventHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_FORBIDDEN, SLOT_FORBIDDEN + 1);
         }
         
         public static void dispatchForbiddenEvent(String GroupUin, String UserUin, String OPUin, long time) {
-            initialize();
-            List<ForbiddenEventHandler> handlersCopy = new ArrayList<>(forbiddenEventHandlers);
-            for (ForbiddenEventHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_FORBIDDEN)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                ForbiddenEventHandler handler = (ForbiddenEventHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.onForbiddenEvent(GroupUin, UserUin, OPUin, time);
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in forbidden event handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_FORBIDDEN].record(System.nanoTime() - dispatchStart, anyFailed);
         }
         
         // ==================== Troop event handlers ====================
         public static void register(TroopEventHandler handler) {
-            initialize();
-            if (handler != null && !troopEventHandlers.contains(handler)) {
-                troopEventHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_TROOP, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(TroopEventHandler handler) {
-            initialize();
-            if (handler != null) {
-                troopEventHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_TROOP, SLOT_TROOP + 1);
         }
         
         public static void dispatchTroopEvent(String GroupUin, String UserUin, int type) {
-            initialize();
-            List<TroopEventHandler> handlersCopy = new ArrayList<>(troopEventHandlers);
-            for (TroopEventHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_TROOP)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                TroopEventHandler handler = (TroopEventHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.onTroopEvent(GroupUin, UserUin, type);
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in troop event handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_TROOP].record(System.nanoTime() - dispatchStart, anyFailed);
         }
         
         // ==================== Floating window click handlers ====================
         public static void register(FloatingWindowClickHandler handler) {
-            initialize();
-            if (handler != null && !floatingWindowClickHandlers.contains(handler)) {
-                floatingWindowClickHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_FLOATING_WINDOW_CLICK, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(FloatingWindowClickHandler handler) {
-            initialize();
-            if (handler != null) {
-                floatingWindowClickHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_FLOATING_WINDOW_CLICK, SLOT_FLOATING_WINDOW_CLICK + 1);
         }
         
         public static void dispatchFloatingWindowClick(int type, String uin) {
-            initialize();
-            List<FloatingWindowClickHandler> handlersCopy = new ArrayList<>(floatingWindowClickHandlers);
-            for (FloatingWindowClickHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_FLOATING_WINDOW_CLICK)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                FloatingWindowClickHandler handler = (FloatingWindowClickHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.onClickFloatingWindow(type, uin);
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in floating window click handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_FLOATING_WINDOW_CLICK].record(System.nanoTime() - dispatchStart, anyFailed);
         }
         
         // ==================== Message sending handlers ====================
         public static void register(MessageSendingHandler handler) {
-            initialize();
-            if (handler != null && !messageSendingHandlers.contains(handler)) {
-                messageSendingHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_MESSAGE_SENDING, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(MessageSendingHandler handler) {
-            initialize();
-            if (handler != null) {
-                messageSendingHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_MESSAGE_SENDING, SLOT_MESSAGE_SENDING + 1);
         }
         
         public static String dispatchMessageSending(String msg, String targetUin, int type) {
-            initialize();
             String result = msg;
-            List<MessageSendingHandler> handlersCopy = new ArrayList<>(messageSendingHandlers);
-            for (MessageSendingHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_MESSAGE_SENDING)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                MessageSendingHandler handler = (MessageSendingHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     String handlerResult = handler.getMsg(result, targetUin, type);
                     if (handlerResult != null) {
                         result = handlerResult;
                     }
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in message sending handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_MESSAGE_SENDING].record(System.nanoTime() - dispatchStart, anyFailed);
             return result;
         }
         
         // ==================== Menu creation handlers ====================
         public static void register(MenuCreationHandler handler) {
-            initialize();
-            if (handler != null && !menuCreationHandlers.contains(handler)) {
-                menuCreationHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_MENU_CREATION, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(MenuCreationHandler handler) {
-            initialize();
-            if (handler != null) {
-                menuCreationHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_MENU_CREATION, SLOT_MENU_CREATION + 1);
         }
         
         public static void dispatchMenuCreation(Object msg) {
-            initialize();
-            List<MenuCreationHandler> handlersCopy = new ArrayList<>(menuCreationHandlers);
-            for (MenuCreationHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_MENU_CREATION)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                MenuCreationHandler handler = (MenuCreationHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.onCreateMenu(msg);
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in menu creation handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_MENU_CREATION].record(System.nanoTime() - dispatchStart, anyFailed);
         }
         
         // ==================== Raw message handlers ====================
         public static void register(RawMessageHandler handler) {
-            initialize();
-            if (handler != null && !rawMessageHandlers.contains(handler)) {
-                rawMessageHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_RAW_MESSAGE, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(RawMessageHandler handler) {
-            initialize();
-            if (handler != null) {
-                rawMessageHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_RAW_MESSAGE, SLOT_RAW_MESSAGE + 1);
         }
         
         public static void dispatchRawMessage(Object msg) {
-            initialize();
-            List<RawMessageHandler> handlersCopy = new ArrayList<>(rawMessageHandlers);
-            for (RawMessageHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_RAW_MESSAGE)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                RawMessageHandler handler = (RawMessageHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.callbackOnRawMsg(msg);
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in raw message handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_RAW_MESSAGE].record(System.nanoTime() - dispatchStart, anyFailed);
         }
         
         // ==================== Load handlers ====================
         public static void register(LoadHandler handler) {
-            initialize();
-            if (handler != null && !loadHandlers.contains(handler)) {
-                loadHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_LOAD, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(LoadHandler handler) {
-            initialize();
-            if (handler != null) {
-                loadHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_LOAD, SLOT_LOAD + 1);
         }
         
         public static void dispatchLoad() {
-            initialize();
-            List<LoadHandler> handlersCopy = new ArrayList<>(loadHandlers);
-            for (LoadHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_LOAD)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                LoadHandler handler = (LoadHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.onLoad();
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in load handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_LOAD].record(System.nanoTime() - dispatchStart, anyFailed);
         }
         
         // ==================== Unload handlers ====================
         public static void register(UnloadHandler handler) {
-            initialize();
-            if (handler != null && !unloadHandlers.contains(handler)) {
-                unloadHandlers.add(handler);
+            if (handler != null && REGISTRY.add(SLOT_UNLOAD, handler)) {
+                notifyRegistered(handler);
             }
         }
         
         public static void unregister(UnloadHandler handler) {
-            initialize();
-            if (handler != null) {
-                unloadHandlers.remove(handler);
-            }
+            REGISTRY.remove(handler, SLOT_UNLOAD, SLOT_UNLOAD + 1);
         }
         
         public static void dispatchUnload() {
-            initialize();
-            List<UnloadHandler> handlersCopy = new ArrayList<>(unloadHandlers);
-            for (UnloadHandler handler : handlersCopy) {
+            long dispatchStart = System.nanoTime();
+            boolean anyFailed = false;
+            for (Registered entry : REGISTRY.get(SLOT_UNLOAD)) {
+                if (entry.guard.isQuarantined()) {
+                    continue;
+                }
+                UnloadHandler handler = (UnloadHandler) entry.handler;
+                long start = System.nanoTime();
+                Object token = WATCHDOG.begin(entry.guard, false);
+                boolean failed = true;
                 try {
                     handler.onUnLoad();
+                    failed = false;
                 } catch (Exception e) {
                     System.err.println("Error in unload handler: " + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    entry.metrics.record(elapsed, failed);
+                    WATCHDOG.end(token, entry.guard, elapsed);
                 }
+                anyFailed |= failed;
             }
+            EVENT_METRICS[SLOT_UNLOAD].record(System.nanoTime() - dispatchStart, anyFailed);
+        }
+        
+        // Remove a handler from every event it was registered for
+        public static void unregisterAll(Object handler) {
+            REGISTRY.remove(handler, 0, SLOT_COUNT);
         }
         
         // Get message handler count
         public static int getMessageHandlerCount() {
-            initialize();
-            return messageHandlers.size();
+            return REGISTRY.count(SLOT_MESSAGE_LOW, SLOT_MESSAGE_HIGH + 1);
         }
         
-        // Get total handler count
+        // Get total handler count, taken from a single registry snapshot
         public static int getTotalHandlerCount() {
-            initialize();
-            return messageHandlers.size() + forbiddenEventHandlers.size() + 
-                   troopEventHandlers.size() + floatingWindowClickHandlers.size() + 
-                   messageSendingHandlers.size() + menuCreationHandlers.size() + 
-                   rawMessageHandlers.size() + loadHandlers.size() + 
-                   unloadHandlers.size();
+            return REGISTRY.count(0, SLOT_COUNT);
         }
         
         // Clear all handlers
         public static void clear() {
-            initialize();
-            messageHandlers.clear();
-            forbiddenEventHandlers.clear();
-            troopEventHandlers.clear();
-            floatingWindowClickHandlers.clear();
-            messageSendingHandlers.clear();
-            menuCreationHandlers.clear();
-            rawMessageHandlers.clear();
-            loadHandlers.clear();
-            unloadHandlers.clear();
+            REGISTRY.clear();
+        }
+        
+        // Metrics of the currently registered handlers
+        public static List<HandlerMetrics> getHandlerMetrics() {
+            return REGISTRY.metrics();
+        }
+        
+        // Dispatch metrics per event type
+        public static List<HandlerMetrics> getEventMetrics() {
+            List<HandlerMetrics> result = new ArrayList<HandlerMetrics>();
+            for (int slot = SLOT_MESSAGE_HIGH; slot < SLOT_COUNT; slot++) {
+                result.add(EVENT_METRICS[slot]);
+            }
+            return result;
+        }
+        
+        // Guards (metrics plus watchdog state) of the currently registered handlers
+        public static List<HandlerGuard> getHandlerGuards() {
+            return REGISTRY.guards();
+        }
+        
+        // Time budget for one handler, overriding the watchdog default
+        public static void setHandlerBudget(Object handler, long millis) {
+            if (handler != null) {
+                REGISTRY.setBudget(handler, millis);
+            }
+        }
+        
+        public static HandlerWatchdog getWatchdog() {
+            return WATCHDOG;
+        }
+        
+        // Name shown for a handler in metrics reports (defaults to its class name)
+        public static void setHandlerName(Object handler, String name) {
+            if (handler != null && name != null) {
+                REGISTRY.setName(handler, name);
+            }
         }
     }
     
@@ -518,12 +1628,37 @@ public class EventLibrary {
         EventDispatcher.register(handler, priority);
     }
     
+    public static void registerHandler(MessageHandler handler, Priority priority, MessageType... types) {
+        EventDispatcher.register(handler, priority, types);
+    }
+    
     public static void unregisterHandler(MessageHandler handler) {
         EventDispatcher.unregister(handler);
     }
     
-    public static void dispatchMessage(Object msg) {
-        EventDispatcher.dispatch(msg);
+    public static void registerContextHandler(MessageContextHandler handler) {
+        EventDispatcher.registerContext(handler);
+    }
+    
+    public static void registerContextHandler(MessageContextHandler handler, Priority priority) {
+        EventDispatcher.registerContext(handler, priority);
+    }
+    
+    public static void registerContextHandler(MessageContextHandler handler, Priority priority, MessageType... types) {
+        EventDispatcher.registerContext(handler, priority, types);
+    }
+    
+    public static void unregisterContextHandler(MessageContextHandler handler) {
+        EventDispatcher.unregisterContext(handler);
+    }
+    
+    public static boolean dispatchMessage(Object msg) {
+        return EventDispatcher.dispatch(msg);
+    }
+    
+    // Call from a message handler to stop lower priority handlers from seeing the message
+    public static void consumeMessage() {
+        EventDispatcher.consume();
     }
     
     // ==================== Forbidden event handlers ====================
@@ -643,23 +1778,77 @@ public class EventLibrary {
         EventDispatcher.clear();
     }
     
+    public static void unregisterAll(Object handler) {
+        EventDispatcher.unregisterAll(handler);
+    }
+    
+    public static void setRegistrationListener(RegistrationListener listener) {
+        EventDispatcher.setRegistrationListener(listener);
+    }
+    
+    // ==================== Metrics ====================
+    public static List<HandlerMetrics> getHandlerMetrics() {
+        return EventDispatcher.getHandlerMetrics();
+    }
+    
+    public static List<HandlerMetrics> getEventMetrics() {
+        return EventDispatcher.getEventMetrics();
+    }
+    
+    public static void setHandlerName(Object handler, String name) {
+        EventDispatcher.setHandlerName(handler, name);
+    }
+    
+    public static void setHandlerBudget(Object handler, long millis) {
+        EventDispatcher.setHandlerBudget(handler, millis);
+    }
+    
+    public static HandlerWatchdog getWatchdog() {
+        return EventDispatcher.getWatchdog();
+    }
+    
+    // One line per event type that was dispatched, then one per registered handler
+    public static String formatMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for (HandlerMetrics metrics : getEventMetrics()) {
+            if (metrics.getInvocations() > 0) {
+                sb.append(metrics).append("\n");
+            }
+        }
+        for (HandlerGuard guard : EventDispatcher.getHandlerGuards()) {
+            sb.append(guard).append("\n");
+        }
+        return sb.toString();
+    }
+    
     // Helper method to get message type from message object
     public static MessageType getMessageType(Object msg) {
-        try {
-            if (msg != null) {
-                // Use reflection to get MessageType field
-                java.lang.reflect.Field field = msg.getClass().getField("MessageType");
-                if (field != null) {
-                    Object value = field.get(msg);
-                    if (value instanceof Integer) {
-                        return MessageType.fromCode((Integer) value);
-                    }
-                }
-            }
-        } catch (Exception e) {
-            // Ignore reflection errors
+        if (msg == null) {
+            return MessageType.UNKNOWN;
+        }
+        if (msg instanceof MessageContext) {
+            return ((MessageContext) msg).getType();
+        }
+        MessageContext ctx = lastContext.get();
+        if (ctx != null && ctx.getMessage() == msg) {
+            return ctx.getType();
+        }
+        return MessageAdapter.of(msg.getClass()).readType(msg);
+    }
+    
+    // Context of a host message; repeated calls for the same message on one thread return the same instance
+    public static MessageContext contextOf(Object msg) {
+        if (msg instanceof MessageContext) {
+            return (MessageContext) msg;
+        }
+        MessageContext ctx = lastContext.get();
+        if (ctx != null && ctx.getMessage() == msg) {
+            return ctx;
         }
-        return MessageType.UNKNOWN;
+        ctx = msg != null ? MessageAdapter.of(msg.getClass()).read(msg)
+            : new MessageContext(null, null, false, null, null, MessageType.UNKNOWN);
+        lastContext.set(ctx);
+        return ctx;
     }
     
     // Helper method to create a handler from a bsh closure (for better bsh compatibility)
@@ -677,18 +1866,10 @@ public class EventLibrary {
         };
     }
     
-    // Helper method to create a handler that only handles specific message types
+    // Helper method to create a handler that only handles specific message types. Registering it is
+    // the same as registerHandler(handler, priority, types): the dispatcher routes by type and only
+    // calls the inner handler for matching messages.
     public static MessageHandler createTypeSpecificHandler(final MessageHandler handler, final MessageType... types) {
-        return new MessageHandler() {
-            public void handle(Object msg) {
-                MessageType type = getMessageType(msg);
-                for (MessageType t : types) {
-                    if (t == type) {
-                        handler.handle(msg);
-                        break;
-                    }
-                }
-            }
-        };
+        return new TypeFilteredHandler(handler, types != null && types.length > 0 ? typeMask(types) : 0L);
     }
 }
@@ -0,0 +1,1280 @@
+// ExecLibrary.java
+// Execution engine for script handlers: bounded worker pool with per-key ordering,
+// the startup graph that loads libraries and scripts in dependency order,
+// the script cache that skips re-parsing unchanged scripts, and the lifecycle manager
+// that swaps a reloaded script's registrations instead of appending to them
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExecLibrary {
+    // Task interface (implemented once in main.java, receives the message per submit)
+    public interface MessageTask {
+        void run(Object msg);
+    }
+
+    // Script handler interface, handlers implementing it are called without reflection
+    public interface ScriptHandler {
+        void onMessage(Object msg);
+    }
+
+    // Message listener interface (for registerMessageListener)
+    public interface ScriptListener {
+        void onMessageReceived(String messageType, Object data);
+    }
+
+    // Startup step (implemented in main.java as anonymous classes)
+    public interface StartupStep {
+        void run() throws Exception;
+    }
+
+    // Readiness signal polled by awaitReady, e.g. "class X is resolvable"
+    public interface Readiness {
+        boolean isReady();
+    }
+
+    // Script parser and evaluator (implemented in main.java on top of the host interpreter).
+    // compile returns the parsed form, run evaluates it; the parsed form should be Serializable
+    public interface ScriptCompiler {
+        Object compile(String name, String source) throws Exception;
+
+        void run(String name, Object compiled) throws Exception;
+    }
+
+    // Something a script registered (handler, listener, command...): publish makes it live, dispose removes it.
+    // dispose must be harmless for a registration that was never published or was already replaced
+    public interface Registration {
+        void publish();
+
+        void dispose();
+    }
+
+    // Where the lifecycle watcher reads scripts from (implemented in main.java over the scripts directory)
+    public interface ScriptSource {
+        // Content hash of the script, null if it no longer exists
+        String hash(String name);
+
+        void reload(String name) throws Exception;
+    }
+
+    // What to do when the queue is full
+    public enum OverflowPolicy {
+        // Drop the new message and count it
+        SHED,
+        // Run the task on the submitting thread (backpressure on the caller)
+        CALLER_RUNS
+    }
+
+    // ==================== Keyed executor ====================
+    // Tasks with the same key run one at a time in submit order,
+    // tasks with different keys run in parallel on the worker pool.
+    public static class KeyedExecutor {
+        // Per-key FIFO, drained by at most one worker at a time
+        private class KeyQueue implements Runnable {
+            final String key;
+            final ArrayDeque<Object[]> tasks = new ArrayDeque<>();
+            boolean scheduled = false;
+
+            KeyQueue(String key) {
+                this.key = key;
+            }
+
+            // Runs on a pool thread
+            public void run() {
+                IN_WORKER.set(Boolean.TRUE);
+                try {
+                    drain();
+                } finally {
+                    IN_WORKER.remove();
+                }
+            }
+
+            void drain() {
+                while (true) {
+                    Object[] item;
+                    synchronized (this) {
+                        item = tasks.poll();
+                        if (item == null) {
+                            scheduled = false;
+                            queues.remove(key, this);
+                            return;
+                        }
+                    }
+                    pending.decrementAndGet();
+                    runTask((MessageTask) item[0], item[1]);
+                }
+            }
+        }
+
+        private final String name;
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final ExecutorService pool;
+        private final boolean virtualThreads;
+        private final ConcurrentHashMap<String, KeyQueue> queues = new ConcurrentHashMap<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong shed = new AtomicLong();
+        private volatile boolean shutdown = false;
+
+        public KeyedExecutor(String name, int threads, int capacity, OverflowPolicy policy, boolean useVirtualThreads) {
+            this.name = name;
+            this.capacity = Math.max(1, capacity);
+            this.policy = policy != null ? policy : OverflowPolicy.SHED;
+            ExecutorService virtualPool = useVirtualThreads ? createVirtualThreadExecutor() : null;
+            this.virtualThreads = virtualPool != null;
+            this.pool = virtualPool != null ? virtualPool : createPlatformPool(name, Math.max(1, threads));
+        }
+
+        // Submit a task, returns false if it was shed
+        public boolean submit(String key, MessageTask task, Object msg) {
+            if (task == null) {
+                return false;
+            }
+            if (shutdown) {
+                shed.incrementAndGet();
+                return false;
+            }
+            submitted.incrementAndGet();
+            if (pending.incrementAndGet() > capacity) {
+                pending.decrementAndGet();
+                if (policy == OverflowPolicy.CALLER_RUNS) {
+                    runTask(task, msg);
+                    return true;
+                }
+                shed.incrementAndGet();
+                return false;
+            }
+            String k = key != null ? key : "";
+            while (true) {
+                KeyQueue queue = queues.get(k);
+                if (queue == null) {
+                    KeyQueue created = new KeyQueue(k);
+                    queue = queues.putIfAbsent(k, created);
+                    if (queue == null) {
+                        queue = created;
+                    }
+                }
+                boolean schedule;
+                synchronized (queue) {
+                    // Queue may have been retired by a worker between get() and lock
+                    if (queues.get(k) != queue) {
+                        continue;
+                    }
+                    queue.tasks.add(new Object[] {task, msg});
+                    schedule = !queue.scheduled;
+                    queue.scheduled = true;
+                }
+                if (schedule) {
+                    try {
+                        pool.execute(queue);
+                    } catch (RuntimeException e) {
+                        // Pool rejected (shut down): run inline so nothing is lost silently
+                        queue.drain();
+                    }
+                }
+                return true;
+            }
+        }
+
+        private void runTask(MessageTask task, Object msg) {
+            try {
+                task.run(msg);
+                completed.incrementAndGet();
+            } catch (Throwable e) {
+                failed.incrementAndGet();
+                System.err.println("Error in " + name + " task: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        public int getPendingCount() {
+            return pending.get();
+        }
+
+        public int getActiveKeyCount() {
+            return queues.size();
+        }
+
+        public long getSubmittedCount() {
+            return submitted.get();
+        }
+
+        public long getCompletedCount() {
+            return completed.get();
+        }
+
+        public long getFailedCount() {
+            return failed.get();
+        }
+
+        public long getShedCount() {
+            return shed.get();
+        }
+
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public String getStats() {
+            return name + ": pending=" + pending.get() + ", keys=" + queues.size()
+                + ", submitted=" + submitted.get() + ", completed=" + completed.get()
+                + ", failed=" + failed.get() + ", shed=" + shed.get()
+                + (virtualThreads ? ", virtual" : "");
+        }
+
+        // Stop accepting tasks and wait up to timeoutMillis for queued ones
+        public void shutdown(long timeoutMillis) {
+            shutdown = true;
+            pool.shutdown();
+            try {
+                pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ==================== Startup graph ====================
+    // Steps form a DAG: a step starts as soon as all of its dependencies have finished,
+    // independent steps run in parallel. A failed step skips everything that depends on it.
+    public static class StartupGraph {
+        private static final int PENDING = 0;
+        private static final int DONE = 1;
+        private static final int FAILED = 2;
+        private static final int SKIPPED = 3;
+
+        private static class Node {
+            final String name;
+            final String phase;
+            final StartupStep step;
+            final String[] dependsOn;
+            final List<Node> dependents = new ArrayList<>();
+            int remaining;
+            volatile int state = PENDING;
+            volatile long startNanos;
+            volatile long endNanos;
+            volatile String error;
+
+            Node(String name, String phase, StartupStep step, String[] dependsOn) {
+                this.name = name;
+                this.phase = phase;
+                this.step = step;
+                this.dependsOn = dependsOn != null ? dependsOn : new String[0];
+            }
+
+            long millis() {
+                return endNanos > startNanos ? (endNanos - startNanos) / 1000000L : 0;
+            }
+        }
+
+        private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>();
+        private long runStartNanos;
+        private long runEndNanos;
+        private ExecutorService pool;
+        private CountDownLatch finished;
+
+        // Add a step; dependencies may be added later, unknown ones fail the step at run()
+        public synchronized void add(String name, String phase, StartupStep step, String... dependsOn) {
+            if (nodes.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate startup step: " + name);
+            }
+            nodes.put(name, new Node(name, phase, step, dependsOn));
+        }
+
+        public synchronized boolean contains(String name) {
+            return nodes.containsKey(name);
+        }
+
+        // Run all steps with up to parallelism threads, waits up to timeoutMillis.
+        // Returns true if every step finished successfully.
+        public boolean run(int parallelism, long timeoutMillis) {
+            List<Node> ready = new ArrayList<>();
+            synchronized (this) {
+                for (Node node : nodes.values()) {
+                    node.remaining = 0;
+                    node.dependents.clear();
+                }
+                for (Node node : nodes.values()) {
+                    for (String dep : node.dependsOn) {
+                        Node parent = nodes.get(dep);
+                        if (parent == null) {
+                            node.state = FAILED;
+                            node.error = "unknown dependency " + dep;
+                            continue;
+                        }
+                        parent.dependents.add(node);
+                        node.remaining++;
+                    }
+                }
+                finished = new CountDownLatch(nodes.size());
+                for (Node node : nodes.values()) {
+                    if (node.state == FAILED) {
+                        finished.countDown();
+                    }
+                }
+                // Dependents of steps that failed validation are skipped right away
+                for (Node node : new ArrayList<>(nodes.values())) {
+                    if (node.state == FAILED) {
+                        skipDependents(node);
+                    }
+                }
+                // Kahn's algorithm: steps that never reach zero remaining dependencies are in a cycle
+                Map<Node, Integer> indegree = new IdentityHashMap<>();
+                ArrayDeque<Node> queue = new ArrayDeque<>();
+                for (Node node : nodes.values()) {
+                    indegree.put(node, node.remaining);
+                    if (node.remaining == 0) {
+                        queue.add(node);
+                    }
+                }
+                while (!queue.isEmpty()) {
+                    for (Node child : queue.poll().dependents) {
+                        int left = indegree.get(child) - 1;
+                        indegree.put(child, left);
+                        if (left == 0) {
+                            queue.add(child);
+                        }
+                    }
+                }
+                for (Node node : nodes.values()) {
+                    if (indegree.get(node) > 0 && node.state == PENDING) {
+                        node.state = SKIPPED;
+                        node.error = "dependency cycle";
+                        finished.countDown();
+                    }
+                }
+                for (Node node : nodes.values()) {
+                    if (node.state == PENDING && node.remaining == 0) {
+                        ready.add(node);
+                    }
+                }
+            }
+            runStartNanos = System.nanoTime();
+            pool = createPlatformPool("startup", Math.max(1, parallelism));
+            for (Node node : ready) {
+                schedule(node);
+            }
+            boolean completed = false;
+            try {
+                completed = finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            runEndNanos = System.nanoTime();
+            pool.shutdown();
+            if (!completed) {
+                synchronized (this) {
+                    for (Node node : nodes.values()) {
+                        if (node.state == PENDING) {
+                            node.error = "timed out";
+                        }
+                    }
+                }
+                return false;
+            }
+            boolean ok = true;
+            synchronized (this) {
+                for (Node node : nodes.values()) {
+                    ok &= node.state == DONE;
+                }
+            }
+            return ok;
+        }
+
+        private void schedule(final Node node) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    execute(node);
+                }
+            });
+        }
+
+        private void execute(Node node) {
+            node.startNanos = System.nanoTime();
+            try {
+                node.step.run();
+                node.state = DONE;
+            } catch (Throwable e) {
+                node.state = FAILED;
+                node.error = String.valueOf(e.getMessage() != null ? e.getMessage() : e);
+            }
+            node.endNanos = System.nanoTime();
+            List<Node> next = new ArrayList<>();
+            synchronized (this) {
+                if (node.state == DONE) {
+                    for (Node child : node.dependents) {
+                        if (child.state == PENDING && --child.remaining == 0) {
+                            next.add(child);
+                        }
+                    }
+                } else {
+                    skipDependents(node);
+                }
+            }
+            finished.countDown();
+            for (Node child : next) {
+                schedule(child);
+            }
+        }
+
+        // Caller holds the lock
+        private void skipDependents(Node node) {
+            for (Node child : node.dependents) {
+                if (child.state == PENDING) {
+                    child.state = SKIPPED;
+                    child.error = "depends on " + node.name;
+                    finished.countDown();
+                    skipDependents(child);
+                }
+            }
+        }
+
+        // Wall time of the whole run in milliseconds
+        public long getTotalMillis() {
+            return runEndNanos > runStartNanos ? (runEndNanos - runStartNanos) / 1000000L : 0;
+        }
+
+        public synchronized long getStepMillis(String name) {
+            Node node = nodes.get(name);
+            return node != null ? node.millis() : -1;
+        }
+
+        // One line per phase (wall time from its first start to its last end) plus failures
+        public synchronized String getReport() {
+            Map<String, long[]> phases = new LinkedHashMap<>(); // {firstStart, lastEnd, count, slowestMillis}
+            Map<String, String> slowest = new LinkedHashMap<>();
+            StringBuilder problems = new StringBuilder();
+            for (Node node : nodes.values()) {
+                if (node.state != DONE && node.error != null) {
+                    problems.append("\n  ").append(node.state == FAILED ? "failed " : node.state == SKIPPED ? "skipped " : "pending ")
+                        .append(node.name).append(": ").append(node.error);
+                }
+                if (node.startNanos == 0) {
+                    continue;
+                }
+                long[] p = phases.get(node.phase);
+                if (p == null) {
+                    p = new long[] {node.startNanos, node.endNanos, 0, -1};
+                    phases.put(node.phase, p);
+                }
+                p[0] = Math.min(p[0], node.startNanos);
+                p[1] = Math.max(p[1], node.endNanos);
+                p[2]++;
+                if (node.millis() > p[3]) {
+                    p[3] = node.millis();
+                    slowest.put(node.phase, node.name);
+                }
+            }
+            StringBuilder sb = new StringBuilder("startup ").append(getTotalMillis()).append("ms");
+            for (Map.Entry<String, long[]> e : phases.entrySet()) {
+                long[] p = e.getValue();
+                sb.append("\n  ").append(e.getKey()).append(": ").append((p[1] - p[0]) / 1000000L).append("ms, ")
+                  .append(p[2]).append(" steps, slowest ").append(slowest.get(e.getKey())).append(' ')
+                  .append(p[3]).append("ms");
+            }
+            return sb.append(problems).toString();
+        }
+    }
+
+    // Poll a readiness signal with exponential backoff (1ms .. 50ms), returns false on timeout
+    public static boolean awaitReady(Readiness readiness, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long delay = 1;
+        while (true) {
+            try {
+                if (readiness.isReady()) {
+                    return true;
+                }
+            } catch (Throwable e) {
+                // Not ready yet
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(delay, left));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delay = Math.min(delay * 2, 50);
+        }
+    }
+
+    // ==================== Script cache ====================
+    // Parsed scripts keyed by SHA-256 of their source. The parsed form is kept serialized, in memory
+    // and under the cache directory, and a fresh copy is deserialized for every run, so state the
+    // interpreter caches on parse nodes during one run never leaks into the next.
+    public static class ScriptCache {
+        private final ScriptCompiler compiler;
+        private final File dir;
+        private final ClassLoader loader;
+        private final int maxEntries;
+        private final Map<String, Entry> entries;
+        private final LoadTimer memoryHits = new LoadTimer();
+        private final LoadTimer diskHits = new LoadTimer();
+        private final LoadTimer misses = new LoadTimer();
+        private final LoadTimer uncacheable = new LoadTimer();
+        private final AtomicLong parseNanos = new AtomicLong();
+        private final AtomicLong invalidations = new AtomicLong();
+        private final AtomicLong diskErrors = new AtomicLong();
+        private final AtomicLong spareHits = new AtomicLong();
+        // Deserializes the next copy of a script's parse after it ran, off the load path
+        private ExecutorService spareMaker;
+
+        // The parse cannot be run twice: the interpreter caches resolved classes in the nodes, which go
+        // stale when the script redefines its classes. A memory hit runs an unused copy (spare) instead,
+        // and the next copy is prepared in the background once it has run.
+        private static final class Entry {
+            final String hash;
+            final byte[] data;
+            Object spare;
+
+            Entry(String hash, byte[] data) {
+                this.hash = hash;
+                this.data = data;
+            }
+        }
+
+        // dir may be null (memory only); loader resolves the parse node classes when deserializing
+        public ScriptCache(ScriptCompiler compiler, File dir, ClassLoader loader, final int maxEntries) {
+            this.compiler = compiler;
+            this.dir = dir;
+            this.loader = loader;
+            this.maxEntries = Math.max(1, maxEntries);
+            this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > ScriptCache.this.maxEntries;
+                }
+            };
+            if (dir != null) {
+                dir.mkdirs();
+            }
+        }
+
+        // Parse (or reuse the cached parse of) the source and run it
+        public void load(String name, String source) throws Exception {
+            long start = System.nanoTime();
+            String hash = hash(source);
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(name);
+            }
+            LoadTimer timer = memoryHits;
+            if (entry == null || !entry.hash.equals(hash)) {
+                entry = null;
+                byte[] data = readFile(name, hash);
+                timer = diskHits;
+                if (data == null) {
+                    long parseStart = System.nanoTime();
+                    Object compiled = compiler.compile(name, source);
+                    parseNanos.addAndGet(System.nanoTime() - parseStart);
+                    data = serialize(compiled);
+                    if (data == null) {
+                        // Not serializable: run the fresh parse, nothing to cache
+                        compiler.run(name, compiled);
+                        uncacheable.record(System.nanoTime() - start);
+                        return;
+                    }
+                    timer = misses;
+                    writeFile(name, hash, data);
+                    // The fresh parse has not been run yet, use it directly this time
+                    entry = new Entry(hash, data);
+                    put(name, entry);
+                    compiler.run(name, compiled);
+                    timer.record(System.nanoTime() - start);
+                    prepareSpare(name, entry);
+                    return;
+                }
+                entry = new Entry(hash, data);
+                put(name, entry);
+            }
+            Object compiled;
+            synchronized (entries) {
+                compiled = entry.spare;
+                entry.spare = null;
+            }
+            if (compiled != null) {
+                spareHits.incrementAndGet();
+            } else {
+                compiled = deserialize(entry.data);
+            }
+            if (compiled == null) {
+                // Cached copy unreadable (e.g. interpreter upgraded): drop it and parse again
+                invalidate(name);
+                load(name, source);
+                return;
+            }
+            compiler.run(name, compiled);
+            timer.record(System.nanoTime() - start);
+            prepareSpare(name, entry);
+        }
+
+        private void prepareSpare(final String name, final Entry entry) {
+            ExecutorService maker;
+            synchronized (this) {
+                if (spareMaker == null) {
+                    spareMaker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "script-cache-spare");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+                maker = spareMaker;
+            }
+            maker.execute(new Runnable() {
+                public void run() {
+                    synchronized (entries) {
+                        if (entry.spare != null || entries.get(name) != entry) {
+                            return;
+                        }
+                    }
+                    Object copy = deserialize(entry.data);
+                    synchronized (entries) {
+                        // Only keep it while the entry is still the current version of the script
+                        if (copy != null && entry.spare == null && entries.get(name) == entry) {
+                            entry.spare = copy;
+                        }
+                    }
+                }
+            });
+        }
+
+        // Forget a script, e.g. after it was rewritten (the hash check alone would also catch that)
+        public void invalidate(String name) {
+            synchronized (entries) {
+                entries.remove(name);
+            }
+            deleteFiles(name, null);
+            invalidations.incrementAndGet();
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+            File[] files = dir != null ? dir.listFiles() : null;
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(".bin")) {
+                        file.delete();
+                    }
+                }
+            }
+            invalidations.incrementAndGet();
+        }
+
+        public int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        public String getStats() {
+            long parses = misses.count.get() + uncacheable.count.get();
+            return "script cache: " + size() + " entries"
+                + "\n  memory hits: " + memoryHits + " (" + spareHits.get() + " without deserializing)"
+                + "\n  disk hits: " + diskHits
+                + "\n  misses: " + misses
+                + (uncacheable.count.get() > 0 ? "\n  uncacheable: " + uncacheable : "")
+                + "\n  parse avg " + (parses > 0 ? parseNanos.get() / parses / 1000L / 1000.0 : 0) + "ms"
+                + ", invalidations " + invalidations.get() + ", disk errors " + diskErrors.get();
+        }
+
+        private void put(String name, Entry entry) {
+            synchronized (entries) {
+                entries.put(name, entry);
+            }
+        }
+
+        private File fileFor(String name, String hash) {
+            return new File(dir, safeName(name) + "-" + hash.substring(0, 16) + ".bin");
+        }
+
+        private byte[] readFile(String name, String hash) {
+            if (dir == null) {
+                return null;
+            }
+            File file = fileFor(name, hash);
+            if (!file.isFile()) {
+                return null;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                diskErrors.incrementAndGet();
+                return null;
+            }
+        }
+
+        private void writeFile(String name, String hash, byte[] data) {
+            if (dir == null) {
+                return;
+            }
+            File file = fileFor(name, hash);
+            File tmp = new File(dir, file.getName() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(data);
+            } catch (IOException e) {
+                diskErrors.incrementAndGet();
+                tmp.delete();
+                return;
+            }
+            // Older versions of the same script are no longer reachable
+            deleteFiles(name, file.getName());
+            if (!tmp.renameTo(file)) {
+                diskErrors.incrementAndGet();
+                tmp.delete();
+            }
+        }
+
+        private void deleteFiles(String name, String keep) {
+            File[] files = dir != null ? dir.listFiles() : null;
+            if (files == null) {
+                return;
+            }
+            String prefix = safeName(name) + "-";
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.startsWith(prefix) && fileName.endsWith(".bin") && !fileName.equals(keep)
+                        && fileName.length() == prefix.length() + 16 + 4) {
+                    file.delete();
+                }
+            }
+        }
+
+        private static byte[] serialize(Object compiled) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(compiled);
+                out.close();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private Object deserialize(byte[] data) {
+            try {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+                    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                        if (loader != null) {
+                            try {
+                                return Class.forName(desc.getName(), false, loader);
+                            } catch (ClassNotFoundException e) {
+                                // Fall back to the default resolution (java.* and this library)
+                            }
+                        }
+                        return super.resolveClass(desc);
+                    }
+                };
+                return in.readObject();
+            } catch (Exception e) {
+                diskErrors.incrementAndGet();
+                return null;
+            }
+        }
+
+        private static String safeName(String name) {
+            StringBuilder sb = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '_' ? c : '_');
+            }
+            return sb.toString();
+        }
+
+        public static String hash(String source) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+                StringBuilder sb = new StringBuilder(digest.length * 2);
+                for (byte b : digest) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return sb.toString();
+            } catch (Exception e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+
+    // Count, average and max of load times
+    private static final class LoadTimer {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+
+        public String toString() {
+            long n = count.get();
+            return n + " (avg " + (n > 0 ? totalNanos.get() / n / 1000L / 1000.0 : 0) + "ms, max "
+                + maxNanos.get() / 1000L / 1000.0 + "ms)";
+        }
+    }
+
+    // ==================== Script lifecycle ====================
+    // Tracks what each script registered. While a script loads, its registrations are staged on the
+    // loading thread (so parallel loads do not mix); when the load succeeds they are published and
+    // the previous load's registrations disposed under one lock. A failed load publishes nothing
+    // and leaves the previous version running.
+    public static class ScriptLifecycle {
+        private final ThreadLocal<Loading> loading = new ThreadLocal<>();
+        private final Map<String, Loaded> scripts = new LinkedHashMap<>();
+        private final Object swapLock = new Object();
+        private final AtomicLong loads = new AtomicLong();
+        private final AtomicLong failedLoads = new AtomicLong();
+        private final AtomicLong reloads = new AtomicLong();
+        private final AtomicLong disposed = new AtomicLong();
+        private volatile Thread watcher;
+        private volatile String lastWatchError;
+
+        private static final class Loading {
+            final String name;
+            final List<Registration> staged = new ArrayList<>();
+            final Loading outer;
+
+            Loading(String name, Loading outer) {
+                this.name = name;
+                this.outer = outer;
+            }
+        }
+
+        private static final class Loaded {
+            final String hash;
+            final List<Registration> registrations;
+            String failedHash;
+
+            Loaded(String hash, List<Registration> registrations) {
+                this.hash = hash;
+                this.registrations = registrations;
+            }
+        }
+
+        // Run body as the load of script name; hash identifies the content (may be null)
+        public void load(String name, String hash, StartupStep body) throws Exception {
+            Loading current = new Loading(name, loading.get());
+            loading.set(current);
+            try {
+                body.run();
+            } catch (Exception e) {
+                failedLoads.incrementAndGet();
+                // Some registrations go live immediately (e.g. EventLibrary's), undo them too
+                disposeAll(current.staged);
+                synchronized (swapLock) {
+                    Loaded previous = scripts.get(name);
+                    if (previous != null) {
+                        // Not retried by the watcher until the content changes again
+                        previous.failedHash = hash;
+                    }
+                }
+                throw e;
+            } finally {
+                if (current.outer != null) {
+                    loading.set(current.outer);
+                } else {
+                    loading.remove();
+                }
+            }
+            List<Registration> old;
+            synchronized (swapLock) {
+                Loaded previous = scripts.put(name, new Loaded(hash, current.staged));
+                old = previous != null ? previous.registrations : null;
+                for (Registration r : current.staged) {
+                    r.publish();
+                }
+                disposeAll(old);
+            }
+            loads.incrementAndGet();
+            if (old != null) {
+                reloads.incrementAndGet();
+            }
+        }
+
+        // Called by the registration functions: staged if a script is loading on this thread,
+        // otherwise published immediately and not owned by any script
+        public void register(Registration registration) {
+            Loading current = loading.get();
+            if (current != null) {
+                current.staged.add(registration);
+            } else {
+                registration.publish();
+            }
+        }
+
+        // Script loading on this thread, null outside a load
+        public String getLoadingScript() {
+            Loading current = loading.get();
+            return current != null ? current.name : null;
+        }
+
+        // Dispose everything a script registered and forget it
+        public boolean unload(String name) {
+            synchronized (swapLock) {
+                Loaded previous = scripts.remove(name);
+                if (previous == null) {
+                    return false;
+                }
+                disposeAll(previous.registrations);
+                return true;
+            }
+        }
+
+        public void unloadAll() {
+            synchronized (swapLock) {
+                for (Loaded loaded : scripts.values()) {
+                    disposeAll(loaded.registrations);
+                }
+                scripts.clear();
+            }
+        }
+
+        public List<String> getScripts() {
+            synchronized (swapLock) {
+                return new ArrayList<>(scripts.keySet());
+            }
+        }
+
+        public String getHash(String name) {
+            synchronized (swapLock) {
+                Loaded loaded = scripts.get(name);
+                return loaded != null ? loaded.hash : null;
+            }
+        }
+
+        public int getRegistrationCount(String name) {
+            synchronized (swapLock) {
+                Loaded loaded = scripts.get(name);
+                return loaded != null ? loaded.registrations.size() : 0;
+            }
+        }
+
+        // Poll the loaded scripts every intervalMillis and reload those whose content hash changed;
+        // scripts whose file disappeared are unloaded
+        public synchronized void startWatching(final ScriptSource source, final long intervalMillis) {
+            if (watcher != null) {
+                return;
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (watcher == Thread.currentThread()) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        poll(source);
+                    }
+                }
+            }, "script-watcher");
+            t.setDaemon(true);
+            watcher = t;
+            t.start();
+        }
+
+        public synchronized void stopWatching() {
+            Thread t = watcher;
+            watcher = null;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+
+        // One watcher pass, returns the scripts that were reloaded or unloaded
+        public List<String> poll(ScriptSource source) {
+            List<String> changed = new ArrayList<>();
+            for (String name : getScripts()) {
+                String hash;
+                try {
+                    hash = source.hash(name);
+                } catch (RuntimeException e) {
+                    lastWatchError = name + ": " + e;
+                    continue;
+                }
+                String loadedHash;
+                String failedHash;
+                synchronized (swapLock) {
+                    Loaded loaded = scripts.get(name);
+                    if (loaded == null) {
+                        continue;
+                    }
+                    loadedHash = loaded.hash;
+                    failedHash = loaded.failedHash;
+                }
+                if (hash == null) {
+                    unload(name);
+                    changed.add(name);
+                } else if (!hash.equals(loadedHash) && !hash.equals(failedHash)) {
+                    try {
+                        source.reload(name);
+                    } catch (Exception e) {
+                        lastWatchError = name + ": " + e;
+                    }
+                    changed.add(name);
+                }
+            }
+            return changed;
+        }
+
+        public String getStats() {
+            int scriptCount;
+            int registrations = 0;
+            synchronized (swapLock) {
+                scriptCount = scripts.size();
+                for (Loaded loaded : scripts.values()) {
+                    registrations += loaded.registrations.size();
+                }
+            }
+            String error = lastWatchError;
+            return "scripts: " + scriptCount + " loaded, " + registrations + " registrations"
+                + "\n  loads " + loads.get() + " (reloads " + reloads.get() + ", failed " + failedLoads.get()
+                + "), disposed " + disposed.get()
+                + "\n  watcher: " + (watcher != null ? "running" : "stopped")
+                + (error != null ? "\n  last error: " + error : "");
+        }
+
+        private void disposeAll(List<Registration> registrations) {
+            if (registrations == null) {
+                return;
+            }
+            for (Registration r : registrations) {
+                try {
+                    r.dispose();
+                } catch (RuntimeException e) {
+                    // One broken undo must not keep the rest registered
+                }
+                disposed.incrementAndGet();
+            }
+        }
+    }
+
+    // ==================== Handler binding ====================
+    // Method lookup is resolved once at registration, invocation is a direct call or a cached Method
+    public static class Invoker {
+        private final Object target;
+        private final Method method;
+        private final String name;
+        private final boolean takesContext;
+
+        Invoker(Object target, Method method) {
+            this(target, method, false);
+        }
+
+        Invoker(Object target, Method method, boolean takesContext) {
+            this.target = target;
+            this.method = method;
+            this.name = target.getClass().getName();
+            this.takesContext = takesContext;
+        }
+
+        // True when bound to onMessage(contextType) rather than onMessage(Object)
+        public boolean takesContext() {
+            return takesContext;
+        }
+
+        public Object getTarget() {
+            return target;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void invoke(Object arg) throws Exception {
+            if (method == null) {
+                ((ScriptHandler) target).onMessage(arg);
+                return;
+            }
+            try {
+                method.invoke(target, arg);
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            }
+        }
+
+        public void invoke(String messageType, Object data) throws Exception {
+            if (method == null) {
+                ((ScriptListener) target).onMessageReceived(messageType, data);
+                return;
+            }
+            try {
+                method.invoke(target, messageType, data);
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            }
+        }
+
+        private static Exception unwrap(InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                return (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return e;
+        }
+    }
+
+    // Bind a message handler: ScriptHandler, or a public onMessage(Object) / handle(Object) method.
+    // Returns null if the handler has neither, so it can be rejected at registration.
+    public static Invoker bindHandler(Object handler) {
+        return bindHandler(handler, null);
+    }
+
+    // Same, but an onMessage(contextType) method is preferred; the invoker then reports takesContext()
+    // and the caller passes its message context instead of the raw message
+    public static Invoker bindHandler(Object handler, Class<?> contextType) {
+        if (handler == null) {
+            return null;
+        }
+        if (handler instanceof ScriptHandler) {
+            return new Invoker(handler, null);
+        }
+        if (contextType != null) {
+            Method method = findMethod(handler.getClass(), "onMessage", contextType);
+            if (method != null) {
+                return new Invoker(handler, method, true);
+            }
+        }
+        Method method = findMethod(handler.getClass(), "onMessage", Object.class);
+        if (method == null) {
+            // SimpleHandler / EventLibrary.MessageHandler shape
+            method = findMethod(handler.getClass(), "handle", Object.class);
+        }
+        return method != null ? new Invoker(handler, method) : null;
+    }
+
+    // Bind a message listener: ScriptListener, or a public onMessageReceived(String, Object) method
+    public static Invoker bindListener(Object listener) {
+        if (listener == null) {
+            return null;
+        }
+        if (listener instanceof ScriptListener) {
+            return new Invoker(listener, null);
+        }
+        Method method = findMethod(listener.getClass(), "onMessageReceived", String.class, Object.class);
+        return method != null ? new Invoker(listener, method) : null;
+    }
+
+    private static Method findMethod(Class<?> cls, String name, Class<?>... paramTypes) {
+        try {
+            Method method = cls.getMethod(name, paramTypes);
+            if (Modifier.isStatic(method.getModifiers())) {
+                return null;
+            }
+            try {
+                // Skips the access check on every invoke (scripted classes are often not public)
+                method.setAccessible(true);
+            } catch (RuntimeException e) {
+                // Keep the checked method
+            }
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService createPlatformPool(final String name, int threads) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // Per-key queues hold the backlog, so the pool queue only holds one entry per active key
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the runtime has it (JDK 21+), otherwise null
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return (ExecutorService) executor;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static final ThreadLocal<Boolean> IN_WORKER = new ThreadLocal<>();
+
+    // True while the current thread runs tasks a KeyedExecutor handed to its pool; false for tasks
+    // run inline on the submitting thread (CALLER_RUNS overflow, rejected after shutdown)
+    public static boolean isWorkerThread() {
+        return IN_WORKER.get() != null;
+    }
+
+    // Factory methods
+    public static StartupGraph createStartupGraph() {
+        return new StartupGraph();
+    }
+
+    public static ScriptLifecycle createScriptLifecycle() {
+        return new ScriptLifecycle();
+    }
+
+    public static ScriptCache createScriptCache(ScriptCompiler compiler, String dir, ClassLoader loader, int maxEntries) {
+        return new ScriptCache(compiler, dir != null ? new File(dir) : null, loader, maxEntries);
+    }
+
+    public static KeyedExecutor createKeyedExecutor(String name, int threads, int capacity, boolean shedOnOverflow, boolean useVirtualThreads) {
+        return new KeyedExecutor(name, threads, capacity,
+            shedOnOverflow ? OverflowPolicy.SHED : OverflowPolicy.CALLER_RUNS, useVirtualThreads);
+    }
+}
@@ -0,0 +1,481 @@
+// HttpLibrary.java
+// Shared HTTP GET cache for script API calls: per-endpoint TTL, LRU eviction, single-flight and stale-on-error,
+// plus a prefetch buffer that keeps API results ready ahead of demand
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HttpLibrary {
+    // Fetcher interface (implemented in main.java over httpGet, or UrlConnectionFetcher)
+    public interface Fetcher {
+        String fetch(String url) throws Exception;
+    }
+
+    // Item source for PrefetchBuffer (implemented by scripts, e.g. fetch and parse one quote)
+    public interface Source {
+        String fetch() throws Exception;
+    }
+
+    // Plain HttpURLConnection fetcher, works against any server including a local stub
+    public static class UrlConnectionFetcher implements Fetcher {
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+
+        public UrlConnectionFetcher(int connectTimeoutMillis, int readTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        public String fetch(String url) throws Exception {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                conn.setConnectTimeout(connectTimeoutMillis);
+                conn.setReadTimeout(readTimeoutMillis);
+                conn.setRequestMethod("GET");
+                int code = conn.getResponseCode();
+                if (code < 200 || code >= 300) {
+                    throw new IOException("HTTP " + code + " for " + url);
+                }
+                InputStream in = conn.getInputStream();
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, conn.getContentLength()));
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        out.write(buf, 0, n);
+                    }
+                    return out.toString("UTF-8");
+                } finally {
+                    in.close();
+                }
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+
+    // Cached response
+    private static class Entry {
+        final String body;
+        final long fetchedAt;
+        final long expiresAt;
+
+        Entry(String body, long fetchedAt, long expiresAt) {
+            this.body = body;
+            this.fetchedAt = fetchedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // In-flight request shared by concurrent callers of the same URL
+    private static class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String body;
+    }
+
+    // ==================== HTTP cache ====================
+    public static class HttpCache {
+        private final Fetcher fetcher;
+        private final int maxEntries;
+        private final long maxChars;
+        private final long maxStaleMillis;
+        private volatile long defaultTtlMillis;
+        private volatile long flightTimeoutMillis = 30000L;
+
+        // Endpoint TTLs by URL prefix, longest prefix wins (copy-on-write, read without locking)
+        private volatile List<Object[]> endpointTtls = new ArrayList<>(); // {String prefix, Long ttl}
+
+        // Access-ordered map gives LRU eviction, guarded by this
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long totalChars = 0;
+
+        private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+        // Metrics
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong joined = new AtomicLong();
+        private final AtomicLong staleServed = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public HttpCache(Fetcher fetcher, long defaultTtlMillis, int maxEntries, long maxChars, long maxStaleMillis) {
+            this.fetcher = fetcher;
+            this.defaultTtlMillis = defaultTtlMillis;
+            this.maxEntries = Math.max(1, maxEntries);
+            this.maxChars = Math.max(1, maxChars);
+            this.maxStaleMillis = maxStaleMillis;
+        }
+
+        // ---------- Configuration ----------
+        // TTL for URLs starting with prefix, 0 disables caching but keeps single-flight and stale fallback.
+        // Returns the rule, which removeTtl takes back out unless a later setTtl replaced it.
+        public synchronized Object setTtl(String prefix, long ttlMillis) {
+            if (prefix == null || prefix.isEmpty()) {
+                return null;
+            }
+            List<Object[]> next = new ArrayList<>(endpointTtls.size() + 1);
+            for (Object[] rule : endpointTtls) {
+                if (!rule[0].equals(prefix)) {
+                    next.add(rule);
+                }
+            }
+            Object[] added = new Object[] {prefix, ttlMillis};
+            next.add(added);
+            endpointTtls = next;
+            return added;
+        }
+
+        // Remove a rule returned by setTtl; URLs under its prefix go back to the default TTL
+        public synchronized void removeTtl(Object rule) {
+            if (rule == null || !endpointTtls.contains(rule)) {
+                return;
+            }
+            List<Object[]> next = new ArrayList<>(endpointTtls);
+            next.remove(rule);
+            endpointTtls = next;
+        }
+
+        public void setDefaultTtl(long ttlMillis) {
+            this.defaultTtlMillis = ttlMillis;
+        }
+
+        // How long callers wait for another caller's fetch of the same URL
+        public void setFlightTimeout(long timeoutMillis) {
+            this.flightTimeoutMillis = timeoutMillis;
+        }
+
+        public long getTtl(String url) {
+            long ttl = defaultTtlMillis;
+            int best = -1;
+            for (Object[] rule : endpointTtls) {
+                String prefix = (String) rule[0];
+                if (prefix.length() > best && url.startsWith(prefix)) {
+                    best = prefix.length();
+                    ttl = (Long) rule[1];
+                }
+            }
+            return ttl;
+        }
+
+        // ---------- Lookup ----------
+        // GET url through the cache, returns null if there is neither a response nor a usable stale copy
+        public String get(String url) {
+            if (url == null) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            Entry entry = lookup(url);
+            if (entry != null && now < entry.expiresAt) {
+                hits.incrementAndGet();
+                return entry.body;
+            }
+
+            Flight flight = new Flight();
+            Flight existing = flights.putIfAbsent(url, flight);
+            if (existing != null) {
+                // Someone is already fetching this URL, wait for their result
+                joined.incrementAndGet();
+                try {
+                    existing.done.await(flightTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                String body = existing.body;
+                return body != null ? body : stale(url, System.currentTimeMillis());
+            }
+
+            misses.incrementAndGet();
+            String body = null;
+            try {
+                body = fetcher.fetch(url);
+                if (body == null || body.isEmpty()) {
+                    body = null;
+                    errors.incrementAndGet();
+                } else {
+                    long fetchedAt = System.currentTimeMillis();
+                    store(url, new Entry(body, fetchedAt, fetchedAt + Math.max(0, getTtl(url))));
+                }
+            } catch (Throwable e) {
+                errors.incrementAndGet();
+            } finally {
+                if (body == null) {
+                    body = stale(url, System.currentTimeMillis());
+                }
+                flight.body = body;
+                flights.remove(url, flight);
+                flight.done.countDown();
+            }
+            return body;
+        }
+
+        // Expired copy still within maxStaleMillis of its expiry, served when the upstream fails
+        private String stale(String url, long now) {
+            Entry entry = lookup(url);
+            if (entry != null && (maxStaleMillis < 0 || now - entry.expiresAt <= maxStaleMillis)) {
+                staleServed.incrementAndGet();
+                return entry.body;
+            }
+            return null;
+        }
+
+        private synchronized Entry lookup(String url) {
+            return entries.get(url);
+        }
+
+        private synchronized void store(String url, Entry entry) {
+            Entry old = entries.put(url, entry);
+            if (old != null) {
+                totalChars -= old.body.length();
+            }
+            totalChars += entry.body.length();
+            // Evict least recently used entries until within both bounds (the new entry is kept)
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || totalChars > maxChars) && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getValue() == entry) {
+                    break;
+                }
+                totalChars -= eldest.getValue().body.length();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        // ---------- Maintenance ----------
+        public synchronized void invalidate(String url) {
+            Entry old = entries.remove(url);
+            if (old != null) {
+                totalChars -= old.body.length();
+            }
+        }
+
+        // Drop all entries whose URL starts with prefix, returns the number removed
+        public synchronized int invalidatePrefix(String prefix) {
+            int removed = 0;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().startsWith(prefix)) {
+                    totalChars -= e.getValue().body.length();
+                    it.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            totalChars = 0;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public long getHitCount() {
+            return hits.get();
+        }
+
+        public long getMissCount() {
+            return misses.get();
+        }
+
+        public long getStaleCount() {
+            return staleServed.get();
+        }
+
+        public String getStats() {
+            long chars;
+            int count;
+            synchronized (this) {
+                chars = totalChars;
+                count = entries.size();
+            }
+            return "http cache: entries=" + count + ", chars=" + chars
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + ", joined=" + joined.get()
+                + ", stale=" + staleServed.get() + ", errors=" + errors.get() + ", evicted=" + evictions.get();
+        }
+    }
+
+    // ==================== Prefetch buffer ====================
+    // Bounded ring of ready items, refilled on a background thread when it drops to the low-water mark.
+    // The fill target follows demand: as many items as were taken in the last demand window,
+    // at least minFill and at most capacity, so idle commands don't keep fetching.
+    public static class PrefetchBuffer implements Runnable {
+        private final String name;
+        private final Source source;
+        private final int capacity;
+        private final int lowWater;
+        private final int minFill;
+        private final long demandWindowMillis;
+        private final long minIntervalMillis;
+        private final long maxBackoffMillis = 60000L;
+
+        private final ArrayDeque<String> ring;
+        private final ArrayDeque<Long> takes = new ArrayDeque<>(); // take times within the demand window
+        private boolean refillRequested = true;
+        private volatile boolean running = true;
+        private int failures = 0;
+        private String lastItem = null;
+        private final Thread thread;
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong fetched = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        public PrefetchBuffer(String name, Source source, int capacity, int lowWater, int minFill, long demandWindowMillis, long minIntervalMillis) {
+            this.name = name;
+            this.source = source;
+            this.capacity = Math.max(1, capacity);
+            this.lowWater = Math.max(0, Math.min(lowWater, this.capacity - 1));
+            this.minFill = Math.max(0, Math.min(minFill, this.capacity));
+            this.demandWindowMillis = Math.max(1000L, demandWindowMillis);
+            this.minIntervalMillis = Math.max(0, minIntervalMillis);
+            this.ring = new ArrayDeque<>(this.capacity);
+            this.thread = new Thread(this, "prefetch-" + name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        // Take a ready item without blocking, null if the buffer is empty (caller fetches synchronously)
+        public String poll() {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                takes.addLast(now);
+                trimTakes(now);
+                String item = ring.pollFirst();
+                if (item != null) {
+                    hits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                }
+                if (ring.size() <= lowWater && ring.size() < target()) {
+                    refillRequested = true;
+                    notifyAll();
+                }
+                return item;
+            }
+        }
+
+        // Current fill target derived from recent demand
+        public synchronized int target() {
+            trimTakes(System.currentTimeMillis());
+            return Math.max(minFill, Math.min(capacity, takes.size()));
+        }
+
+        private void trimTakes(long now) {
+            while (!takes.isEmpty() && now - takes.peekFirst() > demandWindowMillis) {
+                takes.pollFirst();
+            }
+            // Only the count up to capacity matters for the target
+            while (takes.size() > capacity) {
+                takes.pollFirst();
+            }
+        }
+
+        // ---------- Refill thread ----------
+        public void run() {
+            while (running) {
+                synchronized (this) {
+                    while (running && !refillRequested) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            running = false;
+                        }
+                    }
+                    refillRequested = false;
+                }
+                while (running) {
+                    synchronized (this) {
+                        if (ring.size() >= target()) {
+                            break;
+                        }
+                    }
+                    String item = null;
+                    try {
+                        item = source.fetch();
+                    } catch (Throwable e) {
+                        item = null;
+                    }
+                    // A repeat of the previous item is a stale fallback from the cache, not a new result
+                    if (item == null || item.isEmpty() || item.equals(lastItem)) {
+                        failed.incrementAndGet();
+                        failures++;
+                        // Back off on upstream errors, the next poll requests another round
+                        pause(Math.min(maxBackoffMillis, Math.max(1000L, minIntervalMillis) << Math.min(failures, 6)));
+                        break;
+                    }
+                    failures = 0;
+                    lastItem = item;
+                    fetched.incrementAndGet();
+                    synchronized (this) {
+                        if (ring.size() < capacity) {
+                            ring.addLast(item);
+                        }
+                    }
+                    pause(minIntervalMillis);
+                }
+            }
+        }
+
+        private void pause(long millis) {
+            if (millis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+
+        public synchronized int size() {
+            return ring.size();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getStats() {
+            return "prefetch " + name + ": ready=" + size() + ", target=" + target()
+                + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", fetched=" + fetched.get() + ", failed=" + failed.get();
+        }
+
+        public void shutdown() {
+            running = false;
+            thread.interrupt();
+        }
+    }
+
+    // Factory methods
+    public static HttpCache createHttpCache(Fetcher fetcher, long defaultTtlMillis, int maxEntries, long maxChars, long maxStaleMillis) {
+        return new HttpCache(fetcher, defaultTtlMillis, maxEntries, maxChars, maxStaleMillis);
+    }
+
+    public static PrefetchBuffer createPrefetchBuffer(String name, Source source, int capacity, int lowWater, int minFill, long demandWindowMillis, long minIntervalMillis) {
+        return new PrefetchBuffer(name, source, capacity, lowWater, minFill, demandWindowMillis, minIntervalMillis);
+    }
+
+    public static Fetcher createUrlConnectionFetcher(int connectTimeoutMillis, int readTimeoutMillis) {
+        return new UrlConnectionFetcher(connectTimeoutMillis, readTimeoutMillis);
+    }
+}
@@ -0,0 +1,600 @@
+// JsonLibrary.java
+// Shared JSON utilities for scripts: single-pass streaming formatter and compiled path extractor
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class JsonLibrary {
+    // Output mode
+    public enum Mode {
+        // No whitespace outside strings
+        COMPACT,
+        // One member per line, nested containers indented
+        PRETTY
+    }
+
+    // ==================== Formatter ====================
+    // Reformats JSON text in one pass without building a tree. Memory is bounded by the
+    // I/O buffers and the nesting depth (one bit per open container records whether it
+    // was { or [), so multi-megabyte input streams through.
+    // Containers nested deeper than maxDepth are written as {...} / [...] (0 = unlimited).
+    public static class Formatter {
+        private static final int BUFFER_SIZE = 8192;
+        private static final char[] SPACES = new char[64];
+        private static final char[] ELLIPSIS = {'.', '.', '.'};
+
+        static {
+            Arrays.fill(SPACES, ' ');
+        }
+
+        private final Mode mode;
+        private final int indentWidth;
+        private final int maxDepth;
+
+        public Formatter(Mode mode, int indentWidth, int maxDepth) {
+            this.mode = mode != null ? mode : Mode.PRETTY;
+            this.indentWidth = Math.max(0, indentWidth);
+            this.maxDepth = Math.max(0, maxDepth);
+        }
+
+        // Format a string, the output buffer is sized from the input up front
+        public String format(String json) throws IOException {
+            if (json == null) {
+                return null;
+            }
+            int estimate = mode == Mode.PRETTY ? json.length() + (json.length() >> 1) + 16 : json.length();
+            StringWriter out = new StringWriter(estimate);
+            format(new StringReader(json), out);
+            return out.toString();
+        }
+
+        // Stream from in to out, throws IOException on malformed structure
+        public void format(Reader in, Writer out) throws IOException {
+            char[] inBuf = new char[BUFFER_SIZE];
+            Output o = new Output(out);
+            long offset = 0;
+            int depth = 0;          // current container depth
+            int skipFrom = 0;       // > 0 while eliding containers deeper than maxDepth
+            boolean inString = false;
+            boolean escape = false;
+            boolean pendingOpen = false; // container opened, newline deferred until we see it isn't empty
+            boolean sawValue = false;
+            boolean rootDone = false;     // root value complete, only whitespace may follow
+            BitSet arrays = new BitSet(); // bit d set when the container at depth d is an array
+
+            int n;
+            while ((n = in.read(inBuf)) > 0) {
+                for (int i = 0; i < n; i++, offset++) {
+                    char c = inBuf[i];
+                    if (inString) {
+                        if (skipFrom == 0) {
+                            o.write(c);
+                        }
+                        if (escape) {
+                            escape = false;
+                        } else if (c == '\\') {
+                            escape = true;
+                        } else if (c == '"') {
+                            inString = false;
+                            rootDone = depth == 0;
+                        }
+                        continue;
+                    }
+                    switch (c) {
+                        case ' ':
+                        case '\t':
+                        case '\n':
+                        case '\r':
+                            if (depth == 0 && sawValue) {
+                                rootDone = true;
+                            }
+                            break;
+                        case '{':
+                        case '[':
+                            if (depth == 0 && sawValue) {
+                                throw new IOException("Unexpected '" + c + "' after the root value at offset " + offset);
+                            }
+                            arrays.set(depth, c == '[');
+                            if (skipFrom == 0) {
+                                flushOpen(o, pendingOpen, depth);
+                                pendingOpen = false;
+                                if (maxDepth > 0 && depth >= maxDepth) {
+                                    skipFrom = depth + 1;
+                                    o.write(c);
+                                    o.write(ELLIPSIS, ELLIPSIS.length);
+                                } else {
+                                    o.write(c);
+                                    pendingOpen = true;
+                                }
+                            }
+                            depth++;
+                            sawValue = true;
+                            break;
+                        case '}':
+                        case ']':
+                            depth--;
+                            if (depth < 0 || arrays.get(depth) != (c == ']')) {
+                                throw new IOException("Unexpected '" + c + "' at offset " + offset);
+                            }
+                            rootDone = depth == 0;
+                            if (skipFrom > 0) {
+                                if (depth + 1 == skipFrom) {
+                                    skipFrom = 0;
+                                    o.write(c);
+                                }
+                            } else if (pendingOpen) {
+                                // Empty container stays on one line: {} / []
+                                pendingOpen = false;
+                                o.write(c);
+                            } else {
+                                newline(o, depth);
+                                o.write(c);
+                            }
+                            break;
+                        case ',':
+                            if (depth == 0) {
+                                throw new IOException("Unexpected ',' at offset " + offset);
+                            }
+                            if (skipFrom == 0) {
+                                o.write(',');
+                                newline(o, depth);
+                            }
+                            break;
+                        case ':':
+                            if (depth == 0) {
+                                throw new IOException("Unexpected ':' at offset " + offset);
+                            }
+                            if (skipFrom == 0) {
+                                o.write(':');
+                                if (mode == Mode.PRETTY) {
+                                    o.write(' ');
+                                }
+                            }
+                            break;
+                        default:
+                            if (rootDone) {
+                                throw new IOException("Unexpected '" + c + "' after the root value at offset " + offset);
+                            }
+                            if (skipFrom == 0) {
+                                flushOpen(o, pendingOpen, depth);
+                                pendingOpen = false;
+                                o.write(c);
+                            }
+                            if (c == '"') {
+                                inString = true;
+                            }
+                            sawValue = true;
+                    }
+                }
+            }
+            if (inString || depth != 0) {
+                throw new IOException("Unexpected end of JSON at offset " + offset
+                    + (inString ? " (unterminated string)" : " (" + depth + " unclosed)"));
+            }
+            if (!sawValue) {
+                throw new IOException("Empty JSON input");
+            }
+            o.flush();
+        }
+
+        private void flushOpen(Output o, boolean pendingOpen, int depth) throws IOException {
+            if (pendingOpen) {
+                newline(o, depth);
+            }
+        }
+
+        private void newline(Output o, int depth) throws IOException {
+            if (mode != Mode.PRETTY) {
+                return;
+            }
+            o.write('\n');
+            int spaces = depth * indentWidth;
+            while (spaces > 0) {
+                int chunk = Math.min(spaces, SPACES.length);
+                o.write(SPACES, chunk);
+                spaces -= chunk;
+            }
+        }
+    }
+
+    // Buffered writer without the synchronization of BufferedWriter
+    private static class Output {
+        private final Writer out;
+        private final char[] buf = new char[8192];
+        private int pos = 0;
+
+        Output(Writer out) {
+            this.out = out;
+        }
+
+        void write(char c) throws IOException {
+            if (pos == buf.length) {
+                flushBuffer();
+            }
+            buf[pos++] = c;
+        }
+
+        void write(char[] chars, int len) throws IOException {
+            if (pos + len > buf.length) {
+                flushBuffer();
+            }
+            System.arraycopy(chars, 0, buf, pos, len);
+            pos += len;
+        }
+
+        void flushBuffer() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    // ==================== Path extractor ====================
+    // Compiled path such as $.quote, $.data[0].url or $['key with space'].
+    // Extraction scans the text once and skips everything off the path without
+    // allocating; only the value at the end of the path is materialized.
+    public static class JsonPath {
+        private final String path;
+        private final Object[] segments; // String key or Integer index
+
+        private JsonPath(String path, Object[] segments) {
+            this.path = path;
+            this.segments = segments;
+        }
+
+        public static JsonPath compile(String path) {
+            if (path == null || !path.startsWith("$")) {
+                throw new IllegalArgumentException("JSON path must start with $: " + path);
+            }
+            List<Object> segs = new ArrayList<>();
+            int i = 1;
+            int len = path.length();
+            while (i < len) {
+                char c = path.charAt(i);
+                if (c == '.') {
+                    int start = ++i;
+                    while (i < len && path.charAt(i) != '.' && path.charAt(i) != '[') {
+                        i++;
+                    }
+                    if (i == start) {
+                        throw new IllegalArgumentException("Empty key in JSON path: " + path);
+                    }
+                    segs.add(path.substring(start, i));
+                } else if (c == '[') {
+                    int close = path.indexOf(']', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Unclosed [ in JSON path: " + path);
+                    }
+                    String inner = path.substring(i + 1, close).trim();
+                    if (inner.length() >= 2 && (inner.charAt(0) == '\'' || inner.charAt(0) == '"')
+                            && inner.charAt(inner.length() - 1) == inner.charAt(0)) {
+                        segs.add(inner.substring(1, inner.length() - 1));
+                    } else {
+                        try {
+                            segs.add(Integer.valueOf(inner));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid index in JSON path: " + path);
+                        }
+                    }
+                    i = close + 1;
+                } else {
+                    throw new IllegalArgumentException("Unexpected '" + c + "' in JSON path: " + path);
+                }
+            }
+            return new JsonPath(path, segs.toArray());
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        // String value at the path (escapes decoded); numbers, booleans and nested values as raw JSON text.
+        // null if the path is missing, the value is JSON null, or the text is malformed.
+        public String getString(CharSequence json) {
+            int start = locate(json);
+            if (start < 0) {
+                return null;
+            }
+            char c = json.charAt(start);
+            if (c == '"') {
+                return readString(json, start);
+            }
+            int end = skipValue(json, start);
+            if (end < 0) {
+                return null;
+            }
+            String raw = json.subSequence(start, end).toString();
+            return raw.equals("null") ? null : raw;
+        }
+
+        // Raw JSON text of the value at the path, null if missing
+        public String getRaw(CharSequence json) {
+            int start = locate(json);
+            if (start < 0) {
+                return null;
+            }
+            int end = skipValue(json, start);
+            return end < 0 ? null : json.subSequence(start, end).toString();
+        }
+
+        public boolean exists(CharSequence json) {
+            return locate(json) >= 0;
+        }
+
+        // Start offset of the value at the path, -1 if not found
+        private int locate(CharSequence json) {
+            if (json == null) {
+                return -1;
+            }
+            int pos = skipWs(json, 0);
+            for (Object seg : segments) {
+                if (pos >= json.length()) {
+                    return -1;
+                }
+                pos = seg instanceof String ? findKey(json, pos, (String) seg) : findIndex(json, pos, (Integer) seg);
+                if (pos < 0) {
+                    return -1;
+                }
+            }
+            return pos < json.length() ? pos : -1;
+        }
+
+        // At '{': returns the offset of the member value named key
+        private static int findKey(CharSequence s, int pos, String key) {
+            if (s.charAt(pos) != '{') {
+                return -1;
+            }
+            pos = skipWs(s, pos + 1);
+            int len = s.length();
+            while (pos < len) {
+                char c = s.charAt(pos);
+                if (c == '}') {
+                    return -1;
+                }
+                if (c != '"') {
+                    return -1;
+                }
+                int keyEnd = skipString(s, pos);
+                if (keyEnd < 0) {
+                    return -1;
+                }
+                boolean match = keyEquals(s, pos, keyEnd, key);
+                pos = skipWs(s, keyEnd);
+                if (pos >= len || s.charAt(pos) != ':') {
+                    return -1;
+                }
+                pos = skipWs(s, pos + 1);
+                if (match) {
+                    return pos;
+                }
+                pos = skipValue(s, pos);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos = skipWs(s, pos);
+                if (pos < len && s.charAt(pos) == ',') {
+                    pos = skipWs(s, pos + 1);
+                }
+            }
+            return -1;
+        }
+
+        // At '[': returns the offset of element index
+        private static int findIndex(CharSequence s, int pos, int index) {
+            if (s.charAt(pos) != '[' || index < 0) {
+                return -1;
+            }
+            pos = skipWs(s, pos + 1);
+            int len = s.length();
+            for (int i = 0; pos < len; i++) {
+                if (s.charAt(pos) == ']') {
+                    return -1;
+                }
+                if (i == index) {
+                    return pos;
+                }
+                pos = skipValue(s, pos);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos = skipWs(s, pos);
+                if (pos < len && s.charAt(pos) == ',') {
+                    pos = skipWs(s, pos + 1);
+                }
+            }
+            return -1;
+        }
+
+        // Compare the quoted key at [start, end) with key without allocating (escaped keys are decoded)
+        private static boolean keyEquals(CharSequence s, int start, int end, String key) {
+            int innerLen = end - start - 2;
+            boolean escaped = false;
+            for (int i = start + 1; i < end - 1; i++) {
+                if (s.charAt(i) == '\\') {
+                    escaped = true;
+                    break;
+                }
+            }
+            if (escaped) {
+                return key.equals(readString(s, start));
+            }
+            if (innerLen != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < innerLen; i++) {
+                if (s.charAt(start + 1 + i) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int skipWs(CharSequence s, int pos) {
+            int len = s.length();
+            while (pos < len) {
+                char c = s.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    break;
+                }
+                pos++;
+            }
+            return pos;
+        }
+
+        // At '"': offset just past the closing quote, -1 if unterminated
+        private static int skipString(CharSequence s, int pos) {
+            int len = s.length();
+            for (int i = pos + 1; i < len; i++) {
+                char c = s.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        // Offset just past the value starting at pos, -1 if malformed
+        private static int skipValue(CharSequence s, int pos) {
+            int len = s.length();
+            if (pos >= len) {
+                return -1;
+            }
+            char c = s.charAt(pos);
+            if (c == '"') {
+                return skipString(s, pos);
+            }
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                for (int i = pos; i < len; i++) {
+                    char d = s.charAt(i);
+                    if (d == '"') {
+                        i = skipString(s, i);
+                        if (i < 0) {
+                            return -1;
+                        }
+                        i--;
+                    } else if (d == '{' || d == '[') {
+                        depth++;
+                    } else if (d == '}' || d == ']') {
+                        if (--depth == 0) {
+                            return i + 1;
+                        }
+                    }
+                }
+                return -1;
+            }
+            int i = pos;
+            while (i < len) {
+                char d = s.charAt(i);
+                if (d == ',' || d == '}' || d == ']' || d == ' ' || d == '\t' || d == '\n' || d == '\r') {
+                    break;
+                }
+                i++;
+            }
+            return i > pos ? i : -1;
+        }
+
+        // Decode the string starting at '"', substring only when there are no escapes
+        private static String readString(CharSequence s, int pos) {
+            int end = skipString(s, pos);
+            if (end < 0) {
+                return null;
+            }
+            int i = pos + 1;
+            while (i < end - 1 && s.charAt(i) != '\\') {
+                i++;
+            }
+            if (i == end - 1) {
+                return s.subSequence(pos + 1, end - 1).toString();
+            }
+            StringBuilder sb = new StringBuilder(end - pos);
+            sb.append(s, pos + 1, i);
+            for (; i < end - 1; i++) {
+                char c = s.charAt(i);
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = s.charAt(++i);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (i + 4 < end) {
+                            try {
+                                sb.append((char) Integer.parseInt(s.subSequence(i + 1, i + 5).toString(), 16));
+                                i += 4;
+                                break;
+                            } catch (NumberFormatException ex) {
+                                // Keep the escape as written
+                            }
+                        }
+                        sb.append('\\').append(e);
+                        break;
+                    default: sb.append(e); // \" \\ \/
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+    // Compiled paths shared by all scripts
+    private static final ConcurrentHashMap<String, JsonPath> PATHS = new ConcurrentHashMap<>();
+
+    // Compile once and reuse, throws IllegalArgumentException on an invalid path
+    public static JsonPath compilePath(String path) {
+        JsonPath compiled = PATHS.get(path);
+        if (compiled == null) {
+            compiled = JsonPath.compile(path);
+            if (PATHS.size() < 1024) {
+                PATHS.putIfAbsent(path, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    // Value at path as getString(), for one-off lookups
+    public static String extract(String json, String path) {
+        return compilePath(path).getString(json);
+    }
+
+    // ==================== Convenience ====================
+    private static final Formatter PRETTY = new Formatter(Mode.PRETTY, 4, 0);
+    private static final Formatter COMPACT = new Formatter(Mode.COMPACT, 0, 0);
+
+    // Pretty-print with 4-space indent, throws IOException on malformed JSON
+    public static String formatJson(String json) throws IOException {
+        return PRETTY.format(json);
+    }
+
+    public static String compactJson(String json) throws IOException {
+        return COMPACT.format(json);
+    }
+
+    // Factory method
+    public static Formatter createFormatter(Mode mode, int indentWidth, int maxDepth) {
+        return new Formatter(mode, indentWidth, maxDepth);
+    }
+}
@@ -0,0 +1,433 @@
+// LogLibrary.java
+// Leveled, asynchronous logging with lazy formatting, sampling and size-based rotation
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LogLibrary {
+    // Sink interface for mirroring lines to the host (implemented in main.java over log())
+    public interface LogSink {
+        void write(String line);
+    }
+
+    // Log level enum
+    public enum Level {
+        DEBUG(0, "debug"),
+        INFO(1, "info"),
+        WARN(2, "warn"),
+        ERROR(3, "error"),
+        OFF(4, "off");
+
+        private final int value;
+        private final String name;
+
+        Level(int value, String name) {
+            this.value = value;
+            this.name = name;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // null for an unknown name, so callers can report it
+        public static Level fromName(String name) {
+            for (Level level : values()) {
+                if (level.name.equalsIgnoreCase(name)) {
+                    return level;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Queued entry, formatted on the writer thread
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String format;
+        final Object arg0;
+        final Object arg1;
+        final Object arg2;
+        final Object arg3;
+        final String thread;
+
+        Entry(Level level, String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.format = format;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.arg3 = arg3;
+            this.thread = Thread.currentThread().getName();
+        }
+    }
+
+    // Per-template sampling window
+    private static class Sampler {
+        long windowStart;
+        int count;
+        int suppressed;
+    }
+
+    // Replace {} placeholders in order
+    public static String format(String format, Object arg0, Object arg1, Object arg2) {
+        return format(format, arg0, arg1, arg2, null);
+    }
+
+    public static String format(String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+        if (format == null) {
+            return "null";
+        }
+        int first = format.indexOf("{}");
+        if (first < 0) {
+            return format;
+        }
+        Object[] args = {arg0, arg1, arg2, arg3};
+        StringBuilder sb = new StringBuilder(format.length() + 32);
+        int start = 0;
+        int argIndex = 0;
+        int idx = first;
+        while (idx >= 0 && argIndex < args.length) {
+            sb.append(format, start, idx).append(args[argIndex++]);
+            start = idx + 2;
+            idx = format.indexOf("{}", start);
+        }
+        sb.append(format, start, format.length());
+        return sb.toString();
+    }
+
+    // ==================== Logger ====================
+    public static class Logger implements Runnable {
+        private final String path;
+        private final long maxBytes;
+        private final int maxFiles;
+        private final ArrayBlockingQueue<Entry> queue;
+        private final ConcurrentHashMap<String, Sampler> samplers = new ConcurrentHashMap<>();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        private volatile Level level = Level.INFO;
+        private volatile Level mirrorLevel = Level.WARN;
+        private volatile LogSink mirror;
+        private volatile long sampleWindowMillis = 10000L;
+        private volatile int sampleLimit = 20;
+        private volatile boolean running = true;
+        private final Thread writerThread;
+        private OutputStream out;
+        private long fileSize;
+
+        public Logger(String path, int capacity, long maxBytes, int maxFiles) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.maxFiles = Math.max(1, maxFiles);
+            this.queue = new ArrayBlockingQueue<>(Math.max(16, capacity));
+            this.writerThread = new Thread(this, "hotload-log");
+            this.writerThread.setDaemon(true);
+            this.writerThread.start();
+        }
+
+        // ---------- Configuration ----------
+        public void setLevel(Level level) {
+            this.level = level != null ? level : Level.INFO;
+        }
+
+        // Returns false and keeps the current level if the name is unknown
+        public boolean setLevel(String name) {
+            Level l = Level.fromName(name);
+            if (l == null) {
+                return false;
+            }
+            setLevel(l);
+            return true;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        // Lines at or above mirrorLevel are also passed to the sink on the writer thread
+        public void setMirror(LogSink sink, Level mirrorLevel) {
+            this.mirror = sink;
+            this.mirrorLevel = mirrorLevel != null ? mirrorLevel : Level.WARN;
+        }
+
+        // At most limit DEBUG/INFO lines per template per window, the rest are counted
+        public void setSampling(long windowMillis, int limit) {
+            this.sampleWindowMillis = windowMillis;
+            this.sampleLimit = limit;
+        }
+
+        public boolean isEnabled(Level l) {
+            return l.value >= level.value;
+        }
+
+        public boolean isDebugEnabled() {
+            return Level.DEBUG.value >= level.value;
+        }
+
+        // ---------- Logging (never blocks the caller) ----------
+        public void log(Level l, String format, Object arg0, Object arg1, Object arg2) {
+            log(l, format, arg0, arg1, arg2, null);
+        }
+
+        public void log(Level l, String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+            if (l.value < level.value || !running) {
+                return;
+            }
+            if (l.value < Level.WARN.value && !sample(format)) {
+                return;
+            }
+            if (!queue.offer(new Entry(l, format, arg0, arg1, arg2, arg3))) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        public void debug(String format) {
+            log(Level.DEBUG, format, null, null, null);
+        }
+
+        public void debug(String format, Object arg0) {
+            log(Level.DEBUG, format, arg0, null, null);
+        }
+
+        public void debug(String format, Object arg0, Object arg1) {
+            log(Level.DEBUG, format, arg0, arg1, null);
+        }
+
+        public void debug(String format, Object arg0, Object arg1, Object arg2) {
+            log(Level.DEBUG, format, arg0, arg1, arg2);
+        }
+
+        public void debug(String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+            log(Level.DEBUG, format, arg0, arg1, arg2, arg3);
+        }
+
+        public void info(String format) {
+            log(Level.INFO, format, null, null, null);
+        }
+
+        public void info(String format, Object arg0) {
+            log(Level.INFO, format, arg0, null, null);
+        }
+
+        public void info(String format, Object arg0, Object arg1) {
+            log(Level.INFO, format, arg0, arg1, null);
+        }
+
+        public void warn(String format) {
+            log(Level.WARN, format, null, null, null);
+        }
+
+        public void warn(String format, Object arg0) {
+            log(Level.WARN, format, arg0, null, null);
+        }
+
+        public void warn(String format, Object arg0, Object arg1, Object arg2) {
+            log(Level.WARN, format, arg0, arg1, arg2);
+        }
+
+        public void error(String format) {
+            log(Level.ERROR, format, null, null, null);
+        }
+
+        public void error(String format, Object arg0) {
+            log(Level.ERROR, format, arg0, null, null);
+        }
+
+        private boolean sample(String format) {
+            if (sampleLimit <= 0 || format == null) {
+                return true;
+            }
+            Sampler sampler = samplers.get(format);
+            if (sampler == null) {
+                Sampler created = new Sampler();
+                sampler = samplers.putIfAbsent(format, created);
+                if (sampler == null) {
+                    sampler = created;
+                }
+            }
+            long now = System.currentTimeMillis();
+            int suppressed = 0;
+            boolean accept;
+            synchronized (sampler) {
+                if (now - sampler.windowStart >= sampleWindowMillis) {
+                    suppressed = sampler.suppressed;
+                    sampler.windowStart = now;
+                    sampler.count = 0;
+                    sampler.suppressed = 0;
+                }
+                accept = ++sampler.count <= sampleLimit;
+                if (!accept) {
+                    sampler.suppressed++;
+                }
+            }
+            if (suppressed > 0) {
+                queue.offer(new Entry(Level.INFO, "[sampled] {} similar lines suppressed: {}", suppressed, format, null, null));
+            }
+            return accept;
+        }
+
+        // ---------- Writer thread ----------
+        public void run() {
+            List<Entry> batch = new ArrayList<>(256);
+            StringBuilder sb = new StringBuilder(8192);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Entry first = queue.poll(500, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, 255);
+                    writeBatch(batch, sb);
+                } catch (InterruptedException e) {
+                    running = false;
+                } catch (Throwable e) {
+                    System.err.println("Error in log writer: " + e.getMessage());
+                } finally {
+                    batch.clear();
+                    sb.setLength(0);
+                }
+            }
+            closeStream();
+        }
+
+        private void writeBatch(List<Entry> batch, StringBuilder sb) throws IOException {
+            LogSink sink = mirror;
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                sb.append(timeFormat.format(new Date())).append(" WARN  [hotload-log] ")
+                  .append(lost).append(" lines dropped, log queue full\n");
+            }
+            for (Entry entry : batch) {
+                String message = format(entry.format, entry.arg0, entry.arg1, entry.arg2, entry.arg3);
+                sb.append(timeFormat.format(new Date(entry.time))).append(' ')
+                  .append(pad(entry.level)).append(" [").append(entry.thread).append("] ")
+                  .append(message).append('\n');
+                if (sink != null && entry.level.value >= mirrorLevel.value) {
+                    try {
+                        sink.write(message);
+                    } catch (Throwable e) {
+                        // Mirror failures must not stop file logging
+                    }
+                }
+            }
+            written.addAndGet(batch.size());
+            OutputStream os = openStream();
+            if (os == null) {
+                return;
+            }
+            byte[] bytes = sb.toString().getBytes("UTF-8");
+            os.write(bytes);
+            os.flush();
+            fileSize += bytes.length;
+            if (maxBytes > 0 && fileSize >= maxBytes) {
+                rotate();
+            }
+        }
+
+        private static String pad(Level level) {
+            switch (level) {
+                case DEBUG: return "DEBUG";
+                case INFO: return "INFO ";
+                case WARN: return "WARN ";
+                default: return "ERROR";
+            }
+        }
+
+        private OutputStream openStream() {
+            if (out != null) {
+                return out;
+            }
+            try {
+                File file = new File(path);
+                File parent = file.getParentFile();
+                if (parent != null && !parent.exists()) {
+                    parent.mkdirs();
+                }
+                fileSize = file.exists() ? file.length() : 0;
+                out = new FileOutputStream(file, true);
+            } catch (IOException e) {
+                System.err.println("Unable to open log file " + path + ": " + e.getMessage());
+                out = null;
+            }
+            return out;
+        }
+
+        // path -> path.1 -> ... -> path.(maxFiles-1), oldest is deleted
+        private void rotate() {
+            closeStream();
+            File oldest = new File(path + "." + (maxFiles - 1));
+            if (oldest.exists()) {
+                oldest.delete();
+            }
+            for (int i = maxFiles - 2; i >= 1; i--) {
+                File from = new File(path + "." + i);
+                if (from.exists()) {
+                    from.renameTo(new File(path + "." + (i + 1)));
+                }
+            }
+            File current = new File(path);
+            if (maxFiles > 1) {
+                current.renameTo(new File(path + ".1"));
+            } else {
+                current.delete();
+            }
+            fileSize = 0;
+        }
+
+        private void closeStream() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore close errors
+                }
+                out = null;
+            }
+        }
+
+        public long getWrittenCount() {
+            return written.get();
+        }
+
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        public int getQueueSize() {
+            return queue.size();
+        }
+
+        // Stop accepting lines and flush what is queued (waits up to timeoutMillis)
+        public void shutdown(long timeoutMillis) {
+            running = false;
+            try {
+                writerThread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Factory method
+    public static Logger createLogger(String path, int capacity, long maxBytes, int maxFiles) {
+        return new Logger(path, capacity, maxBytes, maxFiles);
+    }
+}
@@ -0,0 +1,580 @@
+// SendLibrary.java
+// Outbound message dispatcher: per-target rate limiting, priority lanes and coalescing,
+// plus reply pagination for output that is too long for one message
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SendLibrary {
+    // Sender interface (implemented in main.java over sendMsg)
+    public interface Sender {
+        void send(String groupUin, String userUin, String content);
+    }
+
+    // Priority lanes, HIGH is always drained before NORMAL for the same target
+    public enum Priority {
+        NORMAL(0, "normal"),
+        HIGH(1, "high");
+
+        private final int value;
+        private final String name;
+
+        Priority(int value, String name) {
+            this.value = value;
+            this.name = name;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    // Queued message
+    private static class Outgoing {
+        final String groupUin;
+        final String userUin;
+        final long enqueuedAt;
+        final StringBuilder content;
+        // UTF-8 size of content, kept up to date by coalescing
+        int bytes;
+
+        Outgoing(String groupUin, String userUin, String content, int bytes, long now) {
+            this.groupUin = groupUin;
+            this.userUin = userUin;
+            this.enqueuedAt = now;
+            this.content = new StringBuilder(content);
+            this.bytes = bytes;
+        }
+
+        boolean sameRecipient(String g, String u) {
+            return groupUin.equals(g) && userUin.equals(u);
+        }
+    }
+
+    // Per-target (group or private chat) lanes and token bucket
+    private static class Target {
+        final ArrayDeque<Outgoing> high = new ArrayDeque<>();
+        final ArrayDeque<Outgoing> normal = new ArrayDeque<>();
+        double tokens;
+        long lastRefill;
+
+        Target(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        boolean isEmpty() {
+            return high.isEmpty() && normal.isEmpty();
+        }
+    }
+
+    // ==================== Outbound queue ====================
+    public static class OutboundQueue implements Runnable {
+        private final Sender sender;
+        private final double ratePerSecond;
+        private final int burst;
+        private final long coalesceWindowMillis;
+        private final int coalesceMaxBytes;
+        private final int capacity;
+        private final String coalesceSeparator = "\n";
+
+        private final Object lock = new Object();
+        // Insertion order gives round-robin between targets (served targets move to the end)
+        private final LinkedHashMap<String, Target> targets = new LinkedHashMap<>();
+        private int depth = 0;
+        private volatile boolean running = true;
+        private final Thread thread;
+
+        // Metrics
+        private final AtomicLong enqueued = new AtomicLong();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong totalWaitMillis = new AtomicLong();
+        private final AtomicLong totalSendMillis = new AtomicLong();
+        private volatile long maxWaitMillis = 0;
+        private volatile long maxSendMillis = 0;
+        private volatile int maxDepth = 0;
+
+        // coalesceMaxBytes bounds a merged message in UTF-8 bytes, the unit pagination budgets in
+        public OutboundQueue(Sender sender, double ratePerSecond, int burst, long coalesceWindowMillis, int coalesceMaxBytes, int capacity) {
+            this.sender = sender;
+            this.ratePerSecond = ratePerSecond > 0 ? ratePerSecond : 1.0;
+            this.burst = Math.max(1, burst);
+            this.coalesceWindowMillis = Math.max(0, coalesceWindowMillis);
+            this.coalesceMaxBytes = coalesceMaxBytes;
+            this.capacity = Math.max(1, capacity);
+            this.thread = new Thread(this, "hotload-outbound");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        // Queue a message, returns false if the queue is full (HIGH messages are never dropped)
+        public boolean enqueue(String groupUin, String userUin, String content, Priority priority) {
+            if (content == null) {
+                return false;
+            }
+            String g = groupUin != null ? groupUin : "";
+            String u = userUin != null ? userUin : "";
+            String key = !g.isEmpty() ? "g" + g : "p" + u;
+            boolean high = priority == Priority.HIGH;
+            long now = System.currentTimeMillis();
+            synchronized (lock) {
+                if (!running) {
+                    return false;
+                }
+                Target target = targets.get(key);
+                if (target == null) {
+                    target = new Target(burst, now);
+                    targets.put(key, target);
+                }
+                ArrayDeque<Outgoing> lane = high ? target.high : target.normal;
+                // Merge into the last queued message if it is recent, to the same recipient and short enough
+                Outgoing last = lane.peekLast();
+                int bytes = utf8Length(content);
+                if (last != null && coalesceWindowMillis > 0 && last.sameRecipient(g, u)
+                        && now - last.enqueuedAt <= coalesceWindowMillis
+                        && last.bytes + coalesceSeparator.length() + bytes <= coalesceMaxBytes) {
+                    last.content.append(coalesceSeparator).append(content);
+                    last.bytes += coalesceSeparator.length() + bytes;
+                    enqueued.incrementAndGet();
+                    coalesced.incrementAndGet();
+                    return true;
+                }
+                if (!high && depth >= capacity) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                lane.addLast(new Outgoing(g, u, content, bytes, now));
+                depth++;
+                if (depth > maxDepth) {
+                    maxDepth = depth;
+                }
+                enqueued.incrementAndGet();
+                lock.notifyAll();
+            }
+            return true;
+        }
+
+        public boolean enqueue(String groupUin, String userUin, String content) {
+            return enqueue(groupUin, userUin, content, Priority.NORMAL);
+        }
+
+        // ---------- Dispatcher thread ----------
+        public void run() {
+            while (true) {
+                Outgoing next;
+                synchronized (lock) {
+                    long waitMillis;
+                    while (true) {
+                        if (!running && depth == 0) {
+                            return;
+                        }
+                        long now = System.currentTimeMillis();
+                        waitMillis = Long.MAX_VALUE;
+                        next = null;
+                        String servedKey = null;
+                        Target served = null;
+                        // HIGH lanes of all targets first, then NORMAL
+                        for (int pass = 0; pass < 2 && next == null; pass++) {
+                            Iterator<Map.Entry<String, Target>> it = targets.entrySet().iterator();
+                            while (it.hasNext()) {
+                                Map.Entry<String, Target> entry = it.next();
+                                Target target = entry.getValue();
+                                if (target.isEmpty()) {
+                                    // Idle targets are kept until their bucket is full again, so a reset can't grant a new burst
+                                    refill(target, now);
+                                    if (target.tokens >= burst) {
+                                        it.remove();
+                                    }
+                                    continue;
+                                }
+                                ArrayDeque<Outgoing> lane = pass == 0 ? target.high : target.normal;
+                                Outgoing head = lane.peekFirst();
+                                if (head == null) {
+                                    continue;
+                                }
+                                refill(target, now);
+                                long ready = 0;
+                                if (target.tokens < 1.0) {
+                                    ready = (long) Math.ceil((1.0 - target.tokens) * 1000.0 / ratePerSecond);
+                                }
+                                // NORMAL messages linger briefly so follow-ups can be merged (unless shutting down)
+                                if (pass == 1 && running) {
+                                    ready = Math.max(ready, head.enqueuedAt + coalesceWindowMillis - now);
+                                }
+                                if (ready <= 0) {
+                                    next = lane.pollFirst();
+                                    target.tokens -= 1.0;
+                                    servedKey = entry.getKey();
+                                    served = target;
+                                    break;
+                                }
+                                waitMillis = Math.min(waitMillis, ready);
+                            }
+                        }
+                        if (next != null) {
+                            depth--;
+                            // Move served target to the end for round-robin fairness
+                            targets.remove(servedKey);
+                            targets.put(servedKey, served);
+                            break;
+                        }
+                        try {
+                            lock.wait(waitMillis == Long.MAX_VALUE ? 1000L : Math.max(1L, waitMillis));
+                        } catch (InterruptedException e) {
+                            running = false;
+                        }
+                    }
+                }
+                deliver(next);
+            }
+        }
+
+        private void refill(Target target, long now) {
+            long elapsed = now - target.lastRefill;
+            if (elapsed > 0) {
+                target.tokens = Math.min(burst, target.tokens + elapsed * ratePerSecond / 1000.0);
+                target.lastRefill = now;
+            }
+        }
+
+        private void deliver(Outgoing out) {
+            long start = System.currentTimeMillis();
+            long wait = start - out.enqueuedAt;
+            try {
+                sender.send(out.groupUin, out.userUin, out.content.toString());
+                sent.incrementAndGet();
+            } catch (Throwable e) {
+                failed.incrementAndGet();
+                System.err.println("Error sending outbound message: " + e.getMessage());
+            }
+            long sendMillis = System.currentTimeMillis() - start;
+            totalWaitMillis.addAndGet(wait);
+            totalSendMillis.addAndGet(sendMillis);
+            if (wait > maxWaitMillis) {
+                maxWaitMillis = wait;
+            }
+            if (sendMillis > maxSendMillis) {
+                maxSendMillis = sendMillis;
+            }
+        }
+
+        // ---------- Metrics ----------
+        public int getDepth() {
+            synchronized (lock) {
+                return depth;
+            }
+        }
+
+        public long getSentCount() {
+            return sent.get();
+        }
+
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        public long getCoalescedCount() {
+            return coalesced.get();
+        }
+
+        public String getStats() {
+            long delivered = sent.get() + failed.get();
+            long avgWait = delivered > 0 ? totalWaitMillis.get() / delivered : 0;
+            long avgSend = delivered > 0 ? totalSendMillis.get() / delivered : 0;
+            return "outbound: depth=" + getDepth() + " (max " + maxDepth + ")"
+                + ", enqueued=" + enqueued.get() + ", sent=" + sent.get()
+                + ", coalesced=" + coalesced.get() + ", dropped=" + dropped.get() + ", failed=" + failed.get()
+                + ", wait avg/max=" + avgWait + "/" + maxWaitMillis + "ms"
+                + ", send avg/max=" + avgSend + "/" + maxSendMillis + "ms";
+        }
+
+        // Stop accepting messages and send what is queued (waits up to timeoutMillis)
+        public void shutdown(long timeoutMillis) {
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Drop queued messages of a target (e.g. the bot was removed from the group)
+        public int clearTarget(String groupUin, String userUin) {
+            String key = groupUin != null && !groupUin.isEmpty() ? "g" + groupUin : "p" + (userUin != null ? userUin : "");
+            synchronized (lock) {
+                Target target = targets.get(key);
+                if (target == null) {
+                    return 0;
+                }
+                int removed = target.high.size() + target.normal.size();
+                target.high.clear();
+                target.normal.clear();
+                depth -= removed;
+                return removed;
+            }
+        }
+    }
+
+    // ==================== Pagination ====================
+    // UTF-8 size of a string without encoding it
+    public static int utf8Length(CharSequence s) {
+        int bytes = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Split text into pages of at most budgetBytes UTF-8 bytes. Pages end at the last line break
+    // that fits; a single line longer than the budget (e.g. compact JSON) is cut after the last
+    // ',', '{', '[' or space, and only as a last resort in the middle of a token.
+    public static List<String> paginate(String text, int budgetBytes) {
+        List<String> pages = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return pages;
+        }
+        int budget = Math.max(16, budgetBytes);
+        int len = text.length();
+        int start = 0;
+        while (start < len) {
+            int bytes = 0;
+            int lineBreak = -1;
+            int structBreak = -1;
+            int i = start;
+            while (i < len) {
+                char c = text.charAt(i);
+                int size;
+                int width = 1;
+                if (c < 0x80) {
+                    size = 1;
+                } else if (c < 0x800) {
+                    size = 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    size = 4;
+                    width = 2;
+                } else {
+                    size = 3;
+                }
+                if (bytes + size > budget) {
+                    break;
+                }
+                bytes += size;
+                i += width;
+                if (c == '\n') {
+                    lineBreak = i;
+                } else if (c == ',' || c == '{' || c == '[' || c == ' ') {
+                    structBreak = i;
+                }
+            }
+            int end;
+            if (i >= len) {
+                end = len;
+            } else if (lineBreak > start) {
+                end = lineBreak;
+            } else if (structBreak > start) {
+                end = structBreak;
+            } else {
+                end = i;
+            }
+            String page = text.substring(start, end);
+            // Line breaks at page edges carry no content
+            int trim = page.length();
+            while (trim > 0 && page.charAt(trim - 1) == '\n') {
+                trim--;
+            }
+            if (trim > 0) {
+                pages.add(trim == page.length() ? page : page.substring(0, trim));
+            }
+            start = end;
+            while (start < len && text.charAt(start) == '\n') {
+                start++;
+            }
+        }
+        return pages;
+    }
+
+    // Remaining pages of one paginated reply
+    private static class PageSet {
+        final List<String> pages;
+        int next = 1;
+        volatile long expiresAt;
+
+        PageSet(List<String> pages, long expiresAt) {
+            this.pages = pages;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Per-session cache of paginated replies, served one page at a time (e.g. on /下一页)
+    public static class PageCache {
+        private final int budgetBytes;
+        private final int maxSessions;
+        private final long ttlMillis;
+        private final ConcurrentHashMap<String, PageSet> sessions = new ConcurrentHashMap<>();
+
+        public PageCache(int budgetBytes, int maxSessions, long ttlMillis) {
+            this.budgetBytes = budgetBytes;
+            this.maxSessions = Math.max(1, maxSessions);
+            this.ttlMillis = ttlMillis;
+        }
+
+        // Paginate text and return the first page; the rest are kept for the session.
+        // A new reply replaces the session's unread pages.
+        public String start(String sessionId, String text) {
+            // Room for the page header and the footer hint
+            List<String> pages = paginate(text, budgetBytes - 96);
+            if (pages.size() <= 1) {
+                sessions.remove(sessionId);
+                return pages.isEmpty() ? "" : pages.get(0);
+            }
+            if (sessions.size() >= maxSessions && !sessions.containsKey(sessionId) && evictExpired() == 0) {
+                // Full of live sessions: drop the one idle longest, the first page always promises /下一页
+                evictOldest();
+            }
+            sessions.put(sessionId, new PageSet(pages, System.currentTimeMillis() + ttlMillis));
+            return decorate(pages, 0);
+        }
+
+        // Next page for the session, null if there is none (or it expired)
+        public String next(String sessionId) {
+            PageSet set = sessions.get(sessionId);
+            if (set == null) {
+                return null;
+            }
+            synchronized (set) {
+                if (System.currentTimeMillis() > set.expiresAt || set.next >= set.pages.size()) {
+                    sessions.remove(sessionId, set);
+                    return null;
+                }
+                int index = set.next++;
+                set.expiresAt = System.currentTimeMillis() + ttlMillis;
+                if (set.next >= set.pages.size()) {
+                    sessions.remove(sessionId, set);
+                }
+                return decorate(set.pages, index);
+            }
+        }
+
+        public int getRemaining(String sessionId) {
+            PageSet set = sessions.get(sessionId);
+            if (set == null) {
+                return 0;
+            }
+            synchronized (set) {
+                return Math.max(0, set.pages.size() - set.next);
+            }
+        }
+
+        public void clear(String sessionId) {
+            sessions.remove(sessionId);
+        }
+
+        public int evictExpired() {
+            long now = System.currentTimeMillis();
+            int removed = 0;
+            Iterator<Map.Entry<String, PageSet>> it = sessions.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now > it.next().getValue().expiresAt) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        public int size() {
+            return sessions.size();
+        }
+
+        private void evictOldest() {
+            Map.Entry<String, PageSet> oldest = null;
+            for (Map.Entry<String, PageSet> entry : sessions.entrySet()) {
+                if (oldest == null || entry.getValue().expiresAt < oldest.getValue().expiresAt) {
+                    oldest = entry;
+                }
+            }
+            if (oldest != null) {
+                sessions.remove(oldest.getKey(), oldest.getValue());
+            }
+        }
+
+        private static String decorate(List<String> pages, int index) {
+            int total = pages.size();
+            StringBuilder sb = new StringBuilder(pages.get(index).length() + 64);
+            sb.append('[').append(index + 1).append('/').append(total).append("]\n").append(pages.get(index));
+            if (index + 1 < total) {
+                sb.append("\n(发送 /下一页 查看第").append(index + 2).append('/').append(total).append("页)");
+            }
+            return sb.toString();
+        }
+    }
+
+    // Write text to a new file in dir through a fixed-size buffer, and delete files
+    // in dir with the same prefix older than maxAgeMillis. Returns the new file.
+    public static File writeTempFile(File dir, String prefix, String suffix, String text, long maxAgeMillis) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        long now = System.currentTimeMillis();
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                if (f.getName().startsWith(prefix) && now - f.lastModified() > maxAgeMillis) {
+                    f.delete();
+                }
+            }
+        }
+        File file = File.createTempFile(prefix, suffix, dir);
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            int len = text.length();
+            for (int i = 0; i < len; i += 8192) {
+                out.write(text, i, Math.min(8192, len - i));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // Factory methods
+    public static PageCache createPageCache(int budgetBytes, int maxSessions, long ttlMillis) {
+        return new PageCache(budgetBytes, maxSessions, ttlMillis);
+    }
+
+    public static OutboundQueue createOutboundQueue(Sender sender, double ratePerSecond, int burst, long coalesceWindowMillis, int coalesceMaxBytes, int capacity) {
+        return new OutboundQueue(sender, ratePerSecond, burst, coalesceWindowMillis, coalesceMaxBytes, capacity);
+    }
+}
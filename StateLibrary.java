@@ -0,0 +1,922 @@
+// StateLibrary.java
+// In-memory state indexes for main.java with write-through persistence,
+// a short-lived file metadata cache so existence checks never read file contents,
+// and the script manifest (the persisted load list)
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StateLibrary {
+    // Key-value store interface (implemented in main.java over getString/putString)
+    public interface Store {
+        String get(String key);
+        void put(String key, String value);
+    }
+
+    // Role tiers, higher value means more rights
+    public enum Role {
+        NONE(0, "none"),
+        GROUP_ADMIN(1, "group_admin"),
+        ADMIN(2, "admin"),
+        OWNER(3, "owner");
+
+        private final int value;
+        private final String name;
+
+        Role(int value, String name) {
+            this.value = value;
+            this.name = name;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean atLeast(Role other) {
+            return value >= other.value;
+        }
+    }
+
+    // Split a comma separated list, skipping blanks
+    public static Set<String> splitList(String str) {
+        Set<String> set = new LinkedHashSet<>();
+        if (str == null || str.isEmpty()) {
+            return set;
+        }
+        int start = 0;
+        int len = str.length();
+        while (start <= len) {
+            int comma = str.indexOf(',', start);
+            if (comma < 0) {
+                comma = len;
+            }
+            String item = str.substring(start, comma).trim();
+            if (!item.isEmpty()) {
+                set.add(item);
+            }
+            start = comma + 1;
+        }
+        return set;
+    }
+
+    public static String joinList(Collection<String> items) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : items) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(item);
+        }
+        return sb.toString();
+    }
+
+    // ==================== Admin index ====================
+    // Global admins are stored under globalKey, per-group admins under groupKeyPrefix + groupUin,
+    // and the list of groups that have group admins under groupListKey.
+    public static class AdminIndex {
+        // Immutable snapshot, replaced on every write so reads need no lock
+        private static class Snapshot {
+            final Set<String> admins;
+            final Map<String, Set<String>> groupAdmins;
+
+            Snapshot(Set<String> admins, Map<String, Set<String>> groupAdmins) {
+                this.admins = admins;
+                this.groupAdmins = groupAdmins;
+            }
+        }
+
+        private final Store store;
+        private final String globalKey;
+        private final String groupListKey;
+        private final String groupKeyPrefix;
+        private volatile String owner;
+        private volatile Snapshot snapshot = new Snapshot(Collections.<String>emptySet(), Collections.<String, Set<String>>emptyMap());
+
+        // Pending writes while a batch is open
+        private int batchDepth = 0;
+        private boolean globalDirty = false;
+        private final Set<String> dirtyGroups = new HashSet<>();
+
+        public AdminIndex(Store store, String globalKey, String groupListKey, String groupKeyPrefix) {
+            this.store = store;
+            this.globalKey = globalKey;
+            this.groupListKey = groupListKey;
+            this.groupKeyPrefix = groupKeyPrefix;
+        }
+
+        // Load all admin lists from the store (once, at startup)
+        public synchronized void load() {
+            Set<String> admins = splitList(store.get(globalKey));
+            Map<String, Set<String>> groups = new HashMap<>();
+            for (String groupUin : splitList(store.get(groupListKey))) {
+                Set<String> members = splitList(store.get(groupKeyPrefix + groupUin));
+                if (!members.isEmpty()) {
+                    groups.put(groupUin, Collections.unmodifiableSet(members));
+                }
+            }
+            snapshot = new Snapshot(Collections.unmodifiableSet(admins), Collections.unmodifiableMap(groups));
+        }
+
+        // Owner always has full rights and can't be removed
+        public void setOwner(String qq) {
+            owner = qq;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        // ---------- Lookups (lock-free) ----------
+        public boolean isAdmin(String qq) {
+            return qq != null && (qq.equals(owner) || snapshot.admins.contains(qq));
+        }
+
+        public boolean isGroupAdmin(String qq, String groupUin) {
+            if (isAdmin(qq)) {
+                return true;
+            }
+            if (qq == null || groupUin == null) {
+                return false;
+            }
+            Set<String> members = snapshot.groupAdmins.get(groupUin);
+            return members != null && members.contains(qq);
+        }
+
+        public Role getRole(String qq, String groupUin) {
+            if (qq == null) {
+                return Role.NONE;
+            }
+            if (qq.equals(owner)) {
+                return Role.OWNER;
+            }
+            Snapshot s = snapshot;
+            if (s.admins.contains(qq)) {
+                return Role.ADMIN;
+            }
+            if (groupUin != null) {
+                Set<String> members = s.groupAdmins.get(groupUin);
+                if (members != null && members.contains(qq)) {
+                    return Role.GROUP_ADMIN;
+                }
+            }
+            return Role.NONE;
+        }
+
+        public Set<String> getAdmins() {
+            return snapshot.admins;
+        }
+
+        public Set<String> getGroupAdmins(String groupUin) {
+            Set<String> members = snapshot.groupAdmins.get(groupUin);
+            return members != null ? members : Collections.<String>emptySet();
+        }
+
+        public int getAdminCount() {
+            return snapshot.admins.size();
+        }
+
+        // ---------- Batching ----------
+        // Writes inside beginBatch()/endBatch() are persisted once when the outermost batch ends
+        public synchronized void beginBatch() {
+            batchDepth++;
+        }
+
+        public synchronized void endBatch() {
+            if (batchDepth > 0) {
+                batchDepth--;
+            }
+            if (batchDepth == 0) {
+                flush();
+            }
+        }
+
+        // ---------- Global admins (write-through) ----------
+        public synchronized boolean addAdmin(String qq) {
+            return addAdmins(Collections.singleton(qq)) > 0;
+        }
+
+        public synchronized int addAdmins(Collection<String> qqs) {
+            Snapshot s = snapshot;
+            Set<String> next = new LinkedHashSet<>(s.admins);
+            int added = 0;
+            for (String qq : qqs) {
+                if (qq != null && !qq.isEmpty() && next.add(qq)) {
+                    added++;
+                }
+            }
+            if (added > 0) {
+                snapshot = new Snapshot(Collections.unmodifiableSet(next), s.groupAdmins);
+                globalDirty = true;
+                flushIfIdle();
+            }
+            return added;
+        }
+
+        public synchronized boolean removeAdmin(String qq) {
+            return removeAdmins(Collections.singleton(qq)) > 0;
+        }
+
+        public synchronized int removeAdmins(Collection<String> qqs) {
+            Snapshot s = snapshot;
+            Set<String> next = new LinkedHashSet<>(s.admins);
+            int removed = 0;
+            for (String qq : qqs) {
+                if (qq != null && !qq.equals(owner) && next.remove(qq)) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                snapshot = new Snapshot(Collections.unmodifiableSet(next), s.groupAdmins);
+                globalDirty = true;
+                flushIfIdle();
+            }
+            return removed;
+        }
+
+        // ---------- Per-group admins (write-through) ----------
+        public synchronized int addGroupAdmins(String groupUin, Collection<String> qqs) {
+            if (groupUin == null || groupUin.isEmpty()) {
+                return 0;
+            }
+            Snapshot s = snapshot;
+            Set<String> current = s.groupAdmins.get(groupUin);
+            Set<String> members = current != null ? new LinkedHashSet<>(current) : new LinkedHashSet<String>();
+            int added = 0;
+            for (String qq : qqs) {
+                if (qq != null && !qq.isEmpty() && members.add(qq)) {
+                    added++;
+                }
+            }
+            if (added > 0) {
+                replaceGroup(s, groupUin, members);
+            }
+            return added;
+        }
+
+        public synchronized int removeGroupAdmins(String groupUin, Collection<String> qqs) {
+            Snapshot s = snapshot;
+            Set<String> current = groupUin != null ? s.groupAdmins.get(groupUin) : null;
+            if (current == null) {
+                return 0;
+            }
+            Set<String> members = new LinkedHashSet<>(current);
+            int removed = 0;
+            for (String qq : qqs) {
+                if (qq != null && members.remove(qq)) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                replaceGroup(s, groupUin, members);
+            }
+            return removed;
+        }
+
+        private void replaceGroup(Snapshot s, String groupUin, Set<String> members) {
+            Map<String, Set<String>> groups = new HashMap<>(s.groupAdmins);
+            if (members.isEmpty()) {
+                groups.remove(groupUin);
+            } else {
+                groups.put(groupUin, Collections.unmodifiableSet(members));
+            }
+            snapshot = new Snapshot(s.admins, Collections.unmodifiableMap(groups));
+            dirtyGroups.add(groupUin);
+            flushIfIdle();
+        }
+
+        // ---------- Persistence ----------
+        private void flushIfIdle() {
+            if (batchDepth == 0) {
+                flush();
+            }
+        }
+
+        // Write dirty lists to the store
+        public synchronized void flush() {
+            Snapshot s = snapshot;
+            if (globalDirty) {
+                store.put(globalKey, joinList(s.admins));
+                globalDirty = false;
+            }
+            if (!dirtyGroups.isEmpty()) {
+                for (String groupUin : dirtyGroups) {
+                    Set<String> members = s.groupAdmins.get(groupUin);
+                    store.put(groupKeyPrefix + groupUin, members != null ? joinList(members) : "");
+                }
+                store.put(groupListKey, joinList(s.groupAdmins.keySet()));
+                dirtyGroups.clear();
+            }
+        }
+    }
+
+    // ==================== Session state table ====================
+    // Waiting session (e.g. /保存 or /编辑 waiting for the next message)
+    public static class Session {
+        public final String sessionId;
+        public final int state;
+        public final String fileName;
+        public final long expiresAt;
+
+        Session(String sessionId, int state, String fileName, long expiresAt) {
+            this.sessionId = sessionId;
+            this.state = state;
+            this.fileName = fileName;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    // In-memory table of waiting sessions with TTL eviction.
+    // The whole table is persisted as one string under storeKey, written by flush() (periodically
+    // once startFlushing was called, and at unload), so neither lookups nor changes touch storage.
+    public static class SessionTable {
+        private final Store store;
+        private final String storeKey;
+        private final long ttlMillis;
+        private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+        private volatile boolean dirty = false;
+        // Earliest expiresAt in the table (Long.MAX_VALUE when empty); reads sweep once it has passed
+        private volatile long nextExpiry = Long.MAX_VALUE;
+        private volatile Thread flusher;
+
+        public SessionTable(Store store, String storeKey, long ttlMillis) {
+            this.store = store;
+            this.storeKey = storeKey;
+            this.ttlMillis = ttlMillis;
+        }
+
+        // Restore sessions saved before a reload, dropping expired ones
+        // Format: sessionId|state|fileName|expiresAt;...
+        public synchronized void load() {
+            sessions.clear();
+            String str = store.get(storeKey);
+            if (str == null || str.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (String item : str.split(";")) {
+                String[] fields = item.split("\\|");
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    Session session = new Session(fields[0], Integer.parseInt(fields[1]), fields[2], Long.parseLong(fields[3]));
+                    if (!session.isExpired(now)) {
+                        sessions.put(session.sessionId, session);
+                        nextExpiry = Math.min(nextExpiry, session.expiresAt);
+                    }
+                } catch (NumberFormatException e) {
+                    // Skip malformed entries
+                }
+            }
+            if (sessions.isEmpty()) {
+                dirty = true;
+                flush();
+            }
+        }
+
+        // Fast check: true when no session is waiting. Expired sessions are dropped first, so an
+        // abandoned wait does not keep every message on the slow path until the next begin()
+        public boolean isEmpty() {
+            if (sessions.isEmpty()) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= nextExpiry) {
+                evictExpired();
+            }
+            return sessions.isEmpty();
+        }
+
+        public int size() {
+            return sessions.size();
+        }
+
+        // Get waiting session, null if none or expired
+        public Session get(String sessionId) {
+            if (sessionId == null) {
+                return null;
+            }
+            Session session = sessions.get(sessionId);
+            if (session != null && session.isExpired(System.currentTimeMillis())) {
+                if (sessions.remove(sessionId, session)) {
+                    dirty = true;
+                }
+                return null;
+            }
+            return session;
+        }
+
+        // Start waiting (replaces any previous state of the session)
+        public void begin(String sessionId, int state, String fileName) {
+            long now = System.currentTimeMillis();
+            Session session = new Session(sessionId, state, fileName, now + ttlMillis);
+            sessions.put(sessionId, session);
+            dirty = true;
+            synchronized (sessions) {
+                nextExpiry = Math.min(nextExpiry, session.expiresAt);
+            }
+            if (now >= nextExpiry) {
+                evictExpired();
+            }
+        }
+
+        // Stop waiting, returns false if the session wasn't waiting
+        public boolean clear(String sessionId) {
+            if (sessionId != null && sessions.remove(sessionId) != null) {
+                dirty = true;
+                return true;
+            }
+            return false;
+        }
+
+        // Remove all expired sessions, returns removed count
+        public int evictExpired() {
+            long now = System.currentTimeMillis();
+            int removed = 0;
+            // Serialized with begin() so a session added during the sweep keeps its expiry in nextExpiry
+            synchronized (sessions) {
+                long next = Long.MAX_VALUE;
+                Iterator<Session> it = sessions.values().iterator();
+                while (it.hasNext()) {
+                    Session session = it.next();
+                    if (session.isExpired(now)) {
+                        it.remove();
+                        removed++;
+                    } else {
+                        next = Math.min(next, session.expiresAt);
+                    }
+                }
+                nextExpiry = next;
+            }
+            if (removed > 0) {
+                dirty = true;
+            }
+            return removed;
+        }
+
+        public boolean isDirty() {
+            return dirty;
+        }
+
+        // Persist the table if it changed since the last flush
+        public synchronized void flush() {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            StringBuilder sb = new StringBuilder();
+            for (Session session : sessions.values()) {
+                if (sb.length() > 0) {
+                    sb.append(';');
+                }
+                sb.append(session.sessionId).append('|')
+                  .append(session.state).append('|')
+                  .append(session.fileName).append('|')
+                  .append(session.expiresAt);
+            }
+            store.put(storeKey, sb.toString());
+        }
+
+        // Flush changes every intervalMillis on a daemon thread, so begin/clear only mark the table dirty
+        public synchronized void startFlushing(final long intervalMillis) {
+            if (flusher != null) {
+                return;
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (flusher == Thread.currentThread()) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        try {
+                            if (System.currentTimeMillis() >= nextExpiry) {
+                                evictExpired();
+                            }
+                            flush();
+                        } catch (RuntimeException e) {
+                            // Keep the table dirty and try again next round
+                            dirty = true;
+                        }
+                    }
+                }
+            }, "session-flusher");
+            t.setDaemon(true);
+            flusher = t;
+            t.start();
+        }
+
+        // Stop the background flusher; the caller flushes once more itself (e.g. at unload)
+        public synchronized void stopFlushing() {
+            Thread t = flusher;
+            flusher = null;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+    }
+
+    // ==================== File metadata ====================
+    // Snapshot of one path, taken from java.io.File without opening the file
+    public static final class FileStat {
+        public final String path;
+        public final boolean exists;
+        public final boolean directory;
+        public final long size;
+        public final long lastModified;
+        final long checkedAt;
+        final String[] names; // directory listing, only filled by list()
+
+        FileStat(File file, long checkedAt, String[] names) {
+            this.path = file.getPath();
+            this.exists = file.exists();
+            this.directory = exists && file.isDirectory();
+            this.size = exists && !directory ? file.length() : 0L;
+            this.lastModified = exists ? file.lastModified() : 0L;
+            this.checkedAt = checkedAt;
+            this.names = names;
+        }
+
+        public boolean isFile() {
+            return exists && !directory;
+        }
+    }
+
+    // Existence, size, mtime and directory listings, cached for ttlMillis. Writes made by main.java
+    // call invalidate(path), which also drops the parent directory's listing.
+    public static class FileStats {
+        private final long ttlMillis;
+        private final int maxEntries;
+        private final ConcurrentHashMap<String, FileStat> stats = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, FileStat> listings = new ConcurrentHashMap<>();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong invalidations = new AtomicLong();
+
+        public FileStats(long ttlMillis, int maxEntries) {
+            this.ttlMillis = ttlMillis;
+            this.maxEntries = Math.max(1, maxEntries);
+        }
+
+        public FileStat stat(String path) {
+            File file = new File(path);
+            String key = file.getPath();
+            long now = System.currentTimeMillis();
+            FileStat cached = stats.get(key);
+            if (cached != null && now - cached.checkedAt < ttlMillis) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            misses.incrementAndGet();
+            FileStat fresh = new FileStat(file, now, null);
+            put(stats, key, fresh, now);
+            return fresh;
+        }
+
+        public boolean exists(String path) {
+            return stat(path).exists;
+        }
+
+        public boolean isFile(String path) {
+            return stat(path).isFile();
+        }
+
+        public boolean isDirectory(String path) {
+            return stat(path).directory;
+        }
+
+        public long size(String path) {
+            return stat(path).size;
+        }
+
+        public long lastModified(String path) {
+            return stat(path).lastModified;
+        }
+
+        // Names in a directory (sorted), null if it is not a directory
+        public String[] list(String dir) {
+            File file = new File(dir);
+            String key = file.getPath();
+            long now = System.currentTimeMillis();
+            FileStat cached = listings.get(key);
+            if (cached != null && now - cached.checkedAt < ttlMillis) {
+                hits.incrementAndGet();
+                return cached.names != null ? cached.names.clone() : null;
+            }
+            misses.incrementAndGet();
+            String[] names = file.list();
+            if (names != null) {
+                Arrays.sort(names);
+            }
+            put(listings, key, new FileStat(file, now, names), now);
+            return names != null ? names.clone() : null;
+        }
+
+        // Forget a path after writing or deleting it
+        public void invalidate(String path) {
+            File file = new File(path);
+            stats.remove(file.getPath());
+            listings.remove(file.getPath());
+            File parent = file.getParentFile();
+            if (parent != null) {
+                stats.remove(parent.getPath());
+                listings.remove(parent.getPath());
+            }
+            invalidations.incrementAndGet();
+        }
+
+        public void clear() {
+            stats.clear();
+            listings.clear();
+            invalidations.incrementAndGet();
+        }
+
+        public int size() {
+            return stats.size() + listings.size();
+        }
+
+        public String getStats() {
+            return "file stats: " + size() + " entries, hits " + hits.get() + ", misses " + misses.get()
+                + ", invalidations " + invalidations.get();
+        }
+
+        private void put(ConcurrentHashMap<String, FileStat> map, String key, FileStat stat, long now) {
+            if (map.size() >= maxEntries && !map.containsKey(key)) {
+                for (Map.Entry<String, FileStat> e : map.entrySet()) {
+                    if (now - e.getValue().checkedAt >= ttlMillis) {
+                        map.remove(e.getKey(), e.getValue());
+                    }
+                }
+                if (map.size() >= maxEntries) {
+                    map.clear();
+                }
+            }
+            map.put(key, stat);
+        }
+    }
+
+    // ==================== Script manifest ====================
+    // One persisted script in the manifest
+    public static final class ManifestEntry {
+        public final String name;
+        public final int order;
+        public final boolean enabled;
+        public final String hash; // content hash at the last successful load, null if unknown
+
+        ManifestEntry(String name, int order, boolean enabled, String hash) {
+            this.name = name;
+            this.order = order;
+            this.enabled = enabled;
+            this.hash = hash;
+        }
+    }
+
+    // The persisted load list: an in-memory index backed by an append-only record file.
+    // Every change appends one line ("+|order|enabled|hash|name" or "-|name"), so add/remove cost
+    // O(1) I/O; when dead records pile up the file is rewritten to a temp file and renamed over
+    // the original. A torn last line (crash mid-append) is ignored on load.
+    public static class ScriptManifest {
+        private static final String HEADER = "# script manifest v1\n";
+
+        private final File file;
+        private final Map<String, ManifestEntry> entries = new LinkedHashMap<>();
+        private int nextOrder = 0;
+        private int records = 0;
+        private boolean existed = false;
+
+        public ScriptManifest(String path) {
+            this.file = new File(path);
+        }
+
+        // Read the manifest (once, at startup); returns false if the file does not exist yet
+        public synchronized boolean load() throws IOException {
+            entries.clear();
+            nextOrder = 0;
+            records = 0;
+            existed = file.isFile();
+            if (!existed) {
+                return false;
+            }
+            String text = readAll(file);
+            int start = 0;
+            int end;
+            while ((end = text.indexOf('\n', start)) >= 0) {
+                apply(text.substring(start, end));
+                start = end + 1;
+            }
+            if (start < text.length()) {
+                // Torn last record: rewrite so the next append starts on a fresh line
+                compact();
+            }
+            return true;
+        }
+
+        public synchronized boolean exists() {
+            return existed;
+        }
+
+        public synchronized boolean contains(String name) {
+            return entries.containsKey(name);
+        }
+
+        public synchronized ManifestEntry get(String name) {
+            return entries.get(name);
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        // Add an enabled entry at the end of the load order; re-enables a disabled entry.
+        // Returns false if the script was already listed and enabled.
+        public synchronized boolean add(String name) throws IOException {
+            ManifestEntry old = entries.get(name);
+            if (old != null && old.enabled) {
+                return false;
+            }
+            put(old != null ? new ManifestEntry(name, old.order, true, old.hash)
+                : new ManifestEntry(name, nextOrder, true, null));
+            return true;
+        }
+
+        public synchronized boolean remove(String name) throws IOException {
+            if (!entries.containsKey(name)) {
+                return false;
+            }
+            append("-|" + name + "\n");
+            entries.remove(name);
+            return true;
+        }
+
+        public synchronized boolean setEnabled(String name, boolean enabled) throws IOException {
+            ManifestEntry old = entries.get(name);
+            if (old == null || old.enabled == enabled) {
+                return false;
+            }
+            put(new ManifestEntry(name, old.order, enabled, old.hash));
+            return true;
+        }
+
+        public synchronized void setHash(String name, String hash) throws IOException {
+            ManifestEntry old = entries.get(name);
+            if (old == null || (hash == null ? old.hash == null : hash.equals(old.hash))) {
+                return;
+            }
+            put(new ManifestEntry(name, old.order, old.enabled, hash));
+        }
+
+        // Entries in load order
+        public synchronized List<ManifestEntry> getEntries() {
+            List<ManifestEntry> list = new ArrayList<>(entries.values());
+            Collections.sort(list, (a, b) -> Integer.compare(a.order, b.order));
+            return list;
+        }
+
+        // Replace the whole manifest with the given names (in order, enabled), e.g. when migrating
+        public synchronized void replaceAll(Collection<String> names) throws IOException {
+            Map<String, ManifestEntry> fresh = new LinkedHashMap<>();
+            int order = 0;
+            for (String name : names) {
+                if (!fresh.containsKey(name)) {
+                    fresh.put(name, new ManifestEntry(name, order++, true, null));
+                }
+            }
+            writeSnapshot(fresh.values());
+            entries.clear();
+            entries.putAll(fresh);
+            nextOrder = order;
+            records = entries.size();
+            existed = true;
+        }
+
+        // Rewrite the file with only the live entries (temp file + rename)
+        public synchronized void compact() throws IOException {
+            writeSnapshot(entries.values());
+            records = entries.size();
+        }
+
+        private void put(ManifestEntry entry) throws IOException {
+            append(format(entry));
+            entries.put(entry.name, entry);
+            nextOrder = Math.max(nextOrder, entry.order + 1);
+            if (records > entries.size() * 2 + 32) {
+                compact();
+            }
+        }
+
+        private void apply(String line) {
+            String[] parts = line.split("\\|", 5);
+            try {
+                if (parts.length == 5 && parts[0].equals("+") && !parts[4].isEmpty()) {
+                    int order = Integer.parseInt(parts[1]);
+                    entries.put(parts[4], new ManifestEntry(parts[4], order, parts[2].equals("1"),
+                        parts[3].equals("-") ? null : parts[3]));
+                    nextOrder = Math.max(nextOrder, order + 1);
+                    records++;
+                } else if (parts.length == 2 && parts[0].equals("-")) {
+                    entries.remove(parts[1]);
+                    records++;
+                }
+            } catch (NumberFormatException e) {
+                // Skip a damaged record
+            }
+        }
+
+        private static String format(ManifestEntry entry) {
+            return "+|" + entry.order + "|" + (entry.enabled ? "1" : "0") + "|"
+                + (entry.hash != null ? entry.hash : "-") + "|" + entry.name + "\n";
+        }
+
+        private void append(String record) throws IOException {
+            if (!file.isFile()) {
+                // First write (or the file was deleted): start a fresh snapshot with the current entries
+                writeSnapshot(entries.values());
+                records = entries.size();
+                existed = true;
+            }
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(record.getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            records++;
+        }
+
+        private void writeSnapshot(Collection<ManifestEntry> values) throws IOException {
+            List<ManifestEntry> list = new ArrayList<>(values);
+            Collections.sort(list, (a, b) -> Integer.compare(a.order, b.order));
+            StringBuilder sb = new StringBuilder(HEADER);
+            for (ManifestEntry entry : list) {
+                sb.append(format(entry));
+            }
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+
+        private static String readAll(File file) throws IOException {
+            try (InputStream in = new FileInputStream(file)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, file.length()));
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    // Factory method
+    public static AdminIndex createAdminIndex(Store store, String globalKey, String groupListKey, String groupKeyPrefix) {
+        return new AdminIndex(store, globalKey, groupListKey, groupKeyPrefix);
+    }
+
+    public static SessionTable createSessionTable(Store store, String storeKey, long ttlMillis) {
+        return new SessionTable(store, storeKey, ttlMillis);
+    }
+
+    public static ScriptManifest createScriptManifest(String path) {
+        return new ScriptManifest(path);
+    }
+
+    public static FileStats createFileStats(long ttlMillis, int maxEntries) {
+        return new FileStats(ttlMillis, maxEntries);
+    }
+}
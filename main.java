@@ -3,6 +3,8 @@
 // 命令（仅管理员可用）：
 //   /加权 QQ号          - 将指定QQ加入管理员白名单
 //   /去权 QQ号          - 将指定QQ从管理员白名单移除
+//   /群加权 QQ号        - 将指定QQ设为本群的群级管理员
+//   /群去权 QQ号        - 移除本群的群级管理员
 //   /保存 文件名.java    - 静默等待下一条消息作为代码保存（保存后仅回复"已保存"）
 //   /存储 文件名.java    - 同上（兼容旧命令）
 //   /编辑 文件名.java    - 显示当前内容，等待新内容覆盖
@@ -11,21 +13,47 @@
 //   /取消保持 文件名.java - 从持久化列表移除
 //   /取消              - 放弃当前等待状态
 //   /列表              - 查看持久化列表
+//   /日志级别 级别      - 查看或修改日志级别（debug/info/warn/error/off）
+//   /发送统计          - 查看发送队列深度、合并数和发送延迟
+//   /缓存统计 [清空]    - 查看或清空HTTP缓存、脚本缓存和文件元数据缓存
+//   /启动耗时          - 查看上次加载各阶段耗时和已加载脚本的状态
+//   /处理器统计 [导出]  - 查看每个处理器的调用次数、错误数和p50/p99/最大耗时，或导出到文件
+//   /恢复处理器 [名称|全部] - 查看或解除被看门狗隔离的处理器
+//   /下一页            - 查看长消息的下一页（所有人可用）
 
 import android.content.Context;
+import java.io.File;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 String STATE_PREFIX = "hotload_state_";
 String FILE_PREFIX = "hotload_file_";
+String SESSION_CONFIG = "hotload_session";
+String SESSION_KEY = "waiting";
+long SESSION_TTL = 10 * 60 * 1000L;
+// 等待状态变更后不立即写存储，后台每隔这么久写一次，卸载时再写一次
+long SESSION_FLUSH_INTERVAL_MS = 5000L;
+// 旧版持久化列表，只在首次启动时迁移到脚本清单（scripts/manifest.txt）
 String PERSIST_CONFIG = "hotload_persist";
 String PERSIST_KEY = "files";
 String ADMIN_CONFIG = "admin_list";
 String ADMIN_KEY = "admins";
+String ADMIN_GROUPS_KEY = "groups";
+String ADMIN_GROUP_PREFIX = "group_";
 
 int STATE_NONE = 0;
 int STATE_WAIT_CREATE = 1;
@@ -38,9 +66,31 @@ void registerMessageHandler(String name, Object handler) {
     log("Registered message handler: " + name);
 }
 
-// 发送消息的全局方法
+// 发送消息的全局方法：进入发送队列，由发送线程按目标限速后发出
 void sendGlobalMessage(String groupUin, String userUin, String content) {
-    sendMsg(groupUin, userUin, content);
+    if (outboundQueue != null) {
+        outboundQueue.enqueue(groupUin, userUin, content, SendLibrary.Priority.NORMAL);
+    } else {
+        sendMsg(groupUin, userUin, content);
+    }
+}
+
+// 优先发送：管理员命令的回复走高优先级通道，排在普通回复之前
+void sendPriorityMessage(String groupUin, String userUin, String content) {
+    if (outboundQueue != null) {
+        outboundQueue.enqueue(groupUin, userUin, content, SendLibrary.Priority.HIGH);
+    } else {
+        sendMsg(groupUin, userUin, content);
+    }
+}
+
+// 回复消息：群聊回复到群，私聊回复给个人
+void replyMessage(Object msg, String content) {
+    sendGlobalMessage(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, content);
+}
+
+void replyAdmin(Object msg, String content) {
+    sendPriorityMessage(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, content);
 }
 
 // 日志记录的全局方法
@@ -58,11 +108,284 @@ boolean isGlobalAdmin(String qq) {
     return isAdmin(qq);
 }
 
+// 检查是否为指定群的管理员（全局管理员在所有群都有权限）
+boolean isGroupAdmin(String qq, String groupUin) {
+    if (adminIndex != null) {
+        return adminIndex.isGroupAdmin(qq, groupUin);
+    }
+    return isAdmin(qq);
+}
+
 // 脚本注册方法，供其他脚本在加载时调用
 void registerScript(String scriptName, Object scriptObject) {
     log("Script registered: " + scriptName);
 }
 
+// 日志配置：热路径日志走LogLibrary异步写入 logs/hotload.log，WARN及以上同时写入QStory日志
+String LOG_LEVEL = "info";
+int LOG_QUEUE_CAPACITY = 4096;
+long LOG_MAX_BYTES = 1024 * 1024L;
+int LOG_MAX_FILES = 3;
+
+Object logger = null;
+
+void initLogger() {
+    Object l = LogLibrary.createLogger(appPath + "/logs/hotload.log", LOG_QUEUE_CAPACITY, LOG_MAX_BYTES, LOG_MAX_FILES);
+    if (!l.setLevel(LOG_LEVEL)) {
+        log("Unknown LOG_LEVEL " + LOG_LEVEL + ", using info");
+    }
+    l.setMirror(new LogLibrary.LogSink() {
+        public void write(String line) {
+            log(line);
+        }
+    }, LogLibrary.Level.WARN);
+    logger = l;
+}
+
+// 分级日志的全局方法，消息中的{}在写入线程中才替换为参数，级别未开启时没有任何拼接开销
+void logDebug(String format) {
+    if (logger != null) logger.debug(format);
+}
+
+void logDebug(String format, Object arg) {
+    if (logger != null) logger.debug(format, arg);
+}
+
+void logDebug(String format, Object arg0, Object arg1) {
+    if (logger != null) logger.debug(format, arg0, arg1);
+}
+
+void logDebug(String format, Object arg0, Object arg1, Object arg2) {
+    if (logger != null) logger.debug(format, arg0, arg1, arg2);
+}
+
+void logDebug(String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+    if (logger != null) logger.debug(format, arg0, arg1, arg2, arg3);
+}
+
+void logInfo(String format) {
+    if (logger != null) logger.info(format);
+    else log(format);
+}
+
+void logInfo(String format, Object arg) {
+    if (logger != null) logger.info(format, arg);
+    else log(format.replace("{}", String.valueOf(arg)));
+}
+
+void logWarn(String format, Object arg) {
+    if (logger != null) logger.warn(format, arg);
+    else log(format.replace("{}", String.valueOf(arg)));
+}
+
+void logWarn(String format, Object arg0, Object arg1, Object arg2) {
+    if (logger != null) {
+        logger.warn(format, arg0, arg1, arg2);
+        return;
+    }
+    // LogLibrary可能尚未加载，这里自己按顺序替换{}
+    String text = format;
+    Object[] args = {arg0, arg1, arg2};
+    for (int i = 0; i < args.length; i++) {
+        int idx = text.indexOf("{}");
+        if (idx < 0) break;
+        text = text.substring(0, idx) + args[i] + text.substring(idx + 2);
+    }
+    log(text);
+}
+
+// 发送队列配置：每个群/私聊单独限速，短时间内的多条短回复合并为一条
+double SEND_RATE_PER_SECOND = 1.0;
+int SEND_BURST = 5;
+long SEND_COALESCE_MILLIS = 300L;
+// 合并后的消息不超过这么多UTF-8字节，与分页预算（PAGE_BYTES）相同，分页后的每一页不会再和其他回复合并超出预算
+int SEND_COALESCE_MAX_BYTES = 3000;
+int SEND_QUEUE_CAPACITY = 512;
+
+Object outboundQueue = null;
+
+void initOutboundQueue() {
+    outboundQueue = SendLibrary.createOutboundQueue(new SendLibrary.Sender() {
+        public void send(String groupUin, String userUin, String content) {
+            sendMsg(groupUin, userUin, content);
+        }
+    }, SEND_RATE_PER_SECOND, SEND_BURST, SEND_COALESCE_MILLIS, SEND_COALESCE_MAX_BYTES, SEND_QUEUE_CAPACITY);
+}
+
+// 长消息分页配置：超过PAGE_BYTES字节的回复按行拆分，剩余页面通过 /下一页 获取；超过PAGE_FILE_THRESHOLD改为发送文件
+int PAGE_BYTES = 3000;
+int PAGE_FILE_THRESHOLD = 64 * 1024;
+int PAGE_MAX_SESSIONS = 256;
+long PAGE_TTL = 10 * 60 * 1000L;
+long PAGE_FILE_MAX_AGE = 60 * 60 * 1000L;
+
+Object pageCache = null;
+
+void initPageCache() {
+    pageCache = SendLibrary.createPageCache(PAGE_BYTES, PAGE_MAX_SESSIONS, PAGE_TTL);
+}
+
+// 会话ID：群聊按群+成员区分，私聊按QQ区分
+String getSessionId(Object msg) {
+    return msg.IsGroup ? "g" + msg.GroupUin + "_" + msg.UserUin : "p" + msg.UserUin;
+}
+
+// 消息上下文：按消息类缓存字段，读取一次得到内容（已去除首尾空白）、回复目标、会话键和消息类型
+// 同一线程对同一条消息重复获取时返回同一个对象；EventLibrary未加载时返回null，调用方退回直接读取字段
+Object messageContext(Object msg) {
+    try {
+        return EventLibrary.contextOf(msg);
+    } catch (Throwable e) {
+        return null;
+    }
+}
+
+// 脚本处理器使用的消息上下文：EventLibrary已加载时就是messageContext(msg)，否则是直接读取字段的等价对象
+// 两者提供相同的getContent/isGroup/getGroupUin/getUserUin/getReplyGroupUin/getReplyUserUin/getSessionKey/getReplyKey/getMessage，
+// 脚本用onMessage(Object msg)接收消息，不论EventLibrary是否加载都能工作
+Object scriptMessageContext(Object msg) {
+    Object ctx = messageContext(msg);
+    return ctx != null ? ctx : plainMessageContext(msg);
+}
+
+Object plainMessageContext(Object msg) {
+    final Object message = msg;
+    final String content = msg.MessageContent != null ? msg.MessageContent.trim() : "";
+    final boolean group = msg.IsGroup;
+    final String groupUin = msg.GroupUin != null ? msg.GroupUin : "";
+    final String userUin = msg.UserUin != null ? msg.UserUin : "";
+    
+    Object getMessage() { return message; }
+    String getContent() { return content; }
+    boolean isGroup() { return group; }
+    String getGroupUin() { return groupUin; }
+    String getUserUin() { return userUin; }
+    String getReplyGroupUin() { return group ? groupUin : ""; }
+    String getReplyUserUin() { return group ? "" : userUin; }
+    String getReplyKey() { return group ? "g" + groupUin : "p" + userUin; }
+    String getSessionKey() { return group ? "g" + groupUin + "_" + userUin : "p" + userUin; }
+    
+    return this;
+}
+
+Class messageContextType() {
+    try {
+        return EventLibrary.MessageContext.class;
+    } catch (Throwable e) {
+        return null;
+    }
+}
+
+// 回复可能很长的内容：短内容直接发送，较长内容分页，特别长的内容写入临时文件后用sendFile发送
+void replyLong(Object msg, String text) {
+    replyPaged(msg, text, false);
+}
+
+void replyPaged(Object msg, String text, boolean priority) {
+    if (pageCache == null || text == null) {
+        if (priority) replyAdmin(msg, text);
+        else replyMessage(msg, text);
+        return;
+    }
+    int bytes = SendLibrary.utf8Length(text);
+    if (bytes > PAGE_FILE_THRESHOLD) {
+        try {
+            File file = SendLibrary.writeTempFile(new File(appPath + "/tmp"), "reply_", ".txt", text, PAGE_FILE_MAX_AGE);
+            sendFile(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, file.getAbsolutePath());
+            String notice = "内容较长（" + (bytes / 1024) + "KB），已作为文件发送。";
+            if (priority) replyAdmin(msg, notice);
+            else replyMessage(msg, notice);
+            return;
+        } catch (Exception e) {
+            error(e);
+            log("Error sending reply as file, falling back to pages: " + e.getMessage());
+        }
+    }
+    String first = bytes > PAGE_BYTES ? pageCache.start(getSessionId(msg), text) : text;
+    if (priority) replyAdmin(msg, first);
+    else replyMessage(msg, first);
+}
+
+void handleNextPageCommand(Object msg, String sessionId) {
+    String page = pageCache != null ? pageCache.next(sessionId) : null;
+    replyMessage(msg, page != null ? page : "没有更多内容了。");
+}
+
+// HTTP缓存配置：相同URL在TTL内直接返回缓存，同时发起的相同请求只请求一次，接口出错时返回过期的缓存
+long HTTP_CACHE_TTL = 60 * 1000L;
+int HTTP_CACHE_MAX_ENTRIES = 256;
+long HTTP_CACHE_MAX_CHARS = 4 * 1024 * 1024L;
+long HTTP_CACHE_MAX_STALE = 60 * 60 * 1000L;
+
+Object httpCache = null;
+
+void initHttpCache() {
+    httpCache = HttpLibrary.createHttpCache(new HttpLibrary.Fetcher() {
+        public String fetch(String url) {
+            return httpGet(url);
+        }
+    }, HTTP_CACHE_TTL, HTTP_CACHE_MAX_ENTRIES, HTTP_CACHE_MAX_CHARS, HTTP_CACHE_MAX_STALE);
+}
+
+// 带缓存的httpGet，脚本调用API时使用，失败且没有缓存时返回null
+String httpGetCached(String url) {
+    if (httpCache != null) {
+        return httpCache.get(url);
+    }
+    return httpGet(url);
+}
+
+// 设置以prefix开头的URL的缓存时间，0表示不缓存（仍合并并发请求，出错时返回上次结果）
+// 脚本设置的TTL归属该脚本：重新加载时由新版本的设置替换，卸载时移除
+void setHttpCacheTtl(final String prefix, final long ttlMillis) {
+    if (httpCache == null) {
+        return;
+    }
+    trackRegistration(new ExecLibrary.Registration() {
+        Object rule = null;
+        
+        public void publish() {
+            rule = httpCache.setTtl(prefix, ttlMillis);
+        }
+        
+        public void dispose() {
+            // 同一前缀已被新版本重新设置时，removeTtl什么也不做
+            httpCache.removeTtl(rule);
+        }
+    });
+}
+
+// 预取缓冲：脚本通过createPrefetchBuffer创建，在后台提前准备好接口结果；归属创建它的脚本，重新加载或卸载该脚本时停止
+int PREFETCH_MIN_FILL = 1;
+long PREFETCH_DEMAND_WINDOW = 5 * 60 * 1000L;
+long PREFETCH_MIN_INTERVAL = 500L;
+
+List<Object> prefetchBuffers = new CopyOnWriteArrayList<>();
+
+// source实现HttpLibrary.Source，返回一条结果（失败返回null）；库未加载时返回null，脚本应直接请求
+Object createPrefetchBuffer(String name, Object source, int capacity, int lowWater) {
+    try {
+        final Object buffer = HttpLibrary.createPrefetchBuffer(name, source, capacity, lowWater,
+            PREFETCH_MIN_FILL, PREFETCH_DEMAND_WINDOW, PREFETCH_MIN_INTERVAL);
+        trackRegistration(new ExecLibrary.Registration() {
+            public void publish() {
+                prefetchBuffers.add(buffer);
+            }
+            
+            public void dispose() {
+                buffer.shutdown();
+                prefetchBuffers.remove(buffer);
+            }
+        });
+        log("Prefetch buffer created: " + name);
+        return buffer;
+    } catch (Throwable e) {
+        error(e);
+        log("Error creating prefetch buffer " + name + ": " + e.getMessage());
+        return null;
+    }
+}
+
 // 全局数据存储
 HashMap<String, Object> globalData = new HashMap<>();
 
@@ -81,25 +404,39 @@ void removeGlobalData(String key) {
     log("Global data removed: " + key);
 }
 
-// 消息监听器映射
-HashMap<String, ArrayList<Object>> messageListeners = new HashMap<>();
+// 消息监听器映射（脚本重新加载时会替换其中的监听器，使用写时复制列表）
+ConcurrentHashMap<String, CopyOnWriteArrayList<Object>> messageListeners = new ConcurrentHashMap<>();
 
-// 注册消息监听器
-void registerMessageListener(String messageType, Object listener) {
-    if (!messageListeners.containsKey(messageType)) {
-        messageListeners.put(messageType, new ArrayList<>());
+// 注册消息监听器（注册时解析onMessageReceived方法，没有该方法的监听器直接拒绝）
+void registerMessageListener(final String messageType, Object listener) {
+    final Object invoker = ExecLibrary.bindListener(listener);
+    if (invoker == null) {
+        log("Rejected listener without onMessageReceived(String, Object): " + (listener != null ? listener.getClass().getName() : "null"));
+        return;
     }
-    messageListeners.get(messageType).add(listener);
+    trackRegistration(new ExecLibrary.Registration() {
+        public void publish() {
+            messageListeners.putIfAbsent(messageType, new CopyOnWriteArrayList<>());
+            messageListeners.get(messageType).add(invoker);
+        }
+        
+        public void dispose() {
+            CopyOnWriteArrayList<Object> list = messageListeners.get(messageType);
+            if (list != null) {
+                list.remove(invoker);
+            }
+        }
+    });
     log("Registered listener for message type: " + messageType);
 }
 
 // 发送消息
 void sendMessage(String messageType, Object data) {
-    if (messageListeners.containsKey(messageType)) {
-        for (Object listener : messageListeners.get(messageType)) {
+    CopyOnWriteArrayList<Object> listeners = messageListeners.get(messageType);
+    if (listeners != null) {
+        for (Object invoker : listeners) {
             try {
-                java.lang.reflect.Method method = listener.getClass().getMethod("onMessageReceived", String.class, Object.class);
-                method.invoke(listener, messageType, data);
+                invoker.invoke(messageType, data);
             } catch (Exception e) {
                 error(e);
                 log("Error calling message listener: " + e.getMessage());
@@ -122,38 +459,67 @@ Object getScriptInstance(String scriptName) {
     return scriptInstances.get(scriptName);
 }
 
+// 启动配置：库、初始化步骤和脚本按依赖关系组成启动图；库按顺序加载并等待主类可解析，
+// 初始化步骤和脚本都在解释器的共享命名空间中执行，逐个进行（启动图只负责依赖顺序、失败跳过和耗时报告）
+int STARTUP_PARALLELISM = 4;
+long STARTUP_TIMEOUT = 30 * 1000L;
+long STARTUP_READY_TIMEOUT = 2000L;
+
+String startupReport = "";
+
 void onLoad() {
-    ensureAdmin(myUin);
+    long startNanos = System.nanoTime();
     
-    // 优先加载外部库，确保所有JAR文件在脚本加载前准备就绪
+    // 启动图（ExecLibrary）和脚本清单（StateLibrary）在构建启动图之前就绪
+    Object graph = null;
     try {
-        log("=== Loading external libraries ===");
-        loadExternalLibrary();
-        log("=== External libraries loaded successfully ===");
-    } catch (Exception e) {
+        for (String jarName : PRELOAD_JARS) {
+            loadLibraryJar(jarName);
+        }
+        for (String step : PREPARE_STEPS) {
+            runCoreStep(step);
+        }
+        graph = buildStartupGraph();
+    } catch (Throwable e) {
         error(e);
-        log("Error loading external libraries: " + e.getMessage());
-    }
-    
-    // 延迟一秒，确保JAR文件完全加载
-    try {
-        Thread.sleep(1000);
-        log("Waiting for JAR files to initialize...");
-    } catch (Exception e) {
-        // 忽略睡眠异常
+        log("Startup graph not available, loading serially: " + e.getMessage());
+        graph = null;
     }
+    long prepareNanos = System.nanoTime();
     
-    // 加载持久化脚本 - 放在EventLibrary验证之前，确保脚本优先加载
-    try {
-        log("=== Loading persisted scripts ===");
-        loadPersistedFiles();
-        log("=== Persisted scripts loaded successfully ===");
-    } catch (Exception e) {
-        error(e);
-        log("Error loading persisted scripts: " + e.getMessage());
+    if (graph != null) {
+        log("=== Running startup graph ===");
+        boolean ok = graph.run(STARTUP_PARALLELISM, STARTUP_TIMEOUT);
+        startupReport = graph.getReport();
+        log("=== Startup graph " + (ok ? "completed" : "completed with problems") + " ===");
+    } else {
+        try {
+            log("=== Loading external libraries ===");
+            loadExternalLibrary();
+            log("=== External libraries loaded successfully ===");
+        } catch (Exception e) {
+            error(e);
+            log("Error loading external libraries: " + e.getMessage());
+        }
+        for (String step : PREPARE_STEPS) {
+            runCoreStep(step);
+        }
+        for (String[] entry : CORE_STEPS) {
+            runCoreStep(entry[0]);
+        }
+        ensureAdmin(myUin);
+        try {
+            log("=== Loading persisted scripts ===");
+            loadPersistedFiles();
+            log("=== Persisted scripts loaded successfully ===");
+        } catch (Exception e) {
+            error(e);
+            log("Error loading persisted scripts: " + e.getMessage());
+        }
     }
     
-    // 验证EventLibrary是否加载成功
+    // 所有脚本加载后再验证EventLibrary并分发加载事件
+    long eventsNanos = System.nanoTime();
     try {
         log("=== Verifying EventLibrary ===");
         int handlerCount = EventLibrary.getTotalHandlerCount();
@@ -176,57 +542,240 @@ void onLoad() {
         error(e);
         log("Error dispatching load event: " + e.getMessage());
     }
+    
+    try {
+        startScriptWatcher();
+    } catch (Throwable e) {
+        error(e);
+        log("Error starting script watcher: " + e.getMessage());
+    }
+    
+    try {
+        startHandlerWatchdog();
+    } catch (Throwable e) {
+        error(e);
+        log("Error starting handler watchdog: " + e.getMessage());
+    }
+    
+    long endNanos = System.nanoTime();
+    startupReport = (startupReport.isEmpty() ? "startup (serial)" : startupReport)
+        + "\n  prepare: " + (prepareNanos - startNanos) / 1000000L + "ms"
+        + "\n  events: " + (endNanos - eventsNanos) / 1000000L + "ms"
+        + "\n  total: " + (endNanos - startNanos) / 1000000L + "ms";
+    log(startupReport);
 }
 
-void loadExternalLibrary() {
-    try {
-        log("Starting to load external libraries");
-        
-        // 加载核心库 - EventLibrary.jar
-        String eventLibraryPath = appPath + "/EventLibrary.jar";
-        log("Checking EventLibrary.jar at: " + eventLibraryPath);
-        if (fileExists(eventLibraryPath)) {
+// 构建启动图之前完成的库和步骤：启动图本身在ExecLibrary中，脚本节点来自StateLibrary的脚本清单
+String[] PRELOAD_JARS = {"ExecLibrary.jar", "StateLibrary.jar"};
+String[] PREPARE_STEPS = {"files", "manifest"};
+
+// 初始化步骤：{步骤名, 用到的库}，所有库加载后按此顺序逐个执行
+String[][] CORE_STEPS = {
+    {"logger", "LogLibrary.jar"},
+    {"admin", "StateLibrary.jar"},
+    {"session", "StateLibrary.jar"},
+    {"executor", "ExecLibrary.jar"},
+    {"outbound", "SendLibrary.jar"},
+    {"pages", "SendLibrary.jar"},
+    {"http", "HttpLibrary.jar"},
+    {"router", "CommandLibrary.jar"},
+    {"script-cache", "ExecLibrary.jar"},
+    {"lifecycle", "EventLibrary.jar"}
+};
+
+Object buildStartupGraph() {
+    Object graph = ExecLibrary.createStartupGraph();
+    
+    // 库：loadJar会修改解释器的类路径，按LIBRARY_JARS顺序串行加载
+    String previousJar = null;
+    for (String jarName : LIBRARY_JARS) {
+        if (loadedJars.contains(jarName)) {
+            continue; // 已在构建启动图前加载
+        }
+        final String jar = jarName;
+        String[] deps = previousJar == null ? new String[0] : new String[] {previousJar};
+        graph.add("jar:" + jar, "jars", new ExecLibrary.StartupStep() {
+            public void run() {
+                loadLibraryJar(jar);
+            }
+        }, deps);
+        previousJar = "jar:" + jar;
+    }
+    
+    // 初始化步骤：各自捕获异常，失败只影响自己的功能
+    // 步骤给脚本全局变量赋值并通过解释器解析库中的类，与脚本一样不能并发执行：
+    // 所有库加载完后按CORE_STEPS顺序逐个执行，并持有scriptEvalLock
+    String previousStep = previousJar;
+    for (String[] entry : CORE_STEPS) {
+        final String step = entry[0];
+        graph.add(step, "core", new ExecLibrary.StartupStep() {
+            public void run() {
+                scriptEvalLock.lock();
+                try {
+                    runCoreStep(step);
+                } finally {
+                    scriptEvalLock.unlock();
+                }
+            }
+        }, previousStep == null ? new String[0] : new String[] {previousStep});
+        previousStep = step;
+    }
+    graph.add("owner", "core", new ExecLibrary.StartupStep() {
+        public void run() {
+            scriptEvalLock.lock();
             try {
-                log("Attempting to load EventLibrary.jar...");
-                loadJar(eventLibraryPath);
-                log("✓ EventLibrary.jar loaded successfully");
-            } catch (Exception e) {
-                error(e);
-                log("✗ Failed to load EventLibrary.jar: " + e.getMessage());
+                ensureAdmin(myUin);
+            } finally {
+                scriptEvalLock.unlock();
             }
-        } else {
-            log("✗ EventLibrary.jar not found at: " + eventLibraryPath);
         }
-        
-        // 加载其他库
-        String myLibraryPath = appPath + "/MyLibrary.jar";
-        log("Checking MyLibrary.jar at: " + myLibraryPath);
-        if (fileExists(myLibraryPath)) {
-            try {
-                log("Attempting to load MyLibrary.jar...");
-                loadJar(myLibraryPath);
-                log("✓ MyLibrary.jar loaded successfully");
-            } catch (Exception e) {
-                error(e);
-                log("✗ Failed to load MyLibrary.jar: " + e.getMessage());
+    }, new String[] {previousStep});
+    // 汇合点：所有库和初始化步骤完成后脚本才开始加载
+    graph.add("core", "core", new ExecLibrary.StartupStep() {
+        public void run() {
+        }
+    }, new String[] {"owner"});
+    
+    // 脚本：按依赖顺序逐个加载（见loadScript），脚本可在文件中用 // @depends a.java, b.java 声明依赖
+    for (String[] script : collectStartupScripts()) {
+        final String fileName = script[0];
+        String[] deps = new String[script.length];
+        deps[0] = "core";
+        for (int i = 1; i < script.length; i++) {
+            deps[i] = "script:" + script[i];
+        }
+        graph.add("script:" + fileName, "scripts", new ExecLibrary.StartupStep() {
+            public void run() throws Exception {
+                loadScriptFile(fileName);
             }
-        } else {
-            log("✗ MyLibrary.jar not found at: " + myLibraryPath);
+        }, deps);
+    }
+    return graph;
+}
+
+void runCoreStep(String step) {
+    if (step.equals("logger")) {
+        try {
+            initLogger();
+            log("Logger started, level: " + LOG_LEVEL);
+        } catch (Throwable e) {
+            error(e);
+            log("Error starting logger: " + e.getMessage());
+        }
+    } else if (step.equals("files")) {
+        try {
+            initFileStats();
+        } catch (Throwable e) {
+            error(e);
+            log("Error creating file metadata cache, files will be checked directly: " + e.getMessage());
+        }
+    } else if (step.equals("manifest")) {
+        try {
+            initScriptManifest();
+            log("Script manifest loaded, scripts: " + scriptManifest.size());
+        } catch (Throwable e) {
+            error(e);
+            scriptManifest = null;
+            log("Error loading script manifest, only unlisted scripts will be loaded: " + e.getMessage());
+        }
+    } else if (step.equals("admin")) {
+        // 管理员索引只在加载时读取一次，之后的权限检查全部走内存
+        try {
+            initAdminIndex();
+            log("Admin index loaded, admins: " + adminIndex.getAdminCount());
+        } catch (Throwable e) {
+            error(e);
+            log("Error loading admin index: " + e.getMessage());
+        }
+    } else if (step.equals("session")) {
+        try {
+            initSessionTable();
+            log("Session table loaded, waiting sessions: " + sessionTable.size());
+        } catch (Throwable e) {
+            error(e);
+            log("Error loading session table: " + e.getMessage());
+        }
+    } else if (step.equals("executor")) {
+        try {
+            initHandlerExecutor();
+            log("Handler executor started, virtual threads: " + handlerExecutor.isVirtualThreads());
+        } catch (Throwable e) {
+            error(e);
+            log("Error starting handler executor, handlers will run synchronously: " + e.getMessage());
+        }
+    } else if (step.equals("outbound")) {
+        try {
+            initOutboundQueue();
+            log("Outbound queue started");
+        } catch (Throwable e) {
+            error(e);
+            log("Error starting outbound queue, messages will be sent directly: " + e.getMessage());
+        }
+    } else if (step.equals("pages")) {
+        try {
+            initPageCache();
+        } catch (Throwable e) {
+            error(e);
+            log("Error creating page cache, long replies will be sent whole: " + e.getMessage());
+        }
+    } else if (step.equals("http")) {
+        try {
+            initHttpCache();
+            log("HTTP cache started");
+        } catch (Throwable e) {
+            error(e);
+            log("Error starting HTTP cache, scripts will call httpGet directly: " + e.getMessage());
+        }
+    } else if (step.equals("script-cache")) {
+        try {
+            initScriptCache();
+            log("Script cache " + (scriptCache != null ? "started" : "disabled"));
+        } catch (Throwable e) {
+            error(e);
+            scriptCache = null;
+            log("Error starting script cache, scripts will be loaded with load(): " + e.getMessage());
+        }
+    } else if (step.equals("lifecycle")) {
+        try {
+            initScriptLifecycle();
+            log("Script lifecycle manager started");
+        } catch (Throwable e) {
+            error(e);
+            scriptLifecycle = null;
+            log("Error starting script lifecycle manager, reloads will add handlers again: " + e.getMessage());
+        }
+    } else if (step.equals("router")) {
+        // 需在脚本加载前完成以便脚本注册自己的命令
+        try {
+            initCommandRouter();
+            log("Command router initialized, commands: " + commandRouter.size());
+        } catch (Throwable e) {
+            error(e);
+            log("Error initializing command router: " + e.getMessage());
         }
+    }
+}
+
+// 外部库列表，按顺序加载（EventLibrary为核心库，放在最前）
+String[] LIBRARY_JARS = {
+    "EventLibrary.jar",
+    "CommandLibrary.jar",
+    "StateLibrary.jar",
+    "ExecLibrary.jar",
+    "LogLibrary.jar",
+    "SendLibrary.jar",
+    "HttpLibrary.jar",
+    "JsonLibrary.jar",
+    "MyLibrary.jar",
+    "AdvancedLibrary.jar"
+};
+
+void loadExternalLibrary() {
+    try {
+        log("Starting to load external libraries");
         
-        String advancedLibraryPath = appPath + "/AdvancedLibrary.jar";
-        log("Checking AdvancedLibrary.jar at: " + advancedLibraryPath);
-        if (fileExists(advancedLibraryPath)) {
-            try {
-                log("Attempting to load AdvancedLibrary.jar...");
-                loadJar(advancedLibraryPath);
-                log("✓ AdvancedLibrary.jar loaded successfully");
-            } catch (Exception e) {
-                error(e);
-                log("✗ Failed to load AdvancedLibrary.jar: " + e.getMessage());
-            }
-        } else {
-            log("✗ AdvancedLibrary.jar not found at: " + advancedLibraryPath);
+        for (String jarName : LIBRARY_JARS) {
+            loadLibraryJar(jarName);
         }
         
         log("External libraries loading completed");
@@ -236,7 +785,91 @@ void loadExternalLibrary() {
     }
 }
 
+// 已加载的库，同一个库只加载一次
+Set<String> loadedJars = ConcurrentHashMap.newKeySet();
+
+void loadLibraryJar(String jarName) {
+    if (loadedJars.contains(jarName)) {
+        return;
+    }
+    String jarPath = appPath + "/" + jarName;
+    log("Checking " + jarName + " at: " + jarPath);
+    if (!fileExists(jarPath)) {
+        log("✗ " + jarName + " not found at: " + jarPath);
+        return;
+    }
+    try {
+        log("Attempting to load " + jarName + "...");
+        loadJar(jarPath);
+        loadedJars.add(jarName);
+    } catch (Exception e) {
+        error(e);
+        log("✗ Failed to load " + jarName + ": " + e.getMessage());
+        return;
+    }
+    // 等到库的主类能被解析再继续，而不是固定等待一段时间
+    final String className = jarName.substring(0, jarName.length() - ".jar".length());
+    boolean ready = true;
+    try {
+        // 宿主不支持按名称解析类时，loadJar返回即视为就绪
+        ready = !canResolveClasses() || ExecLibrary.awaitReady(new ExecLibrary.Readiness() {
+            public boolean isReady() {
+                return isClassReady(className);
+            }
+        }, STARTUP_READY_TIMEOUT);
+    } catch (Throwable e) {
+        // ExecLibrary本身不可用时，loadJar返回即视为就绪
+    }
+    if (ready) {
+        log("✓ " + jarName + " loaded successfully");
+    } else {
+        log("✗ " + jarName + " loaded but " + className + " is not resolvable after " + STARTUP_READY_TIMEOUT + "ms");
+    }
+}
+
+// 解析失败（包括类初始化出错）视为尚未就绪，不能让等待提前结束
+boolean isClassReady(String className) {
+    try {
+        return this.namespace.getClass(className) != null;
+    } catch (Throwable e) {
+        return false;
+    }
+}
+
+boolean canResolveClasses() {
+    try {
+        this.namespace.getClass("java.lang.String");
+        return true;
+    } catch (Throwable e) {
+        return false;
+    }
+}
+
+// 内存中的管理员索引（StateLibrary.AdminIndex），修改时直接写回存储
+Object adminIndex = null;
+
+void initAdminIndex() {
+    StateLibrary.Store store = new StateLibrary.Store() {
+        public String get(String key) {
+            return getString(ADMIN_CONFIG, key, "");
+        }
+        public void put(String key, String value) {
+            putString(ADMIN_CONFIG, key, value);
+        }
+    };
+    Object index = StateLibrary.createAdminIndex(store, ADMIN_KEY, ADMIN_GROUPS_KEY, ADMIN_GROUP_PREFIX);
+    index.load();
+    index.setOwner(myUin);
+    adminIndex = index;
+}
+
 void ensureAdmin(String qq) {
+    if (adminIndex != null) {
+        if (adminIndex.addAdmin(qq)) {
+            log("已将 " + qq + " 添加为默认管理员");
+        }
+        return;
+    }
     Set<String> admins = getAdminSet();
     if (!admins.contains(qq)) {
         admins.add(qq);
@@ -263,531 +896,1040 @@ void saveAdminSet(Set<String> set) {
 }
 
 boolean isAdmin(String qq) {
+    if (adminIndex != null) {
+        return adminIndex.isAdmin(qq);
+    }
     return getAdminSet().contains(qq);
 }
 
 void loadPersistedFiles() {
     log("开始加载持久化脚本");
+    for (String[] script : collectStartupScripts()) {
+        try {
+            loadScriptFile(script[0]);
+        } catch (Exception e) {
+            error(e);
+            log("加载文件失败: " + script[0] + " - " + e.getMessage());
+        }
+    }
+    log("持久化脚本加载完成");
+}
+
+/**
+ * 按加载顺序列出启动时要加载的脚本：先是脚本清单中已启用的脚本，再是scripts目录中不在清单里的java文件。
+ * 每项为 {文件名, 依赖的脚本...}，依赖来自脚本开头注释中的 // @depends a.java, b.java
+ */
+List<String[]> collectStartupScripts() {
+    List<String[]> scripts = new ArrayList<>();
+    String scriptsDir = getScriptsDir();
+    ensureScriptsDir();
+    
+    // 清单中的脚本（包括已停用的）都不再自动加载
+    Set<String> listed = new HashSet<>();
+    if (scriptManifest != null) {
+        for (Object entry : scriptManifest.getEntries()) {
+            listed.add(entry.name);
+            if (entry.enabled) {
+                scripts.add(readScriptEntry(scriptsDir, entry.name));
+            } else {
+                log("跳过已停用的脚本: " + entry.name);
+            }
+        }
+        log("脚本清单中的脚本数量: " + listed.size());
+    } else {
+        log("脚本清单不可用，只加载scripts目录中的脚本");
+    }
     
-    // 首先确保scripts目录存在
-    String scriptsDir = getScriptsDir();
-    log("Scripts目录路径: " + scriptsDir);
-    
+    // 自动加载scripts目录中的其他java文件（不在清单中的文件）
     try {
-        // 尝试读取scripts目录，检查是否存在
-        log("检查scripts目录是否存在");
-        String content = readFileText(scriptsDir);
-        log("读取scripts目录结果: " + (content != null ? "成功" : "失败"));
-        if (content == null) {
-            log("scripts目录不存在，创建scripts目录");
-            // 这里我们无法直接创建目录，但可以通过创建一个临时文件来间接创建目录
+        String[] names = listDir(scriptsDir);
+        if (names != null) {
+            for (String fileName : names) {
+                if (fileName.endsWith(".java") && listed.add(fileName)) {
+                    scripts.add(readScriptEntry(scriptsDir, fileName));
+                }
+            }
+        }
+    } catch (Exception e) {
+        error(e);
+        log("读取scripts目录失败: " + e.getMessage());
+    }
+    return scripts;
+}
+
+void ensureScriptsDir() {
+    String scriptsDir = getScriptsDir();
+    try {
+        if (isDirectory(scriptsDir)) {
+            return;
+        }
+        log("scripts目录不存在，创建scripts目录: " + scriptsDir);
+        if (!new File(scriptsDir).mkdirs()) {
+            // 无法直接创建目录时，通过创建一个临时文件来间接创建目录
             String tempFile = scriptsDir + "/temp.txt";
             log("尝试创建临时文件: " + tempFile);
-            writeTextToFile(tempFile, "");
-            log("已创建scripts目录");
+            writeTextFile(tempFile, "");
         }
+        invalidateFileStat(scriptsDir);
+        log("已创建scripts目录");
     } catch (Exception e) {
         error(e);
         log("检查scripts目录失败: " + e.getMessage());
     }
-    
-    // 从脚本目录加载列表文件
-    String loadListPath = scriptsDir + "/load_list.txt";
-    log("加载列表文件路径: " + loadListPath);
-    
+}
+
+// 脚本清单（StateLibrary.ScriptManifest）：持久化脚本的唯一记录，保存顺序、启用状态和上次加载的内容哈希
+String MANIFEST_FILE = "manifest.txt";
+
+Object scriptManifest = null;
+
+String getManifestPath() {
+    return getScriptsDir() + "/" + MANIFEST_FILE;
+}
+
+void initScriptManifest() throws Exception {
+    ensureScriptsDir();
+    Object manifest = StateLibrary.createScriptManifest(getManifestPath());
+    if (!manifest.load()) {
+        // 首次使用清单：从旧的load_list.txt和PERSIST_CONFIG迁移，两者都没有时使用默认列表
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        String loadListPath = getScriptsDir() + "/load_list.txt";
+        String loadList = fileExists(loadListPath) ? readFileText(loadListPath) : null;
+        if (loadList != null) {
+            for (String line : loadList.split("\n")) {
+                if (!line.trim().isEmpty()) names.add(line.trim());
+            }
+        }
+        String persisted = getString(PERSIST_CONFIG, PERSIST_KEY, "");
+        for (String name : persisted.split(",")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        if (loadList == null && persisted.isEmpty()) {
+            names.add("text.java");
+            names.add("yiyan.java");
+        }
+        manifest.replaceAll(names);
+        invalidateFileStat(getManifestPath());
+        if (loadList != null && new File(loadListPath).renameTo(new File(loadListPath + ".migrated"))) {
+            invalidateFileStat(loadListPath);
+        }
+        if (!persisted.isEmpty()) {
+            putString(PERSIST_CONFIG, PERSIST_KEY, "");
+        }
+        log("Migrated " + names.size() + " scripts into " + MANIFEST_FILE);
+    }
+    scriptManifest = manifest;
+}
+
+String[] readScriptEntry(String scriptsDir, String fileName) {
+    List<String> entry = new ArrayList<>();
+    entry.add(fileName);
     try {
-        log("检查加载列表文件是否存在");
-        boolean exists = fileExists(loadListPath);
-        log("加载列表文件存在: " + exists);
-        
-        if (exists) {
-            String loadListContent = readFileText(loadListPath);
-            log("加载列表文件内容: " + (loadListContent != null ? loadListContent : "null"));
-            if (loadListContent != null && !loadListContent.isEmpty()) {
-                String[] files = loadListContent.split("\\n");
-                log("加载列表文件中的文件数量: " + files.length);
-                for (String file : files) {
-                    String fileName = file.trim();
-                    if (fileName.isEmpty()) continue;
-                    String filePath = scriptsDir + "/" + fileName;
-                    try {
-                        // 检查文件是否存在
-                        if (fileExists(filePath)) {
-                            log("加载文件: " + fileName);
-                            load(filePath);
-                            log("从加载列表加载文件: " + fileName);
-                        } else {
-                            log("跳过不存在的文件: " + fileName);
-                        }
-                    } catch (Exception e) {
-                        error(e);
-                        log("加载文件失败: " + fileName + " - " + e.getMessage());
+        String text = readFileText(scriptsDir + "/" + fileName);
+        if (text != null) {
+            // 依赖声明只在文件开头的注释中查找
+            for (String line : text.split("\\n")) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) continue;
+                if (!trimmed.startsWith("//")) break;
+                String body = trimmed.substring(2).trim();
+                if (!body.startsWith("@depends")) continue;
+                for (String dep : body.substring("@depends".length()).split(",")) {
+                    String name = dep.trim();
+                    if (!name.isEmpty() && !name.equals(fileName) && !entry.contains(name)) {
+                        entry.add(name);
                     }
                 }
             }
-        } else {
-            log("加载列表文件不存在，创建默认加载列表");
-            // 创建默认加载列表
-            log("尝试创建默认加载列表文件: " + loadListPath);
-            writeTextToFile(loadListPath, "text.java\nyiyan.java");
-            log("已创建默认加载列表文件");
         }
     } catch (Exception e) {
-        error(e);
-        log("读取加载列表失败: " + e.getMessage());
+        // 读不到依赖声明时按无依赖处理，加载时再报告文件问题
     }
-    
-    log("持久化脚本加载完成");
-    
-    // 自动加载scripts目录中的其他java文件（不在加载列表中的文件）
-    try {
-        String content = readFileText(scriptsDir);
-        if (content != null) {
-            String[] lines = content.split("\\n");
-            for (String line : lines) {
-                String fileName = line.trim();
-                if (fileName.endsWith(".java")) {
-                    // 检查是否在加载列表中
-                    boolean inLoadList = false;
-                    try {
-                        String loadListContent = readFileText(loadListPath);
-                        if (loadListContent != null) {
-                            inLoadList = loadListContent.contains(fileName);
-                        }
-                    } catch (Exception e) {
-                        // 忽略读取加载列表的错误
-                    }
-                    
-                    if (!inLoadList) {
-                        String filePath = scriptsDir + "/" + fileName;
-                        try {
-                            if (fileExists(filePath)) {
-                                load(filePath);
-                                log("自动加载scripts目录中的文件: " + fileName);
-                            }
-                        } catch (Exception e) {
-                            error(e);
-                            log("加载文件失败: " + fileName + " - " + e.getMessage());
-                        }
-                    }
+    return entry.toArray(new String[0]);
+}
+
+void loadScriptFile(String fileName) throws Exception {
+    String filePath = getScriptsDir() + "/" + fileName;
+    // 检查文件是否存在
+    if (!fileExists(filePath)) {
+        log("跳过不存在的文件: " + fileName);
+        return;
+    }
+    log("加载文件: " + fileName);
+    loadScript(filePath);
+    log("已加载文件: " + fileName);
+}
+
+// 脚本缓存：按文件内容的哈希缓存解析结果（内存和appPath/cache/scripts），内容不变的脚本重新加载和重启后都不再解析
+boolean SCRIPT_CACHE_ENABLED = true;
+int SCRIPT_CACHE_MAX_ENTRIES = 128;
+
+Object scriptCache = null;
+
+void initScriptCache() {
+    if (!SCRIPT_CACHE_ENABLED) {
+        return;
+    }
+    // 解析和执行直接使用宿主的BeanShell解释器，脚本在全局命名空间中执行，与load相同
+    final Object interpreter = this.interpreter;
+    final Object globalNameSpace = this.interpreter.getNameSpace();
+    Object cache = ExecLibrary.createScriptCache(new ExecLibrary.ScriptCompiler() {
+        public Object compile(String name, String source) throws Exception {
+            bsh.Parser parser = new bsh.Parser(new StringReader(source));
+            ArrayList nodes = new ArrayList();
+            while (!parser.Line()) {
+                bsh.SimpleNode node = parser.popNode();
+                if (node != null) {
+                    node.setSourceFile(name);
+                    nodes.add(node);
                 }
             }
+            return nodes;
+        }
+        
+        public void run(String name, Object compiled) throws Exception {
+            bsh.CallStack callstack = new bsh.CallStack(globalNameSpace);
+            for (Object node : compiled) {
+                Object ret = node.eval(callstack, interpreter);
+                if (ret instanceof bsh.ReturnControl) {
+                    break;
+                }
+            }
+        }
+    }, appPath + "/cache/scripts", interpreter.getClass().getClassLoader(), SCRIPT_CACHE_MAX_ENTRIES);
+    // 宿主解释器不支持时（如类名不同）保持使用load
+    cache.load("startup-probe", "1 + 1;");
+    cache.invalidate("startup-probe");
+    scriptCache = cache;
+}
+
+// 加载脚本：脚本注册的处理器、监听器和命令归属该脚本，重新加载时整体替换旧的一组
+// 脚本都在解释器共享的命名空间中执行，命名空间不是线程安全的，同一时间只执行一个脚本
+// （启动图中的脚本步骤、监视线程的重新加载和/加载命令都经过这里）
+ReentrantLock scriptEvalLock = new ReentrantLock();
+
+void loadScript(final String filePath) throws Exception {
+    scriptEvalLock.lock();
+    try {
+        loadScriptLocked(filePath);
+    } finally {
+        scriptEvalLock.unlock();
+    }
+}
+
+void loadScriptLocked(final String filePath) throws Exception {
+    final String name = new File(filePath).getName();
+    final String source = scriptCache != null || scriptLifecycle != null ? readFileText(filePath) : null;
+    if (scriptLifecycle == null) {
+        runScript(filePath, name, source);
+        recordLoadedHash(name, source != null ? ExecLibrary.ScriptCache.hash(source) : null);
+        return;
+    }
+    final String hash = source != null ? ExecLibrary.ScriptCache.hash(source) : null;
+    scriptLifecycle.load(name, hash, new ExecLibrary.StartupStep() {
+        public void run() throws Exception {
+            Map<Object, List<Object>> outer = stagedHandlers.get();
+            stagedHandlers.remove();
+            try {
+                runScript(filePath, name, source);
+            } finally {
+                stagedHandlers.set(outer);
+            }
         }
+    });
+    recordLoadedHash(name, hash);
+}
+
+// 清单中的脚本加载成功后记录内容哈希，/列表 据此提示加载后被修改的脚本
+void recordLoadedHash(String name, String hash) {
+    if (scriptManifest == null || hash == null || !scriptManifest.contains(name)) {
+        return;
+    }
+    try {
+        scriptManifest.setHash(name, hash);
     } catch (Exception e) {
         error(e);
-        log("读取scripts目录失败: " + e.getMessage());
+        log("Error recording script hash in manifest: " + e.getMessage());
     }
 }
 
-void addToPersistList(String fileName, Object msg) {
-    // 更新内存中的持久化列表
-    String filesStr = getString(PERSIST_CONFIG, PERSIST_KEY, "");
-    ArrayList<String> list = new ArrayList<>();
-    if (!filesStr.isEmpty()) {
-        String[] arr = filesStr.split(",");
-        for (String s : arr) {
-            if (!s.trim().isEmpty()) list.add(s.trim());
+// 执行脚本：有脚本缓存时内容不变就跳过解析，否则交给宿主的load
+void runScript(String filePath, String name, String source) throws Exception {
+    if (scriptCache == null || source == null) {
+        load(filePath);
+        return;
+    }
+    scriptCache.load(name, source);
+}
+
+// 脚本生命周期：记录每个脚本注册的内容，并定期检查已加载脚本的内容哈希，只重新加载改动过的脚本
+boolean SCRIPT_WATCH_ENABLED = true;
+long SCRIPT_WATCH_INTERVAL = 3000L;
+
+Object scriptLifecycle = null;
+
+void initScriptLifecycle() {
+    final Object lifecycle = ExecLibrary.createScriptLifecycle();
+    // 脚本直接注册到EventLibrary的处理器也归属正在加载的脚本
+    EventLibrary.setRegistrationListener(new EventLibrary.RegistrationListener() {
+        public void onRegistered(final Object handler) {
+            String script = lifecycle.getLoadingScript();
+            if (script == null) {
+                return;
+            }
+            EventLibrary.setHandlerName(handler, script + ":" + handler.getClass().getName());
+            lifecycle.register(new ExecLibrary.Registration() {
+                public void publish() {
+                }
+                
+                public void dispose() {
+                    EventLibrary.unregisterAll(handler);
+                }
+            });
         }
+    });
+    scriptLifecycle = lifecycle;
+}
+
+// 文件内容哈希：大小和修改时间都没变时沿用上次的哈希，监视线程不必每次读取文件
+ConcurrentHashMap<String, Object[]> scriptHashes = new ConcurrentHashMap<>();
+
+String getScriptHash(String path) {
+    if (!fileExists(path)) {
+        scriptHashes.remove(path);
+        return null;
+    }
+    long size = fileSize(path);
+    long modified = fileLastModified(path);
+    Object[] known = scriptHashes.get(path);
+    if (known != null && (Long) known[0] == size && (Long) known[1] == modified) {
+        return (String) known[2];
     }
-    if (list.contains(fileName)) {
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 已在持久化列表中。");
+    String text = readFileText(path);
+    if (text == null) {
+        return null;
+    }
+    String hash = ExecLibrary.ScriptCache.hash(text);
+    scriptHashes.put(path, new Object[] {size, modified, hash});
+    return hash;
+}
+
+void startScriptWatcher() {
+    if (scriptLifecycle == null || !SCRIPT_WATCH_ENABLED) {
+        return;
+    }
+    scriptLifecycle.startWatching(new ExecLibrary.ScriptSource() {
+        public String hash(String name) {
+            return getScriptHash(getScriptsDir() + "/" + name);
+        }
+        
+        public void reload(String name) throws Exception {
+            log("Script changed, reloading: " + name);
+            try {
+                loadScript(getScriptsDir() + "/" + name);
+            } catch (Exception e) {
+                error(e);
+                log("Reload failed, keeping the previous version of " + name + ": " + e.getMessage());
+                throw e;
+            }
+        }
+    }, SCRIPT_WATCH_INTERVAL);
+    log("Script watcher started, interval: " + SCRIPT_WATCH_INTERVAL + "ms");
+}
+
+// 脚本内容被改写后调用，释放旧的缓存（内容哈希本身也能发现变化）
+void invalidateScriptCache(String fileName) {
+    if (scriptCache != null) {
+        scriptCache.invalidate(fileName);
+    }
+}
+
+void addToPersistList(String fileName, Object msg) {
+    if (scriptManifest == null) {
+        replyAdmin(msg, "脚本清单不可用，无法持久化。");
+        return;
+    }
+    Object entry = scriptManifest.get(fileName);
+    if (entry != null && entry.enabled) {
+        replyAdmin(msg, "文件 " + fileName + " 已在持久化列表中。");
         return;
     }
     String filePath = getScriptsDir() + "/" + fileName;
     if (!fileExists(filePath)) {
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 不存在，请先创建。");
+        replyAdmin(msg, "文件 " + fileName + " 不存在，请先创建。");
+        return;
+    }
+    try {
+        scriptManifest.add(fileName);
+        invalidateFileStat(getManifestPath());
+        log("已将 " + fileName + " 加入脚本清单");
+    } catch (Exception e) {
+        error(e);
+        replyAdmin(msg, "更新脚本清单失败：" + e.getMessage());
         return;
     }
-    list.add(fileName);
-    String newStr = String.join(",", list);
-    putString(PERSIST_CONFIG, PERSIST_KEY, newStr);
     
-    // 更新脚本目录中的加载列表文件
     try {
-        String loadListPath = getScriptsDir() + "/load_list.txt";
-        String loadListContent = "";
-        if (fileExists(loadListPath)) {
-            loadListContent = readFileText(loadListPath);
+        loadScript(filePath);
+        replyAdmin(msg, "文件 " + fileName + " 已加入持久化列表并已加载。");
+    } catch (Exception e) {
+        error(e);
+        replyAdmin(msg, "文件 " + fileName + " 加入持久化列表，但加载失败：" + e.getMessage());
+    }
+}
+
+void removeFromPersistList(String fileName, Object msg) {
+    if (scriptManifest == null) {
+        replyAdmin(msg, "脚本清单不可用。");
+        return;
+    }
+    try {
+        if (!scriptManifest.remove(fileName)) {
+            replyAdmin(msg, "文件 " + fileName + " 不在持久化列表中。");
+            return;
         }
-        if (!loadListContent.contains(fileName)) {
-            if (!loadListContent.isEmpty()) {
-                loadListContent += "\n";
+        invalidateFileStat(getManifestPath());
+        log("已将 " + fileName + " 从脚本清单中移除");
+    } catch (Exception e) {
+        error(e);
+        replyAdmin(msg, "更新脚本清单失败：" + e.getMessage());
+        return;
+    }
+    replyAdmin(msg, "文件 " + fileName + " 已从持久化列表中移除。");
+}
+
+void showPersistList(Object msg) {
+    List<Object> entries = scriptManifest != null ? scriptManifest.getEntries() : Collections.emptyList();
+    if (entries.isEmpty()) {
+        replyAdmin(msg, "持久化加载列表为空。");
+        return;
+    }
+    StringBuilder sb = new StringBuilder("当前持久化加载列表：\n");
+    for (Object entry : entries) {
+        sb.append("- ").append(entry.name);
+        if (!entry.enabled) {
+            sb.append("（已停用）");
+        } else if (entry.hash != null && !entry.hash.equals(getScriptHash(getScriptsDir() + "/" + entry.name))) {
+            sb.append("（上次加载后已修改）");
+        }
+        sb.append("\n");
+    }
+    replyAdmin(msg, sb.toString());
+}
+
+// 文件元数据：存在性、大小、修改时间只查文件系统不读内容，结果缓存一小段时间，通过writeTextFile的写入会立即失效
+long FILE_STAT_TTL = 2000L;
+int FILE_STAT_MAX_ENTRIES = 512;
+
+Object fileStats = null;
+
+void initFileStats() {
+    fileStats = StateLibrary.createFileStats(FILE_STAT_TTL, FILE_STAT_MAX_ENTRIES);
+}
+
+boolean fileExists(String path) {
+    try {
+        // StateLibrary加载前（检查库文件时）直接查询文件系统
+        return fileStats != null ? fileStats.isFile(path) : new File(path).isFile();
+    } catch (Exception e) {
+        return false;
+    }
+}
+
+boolean isDirectory(String path) {
+    return fileStats != null ? fileStats.isDirectory(path) : new File(path).isDirectory();
+}
+
+long fileSize(String path) {
+    return fileStats != null ? fileStats.size(path) : new File(path).length();
+}
+
+long fileLastModified(String path) {
+    return fileStats != null ? fileStats.lastModified(path) : new File(path).lastModified();
+}
+
+// 目录中的文件名（已排序），不是目录时返回null
+String[] listDir(String dir) {
+    if (fileStats != null) {
+        return fileStats.list(dir);
+    }
+    String[] names = new File(dir).list();
+    if (names != null) {
+        Arrays.sort(names);
+    }
+    return names;
+}
+
+// 写文件并使该文件的元数据缓存和内容哈希失效，main.java中的写入都经过这里
+// 同一秒内写入相同大小的内容时修改时间和大小都不变，不能沿用旧哈希
+void writeTextFile(String path, String text) {
+    writeTextToFile(path, text);
+    scriptHashes.remove(path);
+    invalidateFileStat(path);
+}
+
+void invalidateFileStat(String path) {
+    if (fileStats != null) {
+        fileStats.invalidate(path);
+    }
+}
+
+boolean isValidFileName(String name) {
+    if (name == null || name.isEmpty()) return false;
+    return name.matches("^[a-zA-Z0-9_.]+\\.java$") && !name.startsWith(".") && !name.contains("..");
+}
+
+String getScriptsDir() {
+    return appPath + "/scripts";
+}
+
+void listScripts(Object msg) {
+    try {
+        String[] names = listDir(getScriptsDir());
+        if (names == null) {
+            replyAdmin(msg, "脚本目录不存在或无法读取。");
+            return;
+        }
+        
+        ArrayList<String> scripts = new ArrayList<>();
+        
+        for (String name : names) {
+            if (name.endsWith(".java")) {
+                scripts.add(name);
             }
-            loadListContent += fileName;
-            writeTextToFile(loadListPath, loadListContent);
-            log("已将 " + fileName + " 添加到加载列表文件");
+        }
+        
+        if (scripts.isEmpty()) {
+            replyAdmin(msg, "脚本目录为空。");
+        } else {
+            StringBuilder sb = new StringBuilder("当前脚本列表：\n");
+            for (String script : scripts) {
+                sb.append("- " + script + "\n");
+            }
+            replyAdmin(msg, sb.toString());
         }
     } catch (Exception e) {
         error(e);
-        log("更新加载列表文件失败: " + e.getMessage());
+        replyAdmin(msg, "列出脚本失败：" + e.getMessage());
     }
-    
+}
+
+void stopScript(String fileName, Object msg) {
     try {
-        load(filePath);
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 已加入持久化列表并已加载。");
+        // 在清单中停用（不在清单中的脚本也加入一条停用记录，避免重启后被自动加载）
+        if (scriptManifest != null) {
+            if (!scriptManifest.contains(fileName)) {
+                scriptManifest.add(fileName);
+            }
+            scriptManifest.setEnabled(fileName, false);
+            invalidateFileStat(getManifestPath());
+        }
+        if (scriptLifecycle != null) {
+            scriptLifecycle.unload(fileName);
+        }
+        
+        replyAdmin(msg, "脚本 " + fileName + " 已停止，重启后不再自动加载（/保持 可重新启用）。");
     } catch (Exception e) {
         error(e);
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 加入持久化列表，但加载失败：" + e.getMessage());
+        replyAdmin(msg, "停止脚本失败：" + e.getMessage());
     }
 }
 
-void removeFromPersistList(String fileName, Object msg) {
-    // 更新内存中的持久化列表
-    String filesStr = getString(PERSIST_CONFIG, PERSIST_KEY, "");
-    if (filesStr.isEmpty()) {
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "持久化列表为空。");
+// 内存中的等待状态表（StateLibrary.SessionTable），超时自动过期，变更由后台定时写入存储
+Object sessionTable = null;
+
+void initSessionTable() {
+    StateLibrary.Store store = new StateLibrary.Store() {
+        public String get(String key) {
+            return getString(SESSION_CONFIG, key, "");
+        }
+        public void put(String key, String value) {
+            putString(SESSION_CONFIG, key, value);
+        }
+    };
+    Object table = StateLibrary.createSessionTable(store, SESSION_KEY, SESSION_TTL);
+    table.load();
+    table.startFlushing(SESSION_FLUSH_INTERVAL_MS);
+    sessionTable = table;
+}
+
+void setWaitState(String sessionId, int state, String fileName) {
+    if (sessionTable != null) {
+        sessionTable.begin(sessionId, state, fileName);
         return;
     }
-    String[] arr = filesStr.split(",");
+    putInt(STATE_PREFIX, sessionId, state);
+    putString(FILE_PREFIX, sessionId, fileName);
+}
+
+// 清除等待状态，返回之前是否处于等待状态
+boolean clearWaitState(String sessionId) {
+    if (sessionTable != null) {
+        return sessionTable.clear(sessionId);
+    }
+    int state = getInt(STATE_PREFIX, sessionId, STATE_NONE);
+    putInt(STATE_PREFIX, sessionId, STATE_NONE);
+    putString(FILE_PREFIX, sessionId, "");
+    return state != STATE_NONE;
+}
+
+// 管理员把机器人发出的文件内容（可能带有分页头[1/3]）原样发回
+boolean isEchoedFileContent(String content) {
+    if (content.startsWith("当前文件内容：")) {
+        return true;
+    }
+    int close = content.indexOf("]\n");
+    return content.startsWith("[") && close > 0 && close < 12 && content.substring(1, close).matches("\\d+/\\d+");
+}
+
+boolean handleWaitingState(Object msg, String sessionId) {
+    int state;
+    String fileName;
+    if (sessionTable != null) {
+        // 绝大多数消息在这里直接返回，不访问存储
+        if (sessionTable.isEmpty()) {
+            return false;
+        }
+        Object session = sessionTable.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        state = session.state;
+        fileName = session.fileName;
+    } else {
+        state = getInt(STATE_PREFIX, sessionId, STATE_NONE);
+        fileName = getString(FILE_PREFIX, sessionId, "");
+    }
+
+    if (state == STATE_NONE) {
+        return false;
+    }
+
+    // 等待中仍可翻页和取消，不能当作文件内容保存
+    String waitingCmd = msg.MessageContent.trim();
+    if (waitingCmd.equals("/下一页") || waitingCmd.equals("/取消")) {
+        return false;
+    }
+
+    if (fileName.isEmpty()) {
+        clearWaitState(sessionId);
+        replyAdmin(msg, "内部错误：文件名为空，已取消操作。");
+        return true;
+    }
+
+    String filePath = getScriptsDir() + "/" + fileName;
+
+    if (state == STATE_WAIT_CREATE) {
+        try {
+            writeTextFile(filePath, msg.MessageContent);
+            invalidateScriptCache(fileName);
+            replyAdmin(msg, fileName + " 已保存到scripts目录。");
+        } catch (Exception e) {
+            error(e);
+            replyAdmin(msg, "保存失败：" + e.getMessage());
+        }
+        clearWaitState(sessionId);
+    } else if (state == STATE_WAIT_EDIT) {
+        if (isEchoedFileContent(msg.MessageContent)) {
+            replyAdmin(msg, "检测到误发送，请直接发送代码内容。若想放弃请发送 /取消");
+            return true;
+        }
+        try {
+            writeTextFile(filePath, msg.MessageContent);
+            invalidateScriptCache(fileName);
+            replyAdmin(msg, "文件 " + fileName + " 已更新。");
+        } catch (Exception e) {
+            error(e);
+            replyAdmin(msg, "保存失败：" + e.getMessage());
+        }
+        clearWaitState(sessionId);
+    }
+    return true;
+}
+
+void handleCancelCommand(Object msg, String sessionId) {
+    if (clearWaitState(sessionId)) {
+        replyAdmin(msg, "已取消当前操作。");
+    } else {
+        replyAdmin(msg, "当前没有等待中的操作。");
+    }
+}
+
+// 解析以空格或逗号分隔的QQ号列表，存在非法项时返回null
+ArrayList<String> parseQQList(String arg) {
+    if (arg.isEmpty()) {
+        return null;
+    }
     ArrayList<String> list = new ArrayList<>();
-    boolean found = false;
-    for (String s : arr) {
-        if (s.trim().equals(fileName)) {
-            found = true;
-        } else if (!s.trim().isEmpty()) {
-            list.add(s.trim());
+    for (String s : arg.split("[,，\\s]+")) {
+        if (s.isEmpty()) continue;
+        if (!s.matches("\\d+")) {
+            return null;
         }
+        list.add(s);
     }
-    if (!found) {
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 不在持久化列表中。");
+    return list.isEmpty() ? null : list;
+}
+
+void handleGrantCommand(Object msg, String arg) {
+    ArrayList<String> qqs = parseQQList(arg);
+    if (qqs == null) {
+        replyAdmin(msg, "用法：/加权 QQ号 [QQ号...]");
         return;
     }
-    String newStr = String.join(",", list);
-    if (newStr.isEmpty()) {
-        putString(PERSIST_CONFIG, PERSIST_KEY, "");
+    ArrayList<String> added = new ArrayList<>();
+    if (adminIndex == null) {
+        Set<String> admins = getAdminSet();
+        for (String qq : qqs) {
+            if (admins.add(qq)) added.add(qq);
+        }
+        if (!added.isEmpty()) saveAdminSet(admins);
     } else {
-        putString(PERSIST_CONFIG, PERSIST_KEY, newStr);
+        // 批量修改只写一次存储
+        adminIndex.beginBatch();
+        try {
+            for (String qq : qqs) {
+                if (adminIndex.addAdmin(qq)) added.add(qq);
+            }
+        } finally {
+            adminIndex.endBatch();
+        }
     }
-    
-    // 更新脚本目录中的加载列表文件
-    try {
-        String loadListPath = getScriptsDir() + "/load_list.txt";
-        if (fileExists(loadListPath)) {
-            String loadListContent = readFileText(loadListPath);
-            if (loadListContent != null) {
-                // 移除包含fileName的行
-                String[] lines = loadListContent.split("\\n");
-                StringBuilder newLoadListContent = new StringBuilder();
-                for (String line : lines) {
-                    if (!line.trim().equals(fileName)) {
-                        if (newLoadListContent.length() > 0) {
-                            newLoadListContent.append("\n");
-                        }
-                        newLoadListContent.append(line);
-                    }
-                }
-                writeTextToFile(loadListPath, newLoadListContent.toString());
-                log("已将 " + fileName + " 从加载列表文件中移除");
+    if (added.isEmpty()) {
+        replyAdmin(msg, "该QQ已是管理员。");
+    } else {
+        replyAdmin(msg, "已将 " + String.join(",", added) + " 添加为管理员。");
+    }
+}
+
+void handleRevokeCommand(Object msg, String arg) {
+    ArrayList<String> qqs = parseQQList(arg);
+    if (qqs == null) {
+        replyAdmin(msg, "用法：/去权 QQ号 [QQ号...]");
+        return;
+    }
+    if (qqs.contains(myUin)) {
+        replyAdmin(msg, "不能移除自己（脚本作者）的管理员权限。");
+        return;
+    }
+    ArrayList<String> removed = new ArrayList<>();
+    if (adminIndex == null) {
+        Set<String> admins = getAdminSet();
+        for (String qq : qqs) {
+            if (admins.remove(qq)) removed.add(qq);
+        }
+        if (!removed.isEmpty()) saveAdminSet(admins);
+    } else {
+        adminIndex.beginBatch();
+        try {
+            for (String qq : qqs) {
+                if (adminIndex.removeAdmin(qq)) removed.add(qq);
             }
+        } finally {
+            adminIndex.endBatch();
         }
-    } catch (Exception e) {
-        error(e);
-        log("更新加载列表文件失败: " + e.getMessage());
     }
-    
-    sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 已从持久化列表中移除。");
+    if (removed.isEmpty()) {
+        replyAdmin(msg, "该QQ不是管理员。");
+    } else {
+        replyAdmin(msg, "已将 " + String.join(",", removed) + " 移除管理员。");
+    }
+}
+
+// /群加权 /群去权：设置当前群的群级管理员（仅对脚本的群级权限检查生效）
+void handleGroupGrantCommand(Object msg, String arg, boolean grant) {
+    String cmd = grant ? "/群加权" : "/群去权";
+    if (!msg.IsGroup) {
+        sendPriorityMessage("", msg.UserUin, cmd + " 只能在群聊中使用。");
+        return;
+    }
+    ArrayList<String> qqs = parseQQList(arg);
+    if (qqs == null) {
+        sendPriorityMessage(msg.GroupUin, "", "用法：" + cmd + " QQ号 [QQ号...]");
+        return;
+    }
+    if (adminIndex == null) {
+        sendPriorityMessage(msg.GroupUin, "", "权限索引未加载，无法设置群管理员。");
+        return;
+    }
+    int changed = grant ? adminIndex.addGroupAdmins(msg.GroupUin, qqs) : adminIndex.removeGroupAdmins(msg.GroupUin, qqs);
+    sendPriorityMessage(msg.GroupUin, "", "本群管理员已" + (grant ? "添加 " : "移除 ") + changed + " 人，当前共 " + adminIndex.getGroupAdmins(msg.GroupUin).size() + " 人。");
 }
 
-void showPersistList(Object msg) {
-    String filesStr = getString(PERSIST_CONFIG, PERSIST_KEY, "");
-    if (filesStr.isEmpty()) {
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "持久化加载列表为空。");
-    } else {
-        String[] files = filesStr.split(",");
-        StringBuilder sb = new StringBuilder("当前持久化加载列表：\n");
-        for (String f : files) {
-            if (!f.trim().isEmpty()) sb.append("- " + f.trim() + "\n");
-        }
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, sb.toString());
+// 校验 文件名.java 参数，不合法时回复用法并返回false
+boolean checkJavaFileArg(Object msg, String cmd, String arg) {
+    if (arg.isEmpty() || !arg.endsWith(".java")) {
+        replyAdmin(msg, "用法：" + cmd + " 文件名.java （必须以.java结尾）");
+        return false;
     }
-}
-
-boolean fileExists(String path) {
-    try {
-        String content = readFileText(path);
-        return content != null;
-    } catch (Exception e) {
+    if (!isValidFileName(arg)) {
+        replyAdmin(msg, "文件名包含非法字符。");
         return false;
     }
+    return true;
 }
 
-boolean isValidFileName(String name) {
-    if (name == null || name.isEmpty()) return false;
-    return name.matches("^[a-zA-Z0-9_.]+\\.java$") && !name.startsWith(".") && !name.contains("..");
+void handleSaveCommand(Object msg, String sessionId, String arg) {
+    if (arg.isEmpty() || !arg.endsWith(".java")) {
+        replyAdmin(msg, "用法：/保存 文件名.java （必须以.java结尾）");
+        return;
+    }
+    if (!isValidFileName(arg)) {
+        replyAdmin(msg, "文件名包含非法字符，只允许字母、数字、下划线、点。");
+        return;
+    }
+    setWaitState(sessionId, STATE_WAIT_CREATE, arg);
 }
 
-String getScriptsDir() {
-    return appPath + "/scripts";
+void handleEditCommand(Object msg, String sessionId, String arg) {
+    if (!checkJavaFileArg(msg, "/编辑", arg)) {
+        return;
+    }
+    String filePath = getScriptsDir() + "/" + arg;
+    String contentStr = readFileText(filePath);
+    if (contentStr == null) {
+        replyAdmin(msg, "文件不存在或无法读取：" + arg);
+        return;
+    }
+    replyPaged(msg, "当前文件内容：\n" + contentStr, true);
+    replyAdmin(msg, "请发送新的代码内容覆盖（发送 /取消 可放弃）：");
+    setWaitState(sessionId, STATE_WAIT_EDIT, arg);
 }
 
-void listScripts(Object msg) {
+void handleLoadCommand(Object msg, String arg) {
+    if (!checkJavaFileArg(msg, "/加载", arg)) {
+        return;
+    }
+    String filePath = getScriptsDir() + "/" + arg;
     try {
-        String scriptsDir = getScriptsDir();
-        String content = readFileText(scriptsDir);
-        if (content == null) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "脚本目录不存在或无法读取。");
-            return;
-        }
-        
-        String[] lines = content.split("\\n");
-        ArrayList<String> scripts = new ArrayList<>();
-        
-        for (String line : lines) {
-            if (line.trim().endsWith(".java")) {
-                scripts.add(line.trim());
-            }
-        }
-        
-        if (scripts.isEmpty()) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "脚本目录为空。");
-        } else {
-            StringBuilder sb = new StringBuilder("当前脚本列表：\n");
-            for (String script : scripts) {
-                sb.append("- " + script + "\n");
-            }
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, sb.toString());
-        }
+        loadScript(filePath);
+        replyAdmin(msg, "文件 " + arg + " 已加载。");
     } catch (Exception e) {
         error(e);
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "列出脚本失败：" + e.getMessage());
+        replyAdmin(msg, "加载失败：" + e.getMessage());
     }
 }
 
-void stopScript(String fileName, Object msg) {
-    try {
-        removeFromPersistList(fileName, msg);
-        
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "脚本 " + fileName + " 已停止。");
-    } catch (Exception e) {
-        error(e);
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "停止脚本失败：" + e.getMessage());
+void handleLogLevelCommand(Object msg, String arg) {
+    if (logger == null) {
+        replyAdmin(msg, "日志库未加载。");
+        return;
+    }
+    if (!arg.isEmpty() && !logger.setLevel(arg)) {
+        replyAdmin(msg, "未知的日志级别：" + arg + "\n用法：/日志级别 debug|info|warn|error|off");
+        return;
     }
+    replyAdmin(msg, "当前日志级别：" + logger.getLevel().getName()
+        + "，已写入 " + logger.getWrittenCount() + " 行，队列中 " + logger.getQueueSize() + " 行。\n用法：/日志级别 debug|info|warn|error|off");
 }
 
-boolean handleWaitingState(Object msg, String sessionId) {
-    int state = getInt(STATE_PREFIX, sessionId, STATE_NONE);
-    String fileName = getString(FILE_PREFIX, sessionId, "");
-
-    if (state == STATE_NONE) {
-        return false;
+void handleSendStatsCommand(Object msg) {
+    if (outboundQueue == null) {
+        replyAdmin(msg, "发送队列未启用，消息直接发送。");
+        return;
     }
+    replyAdmin(msg, outboundQueue.getStats()
+        + (handlerExecutor != null ? "\n" + handlerExecutor.getStats() : ""));
+}
 
-    if (fileName.isEmpty()) {
-        putInt(STATE_PREFIX, sessionId, STATE_NONE);
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "内部错误：文件名为空，已取消操作。");
-        return true;
+void handleCacheStatsCommand(Object msg, String arg) {
+    if (httpCache == null && scriptCache == null && fileStats == null) {
+        replyAdmin(msg, "HTTP缓存、脚本缓存和文件元数据缓存均未启用。");
+        return;
+    }
+    if (arg.equals("清空")) {
+        if (httpCache != null) httpCache.clear();
+        if (scriptCache != null) scriptCache.clear();
+        if (fileStats != null) fileStats.clear();
+        scriptHashes.clear();
+    }
+    StringBuilder sb = new StringBuilder(httpCache != null ? httpCache.getStats() : "HTTP缓存未启用。");
+    for (Object buffer : prefetchBuffers) {
+        sb.append("\n").append(buffer.getStats());
+    }
+    if (scriptCache != null) {
+        sb.append("\n").append(scriptCache.getStats());
     }
+    if (fileStats != null) {
+        sb.append("\n").append(fileStats.getStats());
+    }
+    replyAdmin(msg, sb.append("\n用法：/缓存统计 [清空]").toString());
+}
 
-    String filePath = getScriptsDir() + "/" + fileName;
+// 命令路由表：命令名 -> 处理器，main.java和其他脚本均可注册
+Object commandRouter = null;
 
-    if (state == STATE_WAIT_CREATE) {
-        try {
-            writeTextToFile(filePath, msg.MessageContent);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, fileName + " 已保存到scripts目录。");
-        } catch (Exception e) {
-            error(e);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "保存失败：" + e.getMessage());
-        }
-        putInt(STATE_PREFIX, sessionId, STATE_NONE);
-        putString(FILE_PREFIX, sessionId, "");
-    } else if (state == STATE_WAIT_EDIT) {
-        if (msg.MessageContent.startsWith("当前文件内容：")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "检测到误发送，请直接发送代码内容。若想放弃请发送 /取消");
-            return true;
+// 注册命令，供main.java和其他脚本调用（handler需实现CommandLibrary.CommandHandler）
+void registerCommand(final String name, final Object handler, final boolean adminOnly) {
+    if (commandRouter == null) {
+        log("Command router not ready, skipped command: " + name);
+        return;
+    }
+    trackRegistration(new ExecLibrary.Registration() {
+        public void publish() {
+            commandRouter.register(name, handler, adminOnly);
         }
-        try {
-            writeTextToFile(filePath, msg.MessageContent);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + fileName + " 已更新。");
-        } catch (Exception e) {
-            error(e);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "保存失败：" + e.getMessage());
+        
+        public void dispose() {
+            // 只移除自己注册的处理器，同名命令可能已被其他脚本覆盖
+            Object entry = commandRouter.lookup(name);
+            if (entry != null && entry.handler == handler) {
+                commandRouter.unregister(name);
+            }
         }
-        putInt(STATE_PREFIX, sessionId, STATE_NONE);
-        putString(FILE_PREFIX, sessionId, "");
-    }
-    return true;
+    });
+    log("Registered command: " + name);
 }
 
-void handleCancelCommand(Object msg, String sessionId) {
-    int state = getInt(STATE_PREFIX, sessionId, STATE_NONE);
-    if (state != STATE_NONE) {
-        putInt(STATE_PREFIX, sessionId, STATE_NONE);
-        putString(FILE_PREFIX, sessionId, "");
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "已取消当前操作。");
-    } else {
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "当前没有等待中的操作。");
+void unregisterCommand(String name) {
+    if (commandRouter != null) {
+        commandRouter.unregister(name);
     }
 }
 
-boolean handlePermissionCommand(Object msg, String cmd, String arg) {
-    if (cmd.equals("/加权")) {
-        if (arg.isEmpty() || !arg.matches("\\d+")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/加权 QQ号");
-            return true;
+// 初始化命令路由表并注册main.java自带命令
+void initCommandRouter() {
+    commandRouter = CommandLibrary.createRouter();
+
+    registerCommand("/取消", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleCancelCommand(msg, sessionId);
         }
-        Set<String> admins = getAdminSet();
-        if (admins.contains(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "该QQ已是管理员。");
-        } else {
-            admins.add(arg);
-            saveAdminSet(admins);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "已将 " + arg + " 添加为管理员。");
+    }, true);
+    registerCommand("/脚本列表", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            listScripts(msg);
         }
-        return true;
-    } else if (cmd.equals("/去权")) {
-        if (arg.isEmpty() || !arg.matches("\\d+")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/去权 QQ号");
-            return true;
+    }, true);
+    registerCommand("/stop", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            if (checkJavaFileArg(msg, cmd, arg)) {
+                stopScript(arg, msg);
+            }
         }
-        Set<String> admins = getAdminSet();
-        if (!admins.contains(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "该QQ不是管理员。");
-        } else if (arg.equals(myUin)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "不能移除自己（脚本作者）的管理员权限。");
-        } else {
-            admins.remove(arg);
-            saveAdminSet(admins);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "已将 " + arg + " 移除管理员。");
+    }, true);
+    registerCommand("/加权", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleGrantCommand(msg, arg);
         }
-        return true;
-    }
-    return false;
-}
+    }, true);
+    registerCommand("/去权", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleRevokeCommand(msg, arg);
+        }
+    }, true);
+    registerCommand("/群加权", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleGroupGrantCommand(msg, arg, true);
+        }
+    }, true);
+    registerCommand("/群去权", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleGroupGrantCommand(msg, arg, false);
+        }
+    }, true);
 
-boolean handleFileCommand(Object msg, String sessionId, String cmd, String arg) {
-    if (cmd.equals("/保存") || cmd.equals("/存储")) {
-        if (arg.isEmpty() || !arg.endsWith(".java")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/保存 文件名.java （必须以.java结尾）");
-            return true;
+    CommandLibrary.CommandHandler saveHandler = new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleSaveCommand(msg, sessionId, arg);
         }
-        if (!isValidFileName(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件名包含非法字符，只允许字母、数字、下划线、点。");
-            return true;
+    };
+    registerCommand("/保存", saveHandler, true);
+    registerCommand("/存储", saveHandler, true);
+    registerCommand("/编辑", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleEditCommand(msg, sessionId, arg);
         }
-        putInt(STATE_PREFIX, sessionId, STATE_WAIT_CREATE);
-        putString(FILE_PREFIX, sessionId, arg);
-        return true;
-    } else if (cmd.equals("/编辑")) {
-        if (arg.isEmpty() || !arg.endsWith(".java")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/编辑 文件名.java （必须以.java结尾）");
-            return true;
+    }, true);
+    registerCommand("/加载", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleLoadCommand(msg, arg);
         }
-        if (!isValidFileName(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件名包含非法字符。");
-            return true;
+    }, true);
+    registerCommand("/保持", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            if (checkJavaFileArg(msg, cmd, arg)) {
+                addToPersistList(arg, msg);
+            }
         }
-        String filePath = getScriptsDir() + "/" + arg;
-        String contentStr = readFileText(filePath);
-        if (contentStr == null) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件不存在或无法读取：" + arg);
-            return true;
+    }, true);
+    registerCommand("/取消保持", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            if (checkJavaFileArg(msg, cmd, arg)) {
+                removeFromPersistList(arg, msg);
+            }
         }
-        sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "当前文件内容：\n" + contentStr + "\n请发送新的代码内容覆盖（发送 /取消 可放弃）：");
-        putInt(STATE_PREFIX, sessionId, STATE_WAIT_EDIT);
-        putString(FILE_PREFIX, sessionId, arg);
-        return true;
-    } else if (cmd.equals("/加载")) {
-        if (arg.isEmpty() || !arg.endsWith(".java")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/加载 文件名.java （必须以.java结尾）");
-            return true;
+    }, true);
+    registerCommand("/日志级别", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleLogLevelCommand(msg, arg);
         }
-        if (!isValidFileName(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件名包含非法字符。");
-            return true;
+    }, true);
+    registerCommand("/发送统计", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleSendStatsCommand(msg);
         }
-        String filePath = getScriptsDir() + "/" + arg;
-        try {
-            load(filePath);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件 " + arg + " 已加载。");
-        } catch (Exception e) {
-            error(e);
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "加载失败：" + e.getMessage());
+    }, true);
+    registerCommand("/缓存统计", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleCacheStatsCommand(msg, arg);
         }
-        return true;
-    }
-    return false;
-}
-
-boolean handlePersistCommand(Object msg, String cmd, String arg) {
-    if (cmd.equals("/保持")) {
-        if (arg.isEmpty() || !arg.endsWith(".java")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/保持 文件名.java （必须以.java结尾）");
-            return true;
+    }, true);
+    registerCommand("/启动耗时", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            String report = startupReport.isEmpty() ? "启动尚未完成。" : startupReport;
+            replyAdmin(msg, scriptLifecycle != null ? report + "\n" + scriptLifecycle.getStats() : report);
         }
-        if (!isValidFileName(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件名包含非法字符。");
-            return true;
+    }, true);
+    registerCommand("/处理器统计", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleHandlerStatsCommand(msg, arg);
         }
-        addToPersistList(arg, msg);
-        return true;
-    } else if (cmd.equals("/取消保持")) {
-        if (arg.isEmpty() || !arg.endsWith(".java")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/取消保持 文件名.java （必须以.java结尾）");
-            return true;
+    }, true);
+    registerCommand("/恢复处理器", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleReinstateCommand(msg, arg);
         }
-        if (!isValidFileName(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件名包含非法字符。");
-            return true;
+    }, true);
+    registerCommand("/下一页", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            handleNextPageCommand(msg, sessionId);
         }
-        removeFromPersistList(arg, msg);
-        return true;
-    } else if (cmd.equals("/列表")) {
-        showPersistList(msg);
-        return true;
-    }
-    return false;
+    }, false);
+    registerCommand("/列表", new CommandLibrary.CommandHandler() {
+        public void handle(Object msg, String sessionId, String cmd, String arg) {
+            showPersistList(msg);
+        }
+    }, true);
 }
 
-boolean handleCommand(Object msg, String sessionId) {
-    String content = msg.MessageContent;
+boolean handleCommand(Object msg, String sessionId, String content) {
     if (content == null || !content.startsWith("/")) {
         return false;
     }
 
-    if (!isAdmin(msg.UserUin)) {
-        return true;
-    }
-
-    String[] parts = content.split("\\s+", 2);
-    String cmd = parts[0].toLowerCase();
-    String arg = parts.length > 1 ? parts[1].trim() : "";
-
-    if (cmd.equals("/取消")) {
-        handleCancelCommand(msg, sessionId);
-        return true;
-    }
-
-    if (cmd.equals("/脚本列表")) {
-        listScripts(msg);
-        return true;
+    if (commandRouter == null) {
+        return !isAdmin(msg.UserUin);
     }
 
-    if (cmd.equals("/stop")) {
-        if (arg.isEmpty() || !arg.endsWith(".java")) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "用法：/stop 文件名.java （必须以.java结尾）");
-            return true;
-        }
-        if (!isValidFileName(arg)) {
-            sendMsg(msg.IsGroup ? msg.GroupUin : "", msg.IsGroup ? "" : msg.UserUin, "文件名包含非法字符。");
-            return true;
-        }
-        stopScript(arg, msg);
-        return true;
-    }
-
-    if (handlePermissionCommand(msg, cmd, arg)) {
-        return true;
+    Object parsed = CommandLibrary.parse(content);
+    Object entry = commandRouter.lookup(parsed.cmd);
+    if (entry == null) {
+        // 未注册的命令：非管理员的命令消息直接吞掉，管理员继续交给脚本处理器
+        return !isAdmin(msg.UserUin);
     }
 
-    if (handleFileCommand(msg, sessionId, cmd, arg)) {
+    if (entry.adminOnly && !isAdmin(msg.UserUin)) {
         return true;
     }
 
-    if (handlePersistCommand(msg, cmd, arg)) {
-        return true;
+    try {
+        entry.handler.handle(msg, sessionId, parsed.cmd, parsed.arg);
+    } catch (Exception e) {
+        error(e);
+        log("Error handling command " + parsed.cmd + ": " + e.getMessage());
     }
-
-    return false;
+    return true;
 }
 
 void testAdvancedLibrary(Object msg, String content) {
@@ -811,9 +1953,9 @@ void testAdvancedLibrary(Object msg, String content) {
         result += "✓ Complex OOP Features\n";
         
         if (msg.IsGroup) {
-            sendMsg(msg.GroupUin, "", result);
+            sendGlobalMessage(msg.GroupUin, "", result);
         } else {
-            sendMsg("", msg.UserUin, result);
+            sendGlobalMessage("", msg.UserUin, result);
         }
         
         log("Advanced library test completed successfully");
@@ -821,74 +1963,334 @@ void testAdvancedLibrary(Object msg, String content) {
         error(e);
         log("Error testing advanced library: " + e.getMessage());
         if (msg.IsGroup) {
-            sendMsg(msg.GroupUin, "", "Advanced library test failed: " + e.getMessage());
+            sendGlobalMessage(msg.GroupUin, "", "Advanced library test failed: " + e.getMessage());
         } else {
-            sendMsg("", msg.UserUin, "Advanced library test failed: " + e.getMessage());
+            sendGlobalMessage("", msg.UserUin, "Advanced library test failed: " + e.getMessage());
+        }
+    }
+}
+
+// 脚本消息处理器映射（工作线程遍历时可能有新脚本注册，使用写时复制列表）
+CopyOnWriteArrayList<Object> scriptMessageHandlers = new CopyOnWriteArrayList<>();
+
+// 脚本处理器执行池配置：同一个群（私聊为同一个人）的消息按顺序处理，不同群并行
+int HANDLER_THREADS = 4;
+int HANDLER_QUEUE_CAPACITY = 256;
+boolean HANDLER_SHED_ON_OVERFLOW = true;
+boolean HANDLER_VIRTUAL_THREADS = false;
+
+Object handlerExecutor = null;
+Object scriptHandlerTask = null;
+
+// 触发器索引：只有触发器匹配的处理器才会收到消息
+Object scriptTriggerIndex = null;
+
+void initHandlerExecutor() {
+    scriptHandlerTask = new ExecLibrary.MessageTask() {
+        public void run(Object job) {
+            // 工作线程上的每个任务都从头开始，不继承上一个任务未结束的看门狗记录
+            if (handlerWatchdog != null && onHandlerWorker()) {
+                handlerWatchdog.reset();
+            }
+            Object[] pair = (Object[]) job;
+            dispatchScriptHandlers(pair[0], pair[1], pair[2]);
+        }
+    };
+    handlerExecutor = ExecLibrary.createKeyedExecutor("script-handler", HANDLER_THREADS, HANDLER_QUEUE_CAPACITY,
+        HANDLER_SHED_ON_OVERFLOW, HANDLER_VIRTUAL_THREADS);
+}
+
+boolean onHandlerWorker() {
+    try {
+        return ExecLibrary.isWorkerThread();
+    } catch (Throwable e) {
+        return false;
+    }
+}
+
+// 依次调用匹配的脚本消息处理器（在执行池的工作线程中运行），并记录每个处理器的调用次数、错误数和耗时
+// 已被看门狗隔离的处理器直接跳过；声明了onMessage(EventLibrary.MessageContext)的处理器收到消息上下文
+void dispatchScriptHandlers(Object msg, List<Object> invokers, Object ctx) {
+    long dispatchStart = System.nanoTime();
+    boolean anyFailed = false;
+    for (Object invoker : invokers) {
+        Object guard = scriptHandlerGuards.get(invoker);
+        if (guard != null && guard.isQuarantined()) {
+            continue;
+        }
+        long start = System.nanoTime();
+        // 只有在执行池的工作线程中运行时，看门狗才可以中断超时的处理器；
+        // 队列满时在宿主回调线程上直接执行的消息不能被中断
+        Object token = guard != null && handlerWatchdog != null ? handlerWatchdog.begin(guard, onHandlerWorker()) : null;
+        // 处理器抛出Error（如StackOverflowError）时同样要结束看门狗记录，否则该线程之后的处理器可能被误中断
+        boolean failed = true;
+        try {
+            invoker.invoke(ctx != null && invoker.takesContext() ? ctx : msg);
+            failed = false;
+        } catch (Exception e) {
+            error(e);
+            log("Error calling script message handler: " + e.getMessage());
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            if (guard != null) {
+                guard.getMetrics().record(elapsed, failed);
+                if (token != null) {
+                    handlerWatchdog.end(token, guard, elapsed);
+                }
+            }
+        }
+        anyFailed |= failed;
+    }
+    if (scriptDispatchMetrics != null) {
+        scriptDispatchMetrics.record(System.nanoTime() - dispatchStart, anyFailed);
+    }
+}
+
+// 处理器统计：脚本消息处理器 -> EventLibrary.HandlerGuard（统计和看门狗状态），EventLibrary未加载时不记录
+ConcurrentHashMap<Object, Object> scriptHandlerGuards = new ConcurrentHashMap<>();
+Object scriptDispatchMetrics = null;
+
+void trackHandlerGuard(Object invoker, String name, long budgetMillis) {
+    try {
+        if (scriptDispatchMetrics == null) {
+            scriptDispatchMetrics = new EventLibrary.HandlerMetrics("scriptMessage", "event");
+        }
+        Object guard = new EventLibrary.HandlerGuard(new EventLibrary.HandlerMetrics(name, "script"));
+        if (budgetMillis > 0) {
+            guard.setBudgetMillis(budgetMillis);
+        }
+        scriptHandlerGuards.put(invoker, guard);
+    } catch (Throwable e) {
+        logDebug("Handler metrics unavailable: {}", e.getMessage());
+    }
+}
+
+void dropHandlerGuards(Collection<Object> invokers) {
+    for (Object invoker : invokers) {
+        Object guard = scriptHandlerGuards.remove(invoker);
+        if (guard != null && handlerWatchdog != null) {
+            handlerWatchdog.forget(guard);
+        }
+    }
+}
+
+// 处理器看门狗：单次调用超过预算记为一次超时，连续超时达到次数后自动隔离，/恢复处理器 解除隔离
+long HANDLER_BUDGET_MS = 3000L;
+int HANDLER_QUARANTINE_AFTER = 3;
+long HANDLER_WATCHDOG_INTERVAL_MS = 500L;
+boolean HANDLER_INTERRUPT_HUNG = true;
+
+Object handlerWatchdog = null;
+
+void startHandlerWatchdog() {
+    Object watchdog = EventLibrary.getWatchdog();
+    watchdog.configure(HANDLER_BUDGET_MS, HANDLER_QUARANTINE_AFTER, HANDLER_INTERRUPT_HUNG);
+    watchdog.setBreachListener(new EventLibrary.BreachListener() {
+        public void onBreach(EventLibrary.HandlerGuard guard, long elapsedNanos, boolean running, boolean quarantined) {
+            String state = running ? "仍在运行" : "已返回";
+            logWarn("处理器超时: {} {}ms（{}）", guard.getName(), elapsedNanos / 1000000L, state);
+            if (quarantined) {
+                logWarn("处理器连续超时，已隔离: {}（使用 /恢复处理器 解除）", guard.getName());
+            }
+        }
+    });
+    watchdog.start(HANDLER_WATCHDOG_INTERVAL_MS);
+    handlerWatchdog = watchdog;
+}
+
+void handleReinstateCommand(Object msg, String arg) {
+    if (handlerWatchdog == null) {
+        replyAdmin(msg, "处理器看门狗未启用。");
+        return;
+    }
+    if (arg.isEmpty()) {
+        List<Object> quarantined = handlerWatchdog.getQuarantined();
+        if (quarantined.isEmpty()) {
+            replyAdmin(msg, "没有被隔离的处理器。");
+            return;
         }
+        StringBuilder sb = new StringBuilder("被隔离的处理器：");
+        for (Object guard : quarantined) {
+            sb.append("\n").append(guard);
+        }
+        replyAdmin(msg, sb.append("\n用法：/恢复处理器 名称|全部").toString());
+        return;
     }
+    int count = handlerWatchdog.reinstate(arg.equals("全部") ? null : arg);
+    replyAdmin(msg, "已恢复 " + count + " 个处理器。");
 }
 
-// 脚本消息处理器映射
-ArrayList<Object> scriptMessageHandlers = new ArrayList<>();
+String METRICS_DIR = "metrics";
+
+void handleHandlerStatsCommand(Object msg, String arg) {
+    StringBuilder sb = new StringBuilder();
+    if (scriptDispatchMetrics != null) {
+        sb.append(scriptDispatchMetrics).append("\n");
+    }
+    for (Object invoker : scriptMessageHandlers) {
+        Object guard = scriptHandlerGuards.get(invoker);
+        if (guard != null) {
+            sb.append(guard).append("\n");
+        }
+    }
+    try {
+        sb.append(EventLibrary.formatMetrics());
+    } catch (Throwable e) {
+        sb.append("EventLibrary未加载。\n");
+    }
+    String report = sb.toString();
+    if (arg.equals("导出")) {
+        String dir = appPath + "/" + METRICS_DIR;
+        new File(dir).mkdirs();
+        String path = dir + "/handlers-" + System.currentTimeMillis() + ".txt";
+        writeTextFile(path, report);
+        replyAdmin(msg, "处理器统计已导出: " + path);
+        return;
+    }
+    replyPaged(msg, (report.isEmpty() ? "暂无处理器统计。\n" : report) + "用法：/处理器统计 [导出]", true);
+}
 
-// 注册脚本消息处理器
+// 注册脚本消息处理器（不声明触发器时接收所有消息）
 void registerScriptMessageHandler(Object handler) {
+    registerScriptMessageHandler(handler, new String[] {"any"});
+}
+
+// 注册脚本消息处理器并声明触发器，例如 {"exact:/一言"}、{"prefix:/仿站抓取"}、{"regex:^\\d+$"}、{"any"}
+// 注册时解析处理器的onMessage方法并缓存，之后每条消息直接调用，不再反射查找
+void registerScriptMessageHandler(Object handler, String[] triggers) {
+    registerScriptMessageHandler(handler, triggers, 0L);
+}
+
+// 同上，并为处理器单独设置看门狗的耗时预算（毫秒，0表示使用HANDLER_BUDGET_MS）
+void registerScriptMessageHandler(Object handler, String[] triggers, long budgetMillis) {
     if (handler != null) {
-        scriptMessageHandlers.add(handler);
-        log("Registered script message handler: " + handler.getClass().getName());
+        Object invoker = ExecLibrary.bindHandler(handler, messageContextType());
+        if (invoker == null) {
+            log("Rejected script message handler without onMessage(Object): " + handler.getClass().getName());
+            return;
+        }
+        List<Object> parsed;
+        try {
+            parsed = CommandLibrary.parseTriggers(triggers);
+            if (scriptTriggerIndex == null) {
+                scriptTriggerIndex = CommandLibrary.createTriggerIndex();
+            }
+        } catch (Exception e) {
+            error(e);
+            log("Rejected script message handler with invalid triggers: " + invoker.getName() + " - " + e.getMessage());
+            return;
+        }
+        String script = scriptLifecycle != null ? scriptLifecycle.getLoadingScript() : null;
+        if (script != null) {
+            // 加载中的脚本：先暂存，加载成功后与该脚本旧的处理器一次性替换
+            trackHandlerGuard(invoker, invoker.getName() + " (" + script + ")", budgetMillis);
+            stageScriptHandler(script, invoker, parsed);
+            log("Registered script message handler: " + invoker.getName() + " " + parsed + " (" + script + ")");
+            return;
+        }
+        trackHandlerGuard(invoker, invoker.getName(), budgetMillis);
+        scriptTriggerIndex.add(invoker, parsed);
+        scriptMessageHandlers.add(invoker);
+        log("Registered script message handler: " + invoker.getName() + " " + scriptTriggerIndex.getTriggers(invoker));
+    }
+}
+
+// 每个脚本当前生效的处理器：脚本名 -> {invoker -> 触发器}
+ConcurrentHashMap<String, Map<Object, List<Object>>> scriptHandlerGroups = new ConcurrentHashMap<>();
+
+// 当前线程正在加载的脚本注册的处理器（加载开始时清空）
+ThreadLocal<Map<Object, List<Object>>> stagedHandlers = new ThreadLocal<>();
+
+void stageScriptHandler(String script, Object invoker, List<Object> triggers) {
+    Map<Object, List<Object>> group = stagedHandlers.get();
+    if (group == null) {
+        group = new LinkedHashMap<>();
+        stagedHandlers.set(group);
+        scriptLifecycle.register(createHandlerGroupRegistration(script, group));
+    }
+    group.put(invoker, triggers);
+}
+
+// 一个脚本一次加载注册的全部处理器：生效时在触发器索引中一步替换掉该脚本旧的处理器
+Object createHandlerGroupRegistration(final String script, final Map<Object, List<Object>> group) {
+    return new ExecLibrary.Registration() {
+        public void publish() {
+            Map<Object, List<Object>> old = scriptHandlerGroups.put(script, group);
+            Collection<Object> removed = old != null ? old.keySet() : Collections.emptyList();
+            scriptTriggerIndex.replace(removed, group);
+            scriptMessageHandlers.addAll(group.keySet());
+            scriptMessageHandlers.removeAll(removed);
+            dropHandlerGuards(removed);
+        }
+        
+        public void dispose() {
+            // 已被同一脚本的新版本替换时什么也不做
+            if (scriptHandlerGroups.remove(script, group)) {
+                scriptTriggerIndex.replace(group.keySet(), null);
+                scriptMessageHandlers.removeAll(group.keySet());
+            }
+            dropHandlerGuards(group.keySet());
+        }
+    };
+}
+
+// 脚本加载期间的注册交给生命周期管理器暂存，其他时候直接生效
+void trackRegistration(Object registration) {
+    if (scriptLifecycle != null) {
+        scriptLifecycle.register(registration);
+    } else {
+        registration.publish();
     }
 }
 
 void onMsg(Object msg) {
     try {
-        log("Main script onMsg triggered: " + (msg.MessageContent != null ? msg.MessageContent : "null"));
+        // 每条消息只读取一次字段，之后的判断和脚本处理器共用同一个上下文
+        // 命令按原始内容识别（前导空白的消息不是命令），触发器和文本判断使用去除首尾空白后的内容
+        Object ctx = messageContext(msg);
+        String raw = msg.MessageContent;
+        logDebug("Main script onMsg triggered: {}", raw);
         
-        String content = msg.MessageContent;
-        if (content == null || content.isEmpty()) {
-            log("Empty message, returning");
+        if (raw == null || raw.isEmpty()) {
+            logDebug("Empty message, returning");
             return;
         }
+        String content = ctx != null ? ctx.getContent() : raw.trim();
 
-        String sessionId;
-        if (msg.IsGroup) {
-            sessionId = "g" + msg.GroupUin + "_" + msg.UserUin;
-        } else {
-            sessionId = "p" + msg.UserUin;
-        }
+        String sessionId = ctx != null ? ctx.getSessionKey() : getSessionId(msg);
 
         if (handleWaitingState(msg, sessionId)) {
-            log("Handled waiting state, returning");
+            logDebug("Handled waiting state, returning");
             return;
         }
 
-        if (handleCommand(msg, sessionId)) {
-            log("Handled command, returning");
+        if (handleCommand(msg, sessionId, raw)) {
+            logDebug("Handled command, returning");
             return;
         }
 
-        if (content.trim().equals("测试")) {
-            log("Handling test message");
+        if (content.equals("测试")) {
+            logDebug("Handling test message");
             if (msg.IsGroup) {
-                sendMsg(msg.GroupUin, "", "hello world from main");
+                sendGlobalMessage(msg.GroupUin, "", "hello world from main");
             } else {
-                sendMsg("", msg.UserUin, "hello world from main");
+                sendGlobalMessage("", msg.UserUin, "hello world from main");
             }
         }
         
-        // 调用脚本消息处理器
+        // 调用脚本消息处理器：交给执行池，避免慢处理器（如httpGet）阻塞回调线程
         try {
-            log("Calling script message handlers");
-            for (Object handler : scriptMessageHandlers) {
-                try {
-                    // 尝试调用handler的onMessage方法
-                    java.lang.reflect.Method method = handler.getClass().getMethod("onMessage", Object.class);
-                    method.invoke(handler, msg);
-                } catch (NoSuchMethodException e) {
-                    // 忽略没有onMessage方法的处理器
-                } catch (Exception e) {
-                    error(e);
-                    log("Error calling script message handler: " + e.getMessage());
+            logDebug("Calling script message handlers");
+            List<Object> matched = scriptTriggerIndex != null ? scriptTriggerIndex.match(content) : scriptMessageHandlers;
+            if (matched.isEmpty()) {
+                // 没有处理器的触发器匹配，不占用执行池
+            } else if (handlerExecutor != null) {
+                String orderKey = ctx != null ? ctx.getReplyKey() : (msg.IsGroup ? "g" + msg.GroupUin : "p" + msg.UserUin);
+                if (!handlerExecutor.submit(orderKey, scriptHandlerTask, new Object[] {msg, matched, ctx})) {
+                    log("Handler queue full, message shed: " + handlerExecutor.getStats());
                 }
+            } else {
+                dispatchScriptHandlers(msg, matched, ctx);
             }
         } catch (Exception e) {
             error(e);
@@ -897,12 +2299,12 @@ void onMsg(Object msg) {
         
         // 尝试直接调用text脚本的处理方法（兼容旧版本）
         try {
-            if (content.trim().equals("text")) {
-                log("Handling text command");
+            if (content.equals("text")) {
+                logDebug("Handling text command");
                 if (msg.IsGroup) {
-                    sendMsg(msg.GroupUin, "", "hello world from text");
+                    sendGlobalMessage(msg.GroupUin, "", "hello world from text");
                 } else {
-                    sendMsg("", msg.UserUin, "hello world from text");
+                    sendGlobalMessage("", msg.UserUin, "hello world from text");
                 }
             }
         } catch (Exception e) {
@@ -925,9 +2327,9 @@ void onMsg(Object msg) {
                 result += "Is Test: " + isTest;
                 
                 if (msg.IsGroup) {
-                    sendMsg(msg.GroupUin, "", result);
+                    sendGlobalMessage(msg.GroupUin, "", result);
                 } else {
-                    sendMsg("", msg.UserUin, result);
+                    sendGlobalMessage("", msg.UserUin, result);
                 }
             }
             
@@ -939,7 +2341,7 @@ void onMsg(Object msg) {
             log("Error using external library: " + e.getMessage());
         }
         
-        log("Main script onMsg completed successfully");
+        logDebug("Main script onMsg completed successfully");
     } catch (Exception e) {
         error(e);
         log("Critical error in main onMsg: " + e.getMessage());
@@ -951,6 +2353,37 @@ void onUnLoad() {
     try {
         log("Main script onUnLoad triggered");
         
+        if (scriptLifecycle != null) {
+            scriptLifecycle.stopWatching();
+        }
+        if (handlerWatchdog != null) {
+            handlerWatchdog.stop();
+        }
+        
+        // 停止处理器执行池，最多等待队列中的消息处理1秒
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown(1000L);
+            log("Handler executor stopped: " + handlerExecutor.getStats());
+        }
+        
+        // 处理器停止后再停止发送队列，发完队列中剩余的消息
+        if (outboundQueue != null) {
+            outboundQueue.shutdown(2000L);
+            log("Outbound queue stopped: " + outboundQueue.getStats());
+        }
+        
+        for (Object buffer : prefetchBuffers) {
+            buffer.shutdown();
+        }
+        prefetchBuffers.clear();
+        
+        // 保存未落盘的等待状态，重新加载后恢复
+        if (sessionTable != null) {
+            sessionTable.stopFlushing();
+            sessionTable.evictExpired();
+            sessionTable.flush();
+        }
+        
         // 分发卸载事件
         try {
             log("Dispatching unload event to registered handlers");
@@ -960,7 +2393,17 @@ void onUnLoad() {
             log("Error dispatching unload event: " + e.getMessage());
         }
         
+        // 卸载事件分发后移除脚本注册的内容，EventLibrary的静态状态不会留下旧的处理器
+        if (scriptLifecycle != null) {
+            scriptLifecycle.unloadAll();
+        }
+        
         log("Main script onUnLoad completed successfully");
+        
+        // 最后停止日志，写完队列中剩余的日志
+        if (logger != null) {
+            logger.shutdown(1000L);
+        }
     } catch (Exception e) {
         error(e);
         log("Critical error in main onUnLoad: " + e.getMessage());
@@ -970,18 +2413,18 @@ void onUnLoad() {
 // 成员被禁言时调用
 void onForbiddenEvent(String GroupUin, String UserUin, String OPUin, long time) {
     try {
-        log("Main script onForbiddenEvent triggered: Group=" + GroupUin + ", User=" + UserUin + ", Operator=" + OPUin + ", Time=" + time);
+        logDebug("Main script onForbiddenEvent triggered: Group={}, User={}, Operator={}, Time={}", GroupUin, UserUin, OPUin, time);
         
         // 分发禁言事件
         try {
-            log("Dispatching forbidden event to registered handlers");
+            logDebug("Dispatching forbidden event to registered handlers");
             EventLibrary.dispatchForbiddenEvent(GroupUin, UserUin, OPUin, time);
         } catch (Exception e) {
             error(e);
             log("Error dispatching forbidden event: " + e.getMessage());
         }
         
-        log("Main script onForbiddenEvent completed successfully");
+        logDebug("Main script onForbiddenEvent completed successfully");
     } catch (Exception e) {
         error(e);
         log("Critical error in main onForbiddenEvent: " + e.getMessage());
@@ -991,18 +2434,18 @@ void onForbiddenEvent(String GroupUin, String UserUin, String OPUin, long time)
 // 进群/退群事件时调用
 void onTroopEvent(String GroupUin, String UserUin, int type) {
     try {
-        log("Main script onTroopEvent triggered: Group=" + GroupUin + ", User=" + UserUin + ", Type=" + type);
+        logDebug("Main script onTroopEvent triggered: Group={}, User={}, Type={}", GroupUin, UserUin, type);
         
         // 分发进群/退群事件
         try {
-            log("Dispatching troop event to registered handlers");
+            logDebug("Dispatching troop event to registered handlers");
             EventLibrary.dispatchTroopEvent(GroupUin, UserUin, type);
         } catch (Exception e) {
             error(e);
             log("Error dispatching troop event: " + e.getMessage());
         }
         
-        log("Main script onTroopEvent completed successfully");
+        logDebug("Main script onTroopEvent completed successfully");
     } catch (Exception e) {
         error(e);
         log("Critical error in main onTroopEvent: " + e.getMessage());
@@ -1012,18 +2455,18 @@ void onTroopEvent(String GroupUin, String UserUin, int type) {
 // 点击悬浮窗时调用
 void onClickFloatingWindow(int type, String uin) {
     try {
-        log("Main script onClickFloatingWindow triggered: Type=" + type + ", Uin=" + uin);
+        logDebug("Main script onClickFloatingWindow triggered: Type={}, Uin={}", type, uin);
         
         // 分发悬浮窗点击事件
         try {
-            log("Dispatching floating window click event to registered handlers");
+            logDebug("Dispatching floating window click event to registered handlers");
             EventLibrary.dispatchFloatingWindowClick(type, uin);
         } catch (Exception e) {
             error(e);
             log("Error dispatching floating window click event: " + e.getMessage());
         }
         
-        log("Main script onClickFloatingWindow completed successfully");
+        logDebug("Main script onClickFloatingWindow completed successfully");
     } catch (Exception e) {
         error(e);
         log("Critical error in main onClickFloatingWindow: " + e.getMessage());
@@ -1033,13 +2476,13 @@ void onClickFloatingWindow(int type, String uin) {
 // 发送消息时调用
 String getMsg(String msg, String targetUin, int type) {
     try {
-        log("Main script getMsg triggered: Message=" + msg + ", TargetUin=" + targetUin + ", Type=" + type);
+        logDebug("Main script getMsg triggered: Message={}, TargetUin={}, Type={}", msg, targetUin, type);
         
         // 分发消息发送事件
         try {
-            log("Dispatching message sending event to registered handlers");
+            logDebug("Dispatching message sending event to registered handlers");
             String processedMsg = EventLibrary.dispatchMessageSending(msg, targetUin, type);
-            log("Message processed by handlers: " + processedMsg);
+            logDebug("Message processed by handlers: {}", processedMsg);
             return processedMsg;
         } catch (Exception e) {
             error(e);
@@ -1056,18 +2499,18 @@ String getMsg(String msg, String targetUin, int type) {
 // 长按消息创建菜单时调用
 void onCreateMenu(Object msg) {
     try {
-        log("Main script onCreateMenu triggered");
+        logDebug("Main script onCreateMenu triggered");
         
         // 分发菜单创建事件
         try {
-            log("Dispatching menu creation event to registered handlers");
+            logDebug("Dispatching menu creation event to registered handlers");
             EventLibrary.dispatchMenuCreation(msg);
         } catch (Exception e) {
             error(e);
             log("Error dispatching menu creation event: " + e.getMessage());
         }
         
-        log("Main script onCreateMenu completed successfully");
+        logDebug("Main script onCreateMenu completed successfully");
     } catch (Exception e) {
         error(e);
         log("Critical error in main onCreateMenu: " + e.getMessage());
@@ -1077,18 +2520,18 @@ void onCreateMenu(Object msg) {
 // 收到原始消息时调用
 void callbackOnRawMsg(Object msg) {
     try {
-        log("Main script callbackOnRawMsg triggered");
+        logDebug("Main script callbackOnRawMsg triggered");
         
         // 分发原始消息事件
         try {
-            log("Dispatching raw message event to registered handlers");
+            logDebug("Dispatching raw message event to registered handlers");
             EventLibrary.dispatchRawMessage(msg);
         } catch (Exception e) {
             error(e);
             log("Error dispatching raw message event: " + e.getMessage());
         }
         
-        log("Main script callbackOnRawMsg completed successfully");
+        logDebug("Main script callbackOnRawMsg completed successfully");
     } catch (Exception e) {
         error(e);
         log("Critical error in main callbackOnRawMsg: " + e.getMessage());
@@ -5,61 +5,59 @@
 class FangzhanMessageHandler {
     public void onMessage(Object msg) {
         try {
-            log("Fangzhan handler received message: " + (msg.MessageContent != null ? msg.MessageContent : "null"));    
+            // 主脚本提供的消息上下文，内容已去除首尾空白；EventLibrary未加载时同样可用
+            Object ctx = scriptMessageContext(msg);
+            logDebug("Fangzhan handler received message: {}", ctx.getContent());    
 
             // 检查消息内容是否为"/仿站抓取"命令
-            if (msg.MessageContent != null && msg.MessageContent.trim().startsWith("/仿站抓取")) {
+            if (ctx.getContent().startsWith("/仿站抓取")) {
                 log("Fangzhan handler processing fangzhan command");
                 
                 // 解析命令参数，提取URL
-                String content = msg.MessageContent.trim();
+                String content = ctx.getContent();
                 if (content.length() > 5) {
                     String url = content.substring(5).trim();
                     if (!url.isEmpty()) {
                         // 调用API进行网站抓取
                         String apiUrl = "https://api.lolimi.cn/API/baz/api?url=" + url;
                         log("Calling API: " + apiUrl);
-                        String response = httpGet(apiUrl);
+                        String response = httpGetCached(apiUrl);
                         
                         if (response != null && !response.isEmpty()) {
                             // 解析JSON响应
                             String result = parseFangzhanResult(response);
                             
                             // 构建消息，包含@使用者
-                            String atUser = "@" + msg.UserUin;
+                            String atUser = "@" + ctx.getUserUin();
                             String message = atUser + "\n" + result;
                             
-                            // 发送消息
-                            if (msg.IsGroup) {
-                                sendMsg(msg.GroupUin, "", message);
-                            } else {
-                                sendMsg("", msg.UserUin, result);
-                            }
+                            // 发送消息，过长时自动分页（/下一页）或作为文件发送
+                            replyLong(ctx.getMessage(), ctx.isGroup() ? message : result);
                         } else {
                             log("Failed to get response from API");
-                            String errorMsg = "@" + msg.UserUin + "\n获取仿站数据失败，请稍后再试";
-                            if (msg.IsGroup) {
-                                sendMsg(msg.GroupUin, "", errorMsg);
+                            String errorMsg = "@" + ctx.getUserUin() + "\n获取仿站数据失败，请稍后再试";
+                            if (ctx.isGroup()) {
+                                sendGlobalMessage(ctx.getGroupUin(), "", errorMsg);
                             } else {
-                                sendMsg("", msg.UserUin, "获取仿站数据失败，请稍后再试");
+                                sendGlobalMessage("", ctx.getUserUin(), "获取仿站数据失败，请稍后再试");
                             }
                         }
                     } else {
                         log("No URL provided");
-                        String errorMsg = "@" + msg.UserUin + "\n请提供要抓取的网址，格式：/仿站抓取 https://example.com";
-                        if (msg.IsGroup) {
-                            sendMsg(msg.GroupUin, "", errorMsg);
+                        String errorMsg = "@" + ctx.getUserUin() + "\n请提供要抓取的网址，格式：/仿站抓取 https://example.com";
+                        if (ctx.isGroup()) {
+                            sendGlobalMessage(ctx.getGroupUin(), "", errorMsg);
                         } else {
-                            sendMsg("", msg.UserUin, "请提供要抓取的网址，格式：/仿站抓取 https://example.com");
+                            sendGlobalMessage("", ctx.getUserUin(), "请提供要抓取的网址，格式：/仿站抓取 https://example.com");
                         }
                     }
                 } else {
                     log("No URL provided");
-                    String errorMsg = "@" + msg.UserUin + "\n请提供要抓取的网址，格式：/仿站抓取 https://example.com";
-                    if (msg.IsGroup) {
-                        sendMsg(msg.GroupUin, "", errorMsg);
+                    String errorMsg = "@" + ctx.getUserUin() + "\n请提供要抓取的网址，格式：/仿站抓取 https://example.com";
+                    if (ctx.isGroup()) {
+                        sendGlobalMessage(ctx.getGroupUin(), "", errorMsg);
                     } else {
-                        sendMsg("", msg.UserUin, "请提供要抓取的网址，格式：/仿站抓取 https://example.com");
+                        sendGlobalMessage("", ctx.getUserUin(), "请提供要抓取的网址，格式：/仿站抓取 https://example.com");
                     }
                 }
             }
@@ -82,94 +80,26 @@ class FangzhanMessageHandler {
         }
     }
     
-    // 格式化JSON文本
+    // 格式化JSON文本（JsonLibrary单次扫描，不建树）
     private String formatJson(String json) {
         try {
-            log("Starting to format JSON");
-            StringBuilder result = new StringBuilder();
-            int indent = 0;
-            boolean inQuotes = false;
-            boolean escapeNext = false;
-            
-            for (int i = 0; i < json.length(); i++) {
-                char c = json.charAt(i);
-                
-                if (escapeNext) {
-                    result.append(c);
-                    escapeNext = false;
-                    continue;
-                }
-                
-                if (c == '\\') {
-                    result.append(c);
-                    escapeNext = true;
-                    continue;
-                }
-                
-                if (c == '"') {
-                    inQuotes = !inQuotes;
-                    result.append(c);
-                } else if (!inQuotes) {
-                    switch (c) {
-                        case '{':
-                        case '[':
-                            result.append(c);
-                            result.append('\n');
-                            indent++;
-                            addIndent(result, indent);
-                            break;
-                        case '}':
-                        case ']':
-                            result.append('\n');
-                            indent--;
-                            addIndent(result, indent);
-                            result.append(c);
-                            break;
-                        case ',':
-                            result.append(c);
-                            result.append('\n');
-                            addIndent(result, indent);
-                            break;
-                        case ':':
-                            result.append(c);
-                            result.append(' ');
-                            break;
-                        case ' ':
-                        case '\t':
-                        case '\n':
-                        case '\r':
-                            // 忽略空白字符，由我们自己控制格式
-                            break;
-                        default:
-                            result.append(c);
-                    }
-                } else {
-                    result.append(c);
-                }
-            }
-            
-            log("JSON formatting completed");
-            return result.toString();
+            return JsonLibrary.formatJson(json);
         } catch (Exception e) {
             error(e);
             log("Error formatting JSON: " + e.getMessage());
             return json; // 格式化失败时返回原始JSON
         }
     }
-    
-    // 添加缩进
-    private void addIndent(StringBuilder sb, int indent) {
-        for (int i = 0; i < indent; i++) {
-            sb.append("    "); // 4个空格作为缩进
-        }
-    }
 }
 
+// 同一网址的抓取结果缓存10分钟，多人同时抓取同一网址只请求一次
+setHttpCacheTtl("https://api.lolimi.cn/API/baz/", 10 * 60 * 1000L);
+
 // 创建处理器实例
 FangzhanMessageHandler fangzhanHandler = new FangzhanMessageHandler();
 
-// 注册到main.java的消息处理器列表
-registerScriptMessageHandler(fangzhanHandler);
+// 注册到main.java的消息处理器列表，只接收触发器匹配的消息
+registerScriptMessageHandler(fangzhanHandler, new String[] {"prefix:/仿站抓取"});
 
 // 注册脚本
 registerScript("fangzhan", fangzhanHandler);
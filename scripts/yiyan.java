@@ -3,48 +3,43 @@
 
 // 一言消息处理器类
 class YiyanMessageHandler {
+    // 预取缓冲，由脚本加载时设置；为null时每次直接请求接口
+    public Object prefetcher = null;
+
     public void onMessage(Object msg) {
         try {
-            log("Yiyan handler received message: " + (msg.MessageContent != null ? msg.MessageContent : "null"));    
+            // 主脚本提供的消息上下文，内容已去除首尾空白；EventLibrary未加载时同样可用
+            Object ctx = scriptMessageContext(msg);
+            logDebug("Yiyan handler received message: {}", ctx.getContent());    
 
             // 检查消息内容是否为"/一言"
-            if (msg.MessageContent != null && msg.MessageContent.trim().equals("/一言")) {
+            if (ctx.getContent().equals("/一言")) {
                 log("Yiyan handler processing yiyan command");
                 
-                // 请求API获取一言
-                String apiUrl = "https://api.xunhuisi.store/API/Ranyen/Ranyen.php?type=json";
-                String response = httpGet(apiUrl);
+                // 优先从预取缓冲取出现成的一言，缓冲为空时才同步请求API
+                String quote = prefetcher != null ? prefetcher.poll() : null;
+                if (quote == null) {
+                    quote = fetchQuote();
+                }
                 
-                if (response != null && !response.isEmpty()) {
-                    // 解析JSON
-                    String quote = parseQuoteFromJson(response);
+                if (quote != null && !quote.isEmpty()) {
+                    // 构建消息，包含@使用者
+                    String atUser = "@" + ctx.getUserUin();
+                    String message = atUser + "\n" + quote;
                     
-                    if (quote != null && !quote.isEmpty()) {
-                        // 构建消息，包含@使用者
-                        String atUser = "@" + msg.UserUin;
-                        String message = atUser + "\n" + quote;
-                        
-                        // 群聊时发到群
-                        if (msg.IsGroup) {
-                            sendMsg(msg.GroupUin, "", message);
-                        } else {
-                            // 私聊时直接发送
-                            sendMsg("", msg.UserUin, quote);
-                        }
+                    // 群聊时发到群
+                    if (ctx.isGroup()) {
+                        sendGlobalMessage(ctx.getGroupUin(), "", message);
                     } else {
-                        log("Failed to parse quote from JSON response");
-                        if (msg.IsGroup) {
-                            sendMsg(msg.GroupUin, "", "获取一言失败，请稍后再试");
-                        } else {
-                            sendMsg("", msg.UserUin, "获取一言失败，请稍后再试");
-                        }
+                        // 私聊时直接发送
+                        sendGlobalMessage("", ctx.getUserUin(), quote);
                     }
                 } else {
-                    log("Failed to get response from API");
-                    if (msg.IsGroup) {
-                        sendMsg(msg.GroupUin, "", "获取一言失败，请稍后再试");
+                    log("Failed to get quote from API");
+                    if (ctx.isGroup()) {
+                        sendGlobalMessage(ctx.getGroupUin(), "", "获取一言失败，请稍后再试");
                     } else {
-                        sendMsg("", msg.UserUin, "获取一言失败，请稍后再试");
+                        sendGlobalMessage("", ctx.getUserUin(), "获取一言失败，请稍后再试");
                     }
                 }
             }
@@ -54,23 +49,27 @@ class YiyanMessageHandler {
         }
     }
     
-    // 从JSON中解析一言内容
+    // 请求API获取一条一言，失败返回null（预取线程和缓冲为空时调用）
+    public String fetchQuote() {
+        String apiUrl = "https://api.xunhuisi.store/API/Ranyen/Ranyen.php?type=json";
+        String response = httpGetCached(apiUrl);
+        if (response == null || response.isEmpty()) {
+            return null;
+        }
+        return parseQuoteFromJson(response);
+    }
+    
+    // 从JSON中解析一言内容，路径只编译一次
+    private Object quotePath = JsonLibrary.compilePath("$.quote");
+    private Object dataQuotePath = JsonLibrary.compilePath("$.data.quote");
+
     private String parseQuoteFromJson(String json) {
         try {
-            // 简单的JSON解析，提取quote字段
-            int quoteStart = json.indexOf("quote") + 7;
-            int quoteEnd = json.indexOf("}", quoteStart);
-            if (quoteStart > 6 && quoteEnd > quoteStart) {
-                String quote = json.substring(quoteStart, quoteEnd - 1);
-                // 去除引号
-                if (quote.startsWith("\"")) {
-                    quote = quote.substring(1);
-                }
-                if (quote.endsWith("\"")) {
-                    quote = quote.substring(0, quote.length() - 1);
-                }
-                return quote;
+            String quote = quotePath.getString(json);
+            if (quote == null) {
+                quote = dataQuotePath.getString(json);
             }
+            return quote;
         } catch (Exception e) {
             error(e);
             log("Error parsing JSON: " + e.getMessage());
@@ -79,11 +78,21 @@ class YiyanMessageHandler {
     }
 }
 
+// 一言每次请求结果不同，不缓存；同时到达的请求共用一次请求，接口出错时返回上一条
+setHttpCacheTtl("https://api.xunhuisi.store/API/Ranyen/", 0L);
+
 // 创建处理器实例
 YiyanMessageHandler yiyanHandler = new YiyanMessageHandler();
 
-// 注册到main.java的消息处理器列表
-registerScriptMessageHandler(yiyanHandler);
+// 后台预取一言，最多缓存10条，剩余不超过3条时补充；补充数量跟随最近的使用频率
+yiyanHandler.prefetcher = createPrefetchBuffer("yiyan", new HttpLibrary.Source() {
+    public String fetch() {
+        return yiyanHandler.fetchQuote();
+    }
+}, 10, 3);
+
+// 注册到main.java的消息处理器列表，只接收触发器匹配的消息
+registerScriptMessageHandler(yiyanHandler, new String[] {"exact:/一言"});
 
 // 注册脚本
 registerScript("yiyan", yiyanHandler);
@@ -6,16 +6,18 @@
 class TextMessageHandler {
     public void onMessage(Object msg) {
         try {
-            log("Text handler received message: " + (msg.MessageContent != null ? msg.MessageContent : "null"));    
+            // 主脚本提供的消息上下文，内容已去除首尾空白；EventLibrary未加载时同样可用
+            Object ctx = scriptMessageContext(msg);
+            logDebug("Text handler received message: {}", ctx.getContent());    
 
             // 检查消息内容是否为"text"
-            if (msg.MessageContent != null && msg.MessageContent.trim().equals("text")) {
+            if (ctx.getContent().equals("text")) {
                 log("Text handler processing text message");
                 // 群聊时发到群，私聊时发回给个人
-                if (msg.IsGroup) {
-                    sendMsg(msg.GroupUin, "", "hello world from text");
+                if (ctx.isGroup()) {
+                    sendGlobalMessage(ctx.getGroupUin(), "", "hello world from text");
                 } else {
-                    sendMsg("", msg.UserUin, "hello world from text");
+                    sendGlobalMessage("", ctx.getUserUin(), "hello world from text");
                 }
             }
         } catch (Exception e) {
@@ -28,8 +30,8 @@ class TextMessageHandler {
 // 创建处理器实例
 TextMessageHandler textHandler = new TextMessageHandler();
 
-// 注册到main.java的消息处理器列表
-registerScriptMessageHandler(textHandler);
+// 注册到main.java的消息处理器列表，只接收触发器匹配的消息
+registerScriptMessageHandler(textHandler, new String[] {"exact:text"});
 
 // 注册脚本
 registerScript("text", textHandler);